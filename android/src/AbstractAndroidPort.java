@@ -25,6 +25,7 @@ package org.xcsoar;
 
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 /**
  * Abstract base class to aid the real implementations (Bluetooth,
@@ -34,7 +35,23 @@ abstract class AbstractAndroidPort implements AndroidPort {
   private final String name;
   private InputListener listener;
   private InputThread input;
-  private OutputThread output;
+  private OutputQueue output;
+  private InputDispatcher dispatcher;
+
+  private int dispatchQueueLength, overflowPolicy;
+  private int writeCoalesceDelay, writeCoalesceThreshold;
+
+  private int coalesceThreshold, coalesceLatency;
+  private boolean flushOnNewline;
+
+  private boolean bulkMode;
+
+  /**
+   * Survives set() calls, so the counters describe the whole lifetime
+   * of this port, including reconnects.
+   */
+  private final PortStatistics statistics = new PortStatistics();
+  private boolean connected;
 
   protected AbstractAndroidPort(String _name) {
     name = _name;
@@ -50,34 +67,135 @@ abstract class AbstractAndroidPort implements AndroidPort {
     return i;
   }
 
-  private synchronized OutputThread stealOutput() {
-    OutputThread o = output;
+  private synchronized InputDispatcher stealDispatcher() {
+    InputDispatcher d = dispatcher;
+    dispatcher = null;
+    return d;
+  }
+
+  private synchronized OutputQueue stealOutput() {
+    OutputQueue o = output;
     output = null;
     return o;
   }
 
-  protected synchronized void set(InputStream _input, OutputStream _output) {
-    input = new InputThread(name, listener, _input);
-    output = new OutputThread(name, _output);
+  protected void set(InputStream _input, OutputStream _output) {
+    set(_input, InputThread.BUFFER_SIZE,
+        _output, OutputQueue.DEFAULT_BUFFER_SIZE);
+  }
+
+  /**
+   * @param inputBufferSize the size of the #InputThread read buffer
+   * @param outputBufferSize the capacity of the #OutputQueue buffer;
+   * must be a power of two
+   */
+  protected synchronized void set(InputStream _input, int inputBufferSize,
+                                  OutputStream _output,
+                                  int outputBufferSize) {
+    if (connected)
+      statistics.increment(PortStatistics.RECONNECTS);
+    connected = true;
+
+    if (dispatchQueueLength > 0)
+      dispatcher = new InputDispatcher(name, listener, inputBufferSize,
+                                       dispatchQueueLength, overflowPolicy,
+                                       statistics);
+    input = new InputThread(name, dispatcher == null ? listener : null,
+                            dispatcher, _input, inputBufferSize,
+                            statistics);
+    input.setCoalescing(coalesceThreshold, coalesceLatency, flushOnNewline);
+    input.setBulkMode(bulkMode);
+    output = new OutputQueue(name, _output, outputBufferSize, statistics);
     output.setTimeout(5000);
+    output.setCoalescing(writeCoalesceDelay, writeCoalesceThreshold);
+  }
+
+  /**
+   * Coalesce small reads before passing them to the listener.  The
+   * setting is kept across set() calls.
+   *
+   * @see InputThread#setCoalescing(int, int, boolean)
+   */
+  protected synchronized void setInputCoalescing(int threshold,
+                                                 int latency_ms,
+                                                 boolean _flushOnNewline) {
+    coalesceThreshold = threshold;
+    coalesceLatency = latency_ms;
+    flushOnNewline = _flushOnNewline;
+
+    if (input != null)
+      input.setCoalescing(threshold, latency_ms, _flushOnNewline);
   }
 
   protected void setWriteTimeout(int timeout_ms) {
     output.setTimeout(timeout_ms);
   }
 
+  /**
+   * Combine tiny writes into larger packets.  The setting is kept
+   * across set() calls.
+   *
+   * @see OutputQueue#setCoalescing(int, int)
+   */
+  protected synchronized void setWriteCoalescing(int delay_ms,
+                                                 int threshold) {
+    writeCoalesceDelay = delay_ms;
+    writeCoalesceThreshold = threshold;
+
+    if (output != null)
+      output.setCoalescing(delay_ms, threshold);
+  }
+
+  /**
+   * Decouple reading from the listener: received data is queued and
+   * passed to the listener by an #InputDispatcher task.
+   * Must be called before set().
+   *
+   * @param queueLength the number of chunks that may be queued; 0
+   * disables the dispatcher
+   * @param policy one of the InputDispatcher.OVERFLOW_* constants
+   */
+  protected synchronized void setDecoupledInput(int queueLength,
+                                                int policy) {
+    dispatchQueueLength = queueLength;
+    overflowPolicy = policy;
+  }
+
+  /**
+   * The setting is kept across set() calls.
+   *
+   * @see InputThread#setBulkMode(boolean)
+   */
+  @Override public synchronized void setBulkMode(boolean enabled) {
+    bulkMode = enabled;
+
+    if (input != null)
+      input.setBulkMode(enabled);
+  }
+
   @Override public void setListener(InputListener _listener) {
     listener = _listener;
-    if (input != null)
+
+    InputDispatcher d = dispatcher;
+    if (d != null)
+      d.setListener(listener);
+    else if (input != null)
       input.setListener(listener);
   }
 
   @Override public void close() {
+    /* close the dispatcher first: this wakes up the InputThread if it
+       is waiting in InputDispatcher.submit() or awaitIdle(), which
+       would otherwise block the join() in InputThread.close() */
+    InputDispatcher d = stealDispatcher();
+    if (d != null)
+      d.close();
+
     InputThread i = stealInput();
     if (i != null)
       i.close();
 
-    OutputThread o = stealOutput();
+    OutputQueue o = stealOutput();
     if (o != null)
       o.close();
   }
@@ -89,15 +207,34 @@ abstract class AbstractAndroidPort implements AndroidPort {
       : STATE_FAILED;
   }
 
-  @Override public final boolean drain() {
-    OutputThread o = output;
-    return o != null && o.drain();
+  @Override public long[] getStatistics() {
+    return statistics.snapshot();
+  }
+
+  @Override public boolean drain(int timeout_ms) {
+    OutputQueue o = output;
+    return o != null && o.drain(timeout_ms);
   }
 
   @Override public int write(byte[] data, int length) {
-    OutputThread o = output;
+    OutputQueue o = output;
     return o != null
       ? o.write(data, length)
       : -1;
   }
+
+  @Override public int write(ByteBuffer data, int length, int priority) {
+    OutputQueue o = output;
+    return o != null
+      ? o.write(data, length, priority)
+      : -1;
+  }
+
+  @Override public int writeFully(ByteBuffer data, int length, int priority,
+                                  int timeout_ms) {
+    OutputQueue o = output;
+    return o != null
+      ? o.writeFully(data, length, priority, timeout_ms)
+      : -1;
+  }
 }
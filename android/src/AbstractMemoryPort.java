@@ -23,133 +23,175 @@ Copyright_License {
 
 package org.xcsoar;
 
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.io.IOException;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
-import java.io.InputStream;
-import android.util.Log;
+import java.nio.ByteBuffer;
 
 /**
  * fake a Port to a Device (used to connect a BLE Device to the XCSoar Bluetooth
  * Driver)
+ *
+ * This is an in-memory duplex channel: data passed to send() is queued and
+ * delivered to the driver's listener by an #InputDispatcher task on the shared
+ * #PortExecutor, which runs only while data is queued; data written by the
+ * driver is passed to transmit() right away, in the caller's thread.
+ *
+ * send() never blocks, because it is called from the main looper and
+ * from Bluetooth binder callbacks: if the driver falls behind by more
+ * than the queue length, the oldest queued data is dropped and counted
+ * as PortStatistics.DROPPED_BYTES.
  */
 abstract class AbstractMemoryPort implements AndroidPort, InputListener {
-	private static final String TAG = "XCSoar";
+	private static final int CHUNK_SIZE = 256;
+	private static final int QUEUE_LENGTH = 32;
 
 	private final String name;
 
-	// connected to the Driver as InputStream
-	private PipedInputStream inputStream;
-	// connected to the Driver as OutputStream
-	private PipedOutputStream outputStream;
-	// connected to BLEPort, so we can send data to the
-	// input stream of the driver
-	private PipedOutputStream sendStream;
-	// data from the Driver, comes to this Input Stream
-	private PipedInputStream receiveStream;
-
-	private InputListener listener;
-	private InputThread receiveThread;
-	private OutputThread sendThread;
-	private InputThread inputThread;
-	private OutputThread outputThread;
-
-	protected AbstractMemoryPort(String _name)  throws IOException {
-		name = _name;
+	// delivers data from send() to the Driver
+	private InputDispatcher dispatcher;
 
-		sendStream = new PipedOutputStream();
-		receiveStream = new PipedInputStream();
-		inputStream = new PipedInputStream(sendStream, 4096);
-		outputStream = new PipedOutputStream(receiveStream);
+	// the chunk to be filled by the next send() call; protected by sendLock
+	private InputChunk sendChunk;
+	private final Object sendLock = new Object();
 
-		receiveThread = new InputThread("mem" + _name, this, receiveStream);
+	protected final PortStatistics statistics = new PortStatistics();
 
-		inputThread = new InputThread(name, listener, inputStream);
-		outputThread = new OutputThread(name, outputStream);
-		outputThread.setTimeout(5000);
+	protected AbstractMemoryPort(String _name) {
+		name = _name;
 
+		/* the queue is long enough to absorb bursts; if the driver
+		   stalls, keep the most recent data, which is what a vario or
+		   traffic display needs */
+		dispatcher = new InputDispatcher(name, null, CHUNK_SIZE, QUEUE_LENGTH,
+				InputDispatcher.OVERFLOW_DROP_OLDEST, statistics);
+		sendChunk = dispatcher.obtain();
 	}
 
-	  @Override public String toString() {
-		    return name;
-		  }
-	  
-	private synchronized OutputStream stealSendStream() {
-		PipedOutputStream o = sendStream;
-		sendStream = null;
-		return o;
+	@Override
+	public String toString() {
+		return name;
 	}
 
-	private synchronized InputThread stealInputThread() {
-		InputThread i = inputThread;
-		inputThread = null;
-		return i;
+	private synchronized InputDispatcher stealDispatcher() {
+		InputDispatcher d = dispatcher;
+		dispatcher = null;
+		return d;
 	}
 
-	private synchronized OutputThread stealOutputThread() {
-		OutputThread o = outputThread;
-		outputThread = null;
-		return o;
+	@Override
+	public void close() {
+		InputDispatcher d = stealDispatcher();
+		if (d != null)
+			d.close();
 	}
 
-	private synchronized InputThread stealReceiveThread() {
-		InputThread r = receiveThread;
-		receiveThread = null;
-		return r;
+	@Override
+	public void setListener(InputListener _listener) {
+		InputDispatcher d = dispatcher;
+		if (d != null)
+			d.setListener(_listener);
 	}
 
+	@Override
+	public int getState() {
+		return dispatcher != null ? STATE_READY : STATE_FAILED;
+	}
 
 	@Override
-	public void close() {
-		OutputThread o = stealOutputThread();
-		if (o != null)
-			o.close();
-		OutputStream s = stealSendStream();
-		if (s != null)
-			try {
-			s.close();
-			} catch (IOException ex) {}
-		InputThread i = stealInputThread();
-		if (i != null)
-			i.close();
-		InputThread r = stealReceiveThread();
-		if (r != null)
-			r.close();
+	public boolean drain(int timeout_ms) {
+		// nothing is buffered on the way out
+		return dispatcher != null;
 	}
 
 	@Override
-	public void setListener(InputListener _listener) {
-		listener = _listener;
-		if (inputThread != null)
-			inputThread.setListener(listener);
+	public long[] getStatistics() {
+		return statistics.snapshot();
+	}
+
+	private void countWrite(int length) {
+		statistics.increment(PortStatistics.WRITES);
+		statistics.add(PortStatistics.BYTES_OUT, length);
+	}
+
+	/**
+	 * Handle data written by the Driver.  Must not block.  The default
+	 * implementation passes everything to dataReceived().
+	 *
+	 * @return the number of bytes that were accepted
+	 */
+	protected int transmit(byte[] data, int length) {
+		dataReceived(data, length);
+		return length;
 	}
 
 	@Override
-	public int getState() {
-		InputThread i = inputThread;
-		return i != null && i.isValid() ? STATE_READY : STATE_FAILED;
+	public int write(byte[] data, int length) {
+		if (dispatcher == null)
+			return -1;
+
+		length = transmit(data, length);
+		countWrite(length);
+		return length;
 	}
 
 	@Override
-	public final boolean drain() {
-		OutputThread o = outputThread;
-		return o != null && o.drain();
+	public int write(ByteBuffer data, int length, int priority) {
+		// nothing is queued, so there is nothing to overtake
+		if (dispatcher == null)
+			return -1;
+
+		byte[] copy = BufferPool.obtain(length);
+		try {
+			final int position = data.position();
+			data.get(copy, 0, length);
+			data.position(position);
+			length = transmit(copy, length);
+			countWrite(length);
+		} finally {
+			BufferPool.release(copy);
+		}
+		return length;
 	}
 
 	@Override
-	public int write(byte[] data, int length) {
-		OutputThread o = outputThread;
-		return o != null ? o.write(data, length) : -1;
+	public int writeFully(ByteBuffer data, int length, int priority,
+			int timeout_ms) {
+		// never blocks
+		return write(data, length, priority);
 	}
 
+	/**
+	 * Pass data to the Driver.  Never blocks; if the queue is full, the
+	 * oldest queued data is dropped.
+	 *
+	 * @return the number of bytes that were queued
+	 */
 	public int send(byte[] data, int length) {
-		try {
-			sendStream.write(data, 0, length);
-		} catch (IOException ex) {
-			return 0;
+		final long time = InputChunk.now();
+
+		synchronized (sendLock) {
+			InputDispatcher d = dispatcher;
+			if (d == null || sendChunk == null)
+				return 0;
+
+			statistics.increment(PortStatistics.READS);
+			statistics.add(PortStatistics.BYTES_IN, length);
+			statistics.max(PortStatistics.MAX_READ_SIZE, length);
+
+			int offset = 0;
+			while (offset < length) {
+				InputChunk chunk = sendChunk;
+				int n = Math.min(length - offset, chunk.capacity());
+				System.arraycopy(data, offset, chunk.array, 0, n);
+				chunk.begin(n, time);
+
+				sendChunk = d.submit(chunk);
+				if (sendChunk == null)
+					// closed
+					return offset;
+
+				offset += n;
+			}
 		}
+
 		return length;
 	}
 
@@ -163,4 +205,10 @@ abstract class AbstractMemoryPort implements AndroidPort, InputListener {
 		return 0;
 	}
 
+	@Override
+	public void setBulkMode(boolean enabled) {
+		/* received data is already delivered as it arrives; there
+		   is no read buffer to enlarge */
+	}
+
 }
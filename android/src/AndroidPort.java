@@ -23,6 +23,8 @@ Copyright_License {
 
 package org.xcsoar;
 
+import java.nio.ByteBuffer;
+
 /**
  * The Java interface of the C++ AndroidPort class.
  */
@@ -31,6 +33,18 @@ interface AndroidPort {
   int STATE_FAILED = 1;
   int STATE_LIMBO = 2;
 
+  /**
+   * Regular output, e.g. NMEA sentences and bulk transfers.
+   */
+  int PRIORITY_NORMAL = 0;
+
+  /**
+   * Short commands which should overtake queued regular output.
+   * They are still inserted only between two writes, never in the
+   * middle of one.
+   */
+  int PRIORITY_URGENT = 1;
+
   void setListener(InputListener listener);
 
   void close();
@@ -38,13 +52,26 @@ interface AndroidPort {
   int getState();
 
   /**
+   * Wait until all pending output has been submitted.
+   *
    * @see Port::Drain()
+   * @param timeout_ms give up after this duration
+   * @return false on timeout or error
    */
-  boolean drain();
+  boolean drain(int timeout_ms);
 
   int getBaudRate();
   boolean setBaudRate(int baud);
 
+  /**
+   * Optimise the receive path for large transfers (e.g. flight log
+   * downloads): read with a large buffer, skip the coalescing delay
+   * and deliver each read to the listener right away in the reading
+   * thread, which may then be blocked by the listener.  Ports which
+   * have no such distinction ignore this.
+   */
+  void setBulkMode(boolean enabled);
+
   /**
    * Write data to the port.  Execution blocks until at least one
    * bytes is written or an error occurs or until the timeout expires.
@@ -54,4 +81,36 @@ interface AndroidPort {
    * @return the number of bytes that were written or -1 on error/timeout
    */
   int write(byte[] data, int length);
+
+  /**
+   * Write data from a #ByteBuffer, starting at its current position.
+   * Native code passes a direct buffer, which avoids pinning and
+   * copying a Java array.  Unlike write(byte[], int), execution
+   * blocks until all of the data has been accepted or an error
+   * occurs or until the timeout expires.
+   *
+   * @param data the data to be written; its position is not modified,
+   * and the caller may reuse it after this method returns
+   * @param length the number of bytes to be written
+   * @param priority one of the PRIORITY_* constants
+   * @return the number of bytes that were written or -1 on error/timeout
+   */
+  int write(ByteBuffer data, int length, int priority);
+
+  /**
+   * Like write(ByteBuffer, int, int), but with an explicit timeout
+   * instead of the port's internal one.
+   *
+   * @param timeout_ms the maximum time to wait for room in the
+   * output buffer
+   * @return the number of bytes that were written (less than length
+   * if the timeout has expired) or -1 on error
+   */
+  int writeFully(ByteBuffer data, int length, int priority, int timeout_ms);
+
+  /**
+   * Returns a snapshot of this port's I/O counters, indexed by the
+   * #PortStatistics constants.
+   */
+  long[] getStatistics();
 }
@@ -91,7 +91,7 @@ final class BLEHelper {
       return null;
 
     try {
-      return new BLEServerPort(context, adapter);
+      return CapturePort.wrap(new BLEServerPort(context, adapter));
     } catch (Exception e) {
       Log.e(TAG, "Failed to create Bluetooth server", e);
       return null;
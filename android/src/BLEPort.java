@@ -25,10 +25,11 @@ package org.xcsoar;
 
 import java.io.IOException;
 import java.util.UUID;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import android.util.Log;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGatt;
@@ -36,71 +37,140 @@ import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothGattCallback;
 import android.bluetooth.BluetoothProfile;
 import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
 import android.content.Context;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
 import android.os.Looper;
 
 /**
- * An #AndroidPort implementation that initiates a Bluetooth RFCOMM connection.
+ * An #AndroidPort implementation that connects to a Bluetooth LE device.
+ *
+ * After service discovery, it asks for a larger MTU and a high connection
+ * priority (API level 21), and then enables notifications on the stream
+ * characteristics (see #streamCharacteristics).  Notification payloads
+ * are passed to the driver as they are.
+ *
+ * Data written by the driver is sent to the first write characteristic
+ * (see #writeCharacteristics) through a #GattQueue.
+ *
+ * Services are discovered on every connect, including reconnects after
+ * a dropout, because the device may have changed its layout meanwhile.
  */
 class BLEPort extends AbstractMemoryPort implements Runnable {
 	private static final String TAG = "XCSoar";
 
+	/**
+	 * The Client Characteristic Configuration descriptor, which enables
+	 * notifications.
+	 */
+	private static final UUID CLIENT_CHARACTERISTIC_CONFIG = UUID
+			.fromString("00002902-0000-1000-8000-00805f9b34fb");
+
+	/**
+	 * The ATT MTU before negotiation.
+	 */
+	static final int DEFAULT_MTU = 23;
+
+	/**
+	 * The ATT MTU to ask for: 247 allows 244 bytes per notification, which
+	 * fills one LE data packet with data length extension.
+	 */
+	private static final int REQUESTED_MTU = 247;
+
+	/**
+	 * The characteristics which carry the device's data stream: the
+	 * HM-10/CC254x serial characteristic and the Nordic UART TX
+	 * characteristic, which are used by most BLE varios and serial
+	 * bridges.
+	 */
+	private static final UUID[] streamCharacteristics = {
+		UUID.fromString("0000ffe1-0000-1000-8000-00805f9b34fb"),
+		UUID.fromString("6e400003-b5a3-f393-e0a9-e50e24dcca9e"),
+	};
+
+	/**
+	 * The characteristics which accept data for the device: the HM-10
+	 * serial characteristic and the Nordic UART RX characteristic.
+	 */
+	private static final UUID[] writeCharacteristics = {
+		UUID.fromString("0000ffe1-0000-1000-8000-00805f9b34fb"),
+		UUID.fromString("6e400002-b5a3-f393-e0a9-e50e24dcca9e"),
+	};
+
 	private static final int ACTION_SEND_INFO = 0;
 	private static final int ACTION_SEND_DISCOVERED_CHARACTERISTIC = 1;
 
 	private static final String BUNDLE_DATA = "BUNDLE_DATA";
 
-	private List<BluetoothGattCharacteristic> characteristics;
+	/**
+	 * All characteristics of the device, indexed by UUID, in discovery
+	 * order.  If several services contain the same characteristic, the
+	 * first one wins.
+	 */
+	private final Map<UUID, BluetoothGattCharacteristic> characteristics =
+		Collections.synchronizedMap(new LinkedHashMap<UUID, BluetoothGattCharacteristic>());
 
 	private volatile BluetoothDevice device;
 	private volatile BluetoothGatt gatt;
 	private volatile boolean isConnected = false;
 
+	/**
+	 * The negotiated ATT MTU.
+	 */
+	private volatile int mtu = DEFAULT_MTU;
+
+	/**
+	 * Serialises all GATT writes of this connection.
+	 */
+	private final GattQueue queue;
+
 	private Context context;
 
 
 	private Thread thread;
 	private Handler handle;
 
+	/**
+	 * Builds the sentences sent by #handle; only used on its thread.
+	 */
+	private final NMEASentence sentence = new NMEASentence();
+
 	BLEPort(String _name, Context context, BluetoothDevice _device)
 			throws IOException {
 		super(_name);
 		device = _device;
-
-		characteristics = Collections
-				.synchronizedList(new ArrayList<BluetoothGattCharacteristic>());
+		this.context = context;
 
 		handle = new Handler(Looper.getMainLooper()) {
 			@Override
 			public void handleMessage(Message msg) {
-				String buffer;
 				switch (msg.what) {
 				case ACTION_SEND_INFO:
-					buffer = StringToNmeaLine(
-							String.format("BLECONNECT,%s", device.getAddress()));
-					send(buffer.getBytes(), buffer.length());
+					sentence.begin("BLECONNECT").field(device.getAddress()).finish();
+					send(sentence.array(), sentence.length());
+					sentence.release();
 					break;
 				case ACTION_SEND_DISCOVERED_CHARACTERISTIC:
-//					StringBuilder sb = new StringBuilder();
-//					sb.append(String.format("BLEDISCOVER,%s",device.getAddress()));
-					for (BluetoothGattCharacteristic gattCharacteristic : characteristics) {
-//						sb.append(String.format(",%s", gattCharacteristic.getUuid().toString()));						
-						buffer = StringToNmeaLine(
-								String.format("BLEDISCOVER,%s,%s",device.getAddress(), gattCharacteristic.getUuid().toString()));
-						send(buffer.getBytes(), buffer.length());
+					final String address = device.getAddress();
+					synchronized (characteristics) {
+						for (UUID uuid : characteristics.keySet()) {
+							sentence.begin("BLEDISCOVER").field(address)
+								.field(uuid.toString()).finish();
+							send(sentence.array(), sentence.length());
+						}
 					}
-//					buffer = StringToNmeaLine(sb.toString());
-//					Log.d(TAG, buffer);
-//					send(buffer.getBytes(), buffer.length());
+					sentence.release();
 					break;
 				default:
 					break;
 				}
 			}
 		};
+		queue = new GattQueue(toString(), handle, statistics);
+
 		thread = new Thread(this, toString());
 		thread.start();
 	}
@@ -108,7 +178,17 @@ class BLEPort extends AbstractMemoryPort implements Runnable {
 	
 	@Override
 	public void dataReceived(byte[] data, int length) {
-		Log.d(TAG, ByteArrayToString(data));
+		transmit(data, length);
+	}
+
+	@Override
+	protected int transmit(byte[] data, int length) {
+		return queue.write(data, length);
+	}
+
+	@Override
+	public boolean drain(int timeout_ms) {
+		return super.drain(timeout_ms) && queue.awaitEmpty(timeout_ms);
 	}
 
 	@Override
@@ -123,8 +203,8 @@ class BLEPort extends AbstractMemoryPort implements Runnable {
 
 		BluetoothGatt gatt = this.gatt;
 		if (gatt != null) {
+			this.gatt = null;
 			gatt.close();
-			gatt = null;
 		}
 
 		// close handlers to the memory port
@@ -137,6 +217,73 @@ class BLEPort extends AbstractMemoryPort implements Runnable {
 		return !isConnected ? STATE_LIMBO : super.getState();
 	}
 
+	/**
+	 * Prepare the link for streaming, then subscribe.
+	 */
+	private void startStreaming(BluetoothGatt gatt) {
+		if (Build.VERSION.SDK_INT >= 21) {
+			APILevel21.requestHighConnectionPriority(gatt);
+
+			if (APILevel21.requestMtu(gatt, REQUESTED_MTU))
+				// continue in onMtuChanged()
+				return;
+		}
+
+		subscribe(gatt);
+	}
+
+	/**
+	 * Enable notifications on all stream characteristics, and start
+	 * sending outbound data.
+	 */
+	private void subscribe(BluetoothGatt gatt) {
+		int n = 0;
+		BluetoothGattCharacteristic target = null;
+
+		synchronized (characteristics) {
+			for (UUID uuid : streamCharacteristics) {
+				BluetoothGattCharacteristic c = characteristics.get(uuid);
+				if (c == null)
+					continue;
+
+				final int properties = c.getProperties();
+				final byte[] value;
+				if ((properties & BluetoothGattCharacteristic.PROPERTY_NOTIFY) != 0)
+					value = BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE;
+				else if ((properties & BluetoothGattCharacteristic.PROPERTY_INDICATE) != 0)
+					value = BluetoothGattDescriptor.ENABLE_INDICATION_VALUE;
+				else
+					continue;
+
+				BluetoothGattDescriptor d = c.getDescriptor(CLIENT_CHARACTERISTIC_CONFIG);
+				if (d == null || !gatt.setCharacteristicNotification(c, true))
+					continue;
+
+				d.setValue(value);
+				queue.writeDescriptor(d);
+				++n;
+			}
+
+			for (UUID uuid : writeCharacteristics) {
+				BluetoothGattCharacteristic c = characteristics.get(uuid);
+				final int writable = BluetoothGattCharacteristic.PROPERTY_WRITE |
+					BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE;
+				if (c != null && (c.getProperties() & writable) != 0) {
+					target = c;
+					break;
+				}
+			}
+		}
+
+		if (n == 0)
+			Log.w(TAG, "No stream characteristic found on " + this);
+
+		if (target != null)
+			queue.setTarget(target, mtu);
+		else
+			Log.w(TAG, "No write characteristic found on " + this);
+	}
+
 
 	@Override
 	public void run() {
@@ -157,13 +304,36 @@ class BLEPort extends AbstractMemoryPort implements Runnable {
 		if (gatt == null) {
 			return false;
 		}
-		for (BluetoothGattCharacteristic gattCharacteristic : characteristics) {
-			if (gattCharacteristic.getUuid().equals(characteristic)) {
-				gatt.readCharacteristic(gattCharacteristic);
-				return true;
+		BluetoothGattCharacteristic gattCharacteristic =
+			characteristics.get(characteristic);
+		if (gattCharacteristic == null)
+			return false;
+
+		gatt.readCharacteristic(gattCharacteristic);
+		return true;
+	}
+
+	/**
+	 * Index the services of a new connection, and start streaming.
+	 */
+	private void useServices(BluetoothGatt gatt,
+			List<BluetoothGattService> services) {
+		synchronized (characteristics) {
+			characteristics.clear();
+			for (BluetoothGattService gattService : services) {
+				for (BluetoothGattCharacteristic gattCharacteristic : gattService
+						.getCharacteristics()) {
+					final UUID uuid = gattCharacteristic.getUuid();
+					if (!characteristics.containsKey(uuid))
+						characteristics.put(uuid, gattCharacteristic);
+				}
 			}
 		}
-		return false;
+
+		Message msg = handle.obtainMessage(ACTION_SEND_DISCOVERED_CHARACTERISTIC);
+		handle.sendMessage(msg);
+
+		startStreaming(gatt);
 	}
 
 	// Various callback methods defined by the BLE API.
@@ -178,11 +348,13 @@ class BLEPort extends AbstractMemoryPort implements Runnable {
 				handle.sendMessage(msg);
 
 				isConnected = true;
-				
+				queue.connect(gatt);
 				gatt.discoverServices();
 			} else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
 				Log.d(TAG, "BLE Device disconnected!");
 				isConnected = false;
+				mtu = DEFAULT_MTU;
+				queue.disconnect();
 			} else {
 				Log.d(TAG, "unknown State: " + String.valueOf(newState));
 			}
@@ -192,16 +364,8 @@ class BLEPort extends AbstractMemoryPort implements Runnable {
 		// New services discovered
 		public void onServicesDiscovered(BluetoothGatt gatt, int status) {
 			if (status == BluetoothGatt.GATT_SUCCESS) {
-				characteristics.clear();
-				for (BluetoothGattService gattService : gatt.getServices()) {
-					for (BluetoothGattCharacteristic gattCharacteristic : gattService
-							.getCharacteristics()) {
-						characteristics.add(gattCharacteristic);
-					}
-				}
-				Message msg = handle.obtainMessage(ACTION_SEND_DISCOVERED_CHARACTERISTIC);
-				handle.sendMessage(msg);					
-				// read the DeviceInfo:
+				List<BluetoothGattService> services = gatt.getServices();
+				useServices(gatt, services);
 			} else {
 				Log.e(TAG, "Failure in Discovering BLE Services");
 			}
@@ -214,14 +378,43 @@ class BLEPort extends AbstractMemoryPort implements Runnable {
 			if (status == BluetoothGatt.GATT_SUCCESS) {
 			}
 		}
-	};
 
-	private static String ByteArrayToString(byte[] arr) {
-		int i;
-		for (i = 0; i < arr.length && arr[i] != 0; i++) {
+		@Override
+		public void onMtuChanged(BluetoothGatt gatt, int _mtu, int status) {
+			if (status == BluetoothGatt.GATT_SUCCESS) {
+				mtu = _mtu;
+				Log.d(TAG, "BLE MTU " + _mtu);
+			}
+
+			subscribe(gatt);
 		}
-		return new String(arr, 0, i);
-	}
+
+		@Override
+		public void onDescriptorWrite(BluetoothGatt gatt,
+				BluetoothGattDescriptor descriptor, int status) {
+			if (status != BluetoothGatt.GATT_SUCCESS) {
+				Log.w(TAG, "Failed to enable notifications on " + BLEPort.this
+						+ ": " + status);
+			}
+
+			queue.onComplete(status);
+		}
+
+		@Override
+		public void onCharacteristicWrite(BluetoothGatt gatt,
+				BluetoothGattCharacteristic characteristic, int status) {
+			queue.onComplete(status);
+		}
+
+		@Override
+		public void onCharacteristicChanged(BluetoothGatt gatt,
+				BluetoothGattCharacteristic characteristic) {
+			// pass the payload to the driver as it is
+			byte[] value = characteristic.getValue();
+			if (value != null && value.length > 0)
+				send(value, value.length);
+		}
+	};
 
 	private static long ByteArrayToLong(byte[] arr) {
 		if (arr.length > 8)
@@ -232,18 +425,4 @@ class BLEPort extends AbstractMemoryPort implements Runnable {
 		}
 		return value;
 	}
-
-	private static String StringToNmeaLine(String line) {
-		byte res = 0;
-
-		int i = 0;
-		byte[] bytes = line.getBytes();
-
-		for (; i < line.length(); ++i) {
-			byte b = bytes[i];
-			res = (byte) (res ^ b);
-		}
-
-		return String.format("$%s*%02X\r\n", line, res);
-	}
 }
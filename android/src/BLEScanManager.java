@@ -0,0 +1,387 @@
+/*
+Copyright_License {
+
+  XCSoar Glide Computer - http://www.xcsoar.org/
+  Copyright (C) 2000-2014 The XCSoar Project
+  A detailed list of copyright holders can be found in the file "AUTHORS".
+
+  This program is free software; you can redistribute it and/or
+  modify it under the terms of the GNU General Public License
+  as published by the Free Software Foundation; either version 2
+  of the License, or (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software
+  Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+}
+*/
+
+package org.xcsoar;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.UUID;
+import android.util.Log;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+
+/**
+ * Scans for Bluetooth LE devices in a duty cycle: the radio scans for
+ * #scanWindow milliseconds every #scanInterval milliseconds (see
+ * setDutyCycle()).
+ *
+ * Every device seen is kept in a cache, indexed by its address, until it
+ * has not been seen for #CACHE_TTL_MS.  The #Listener is called only
+ * once per cached device, and only if the device advertises one of the
+ * configured service UUIDs (#DEFAULT_SERVICES unless changed with
+ * setServiceFilter()); LE scans report each advertisement, and
+ * crowded places have many unrelated advertisers.
+ */
+final class BLEScanManager {
+	private static final String TAG = "XCSoar";
+
+	/**
+	 * How long a device remains in the cache after it was last seen? [ms]
+	 */
+	static final long CACHE_TTL_MS = 5 * 60 * 1000;
+
+	/**
+	 * The services advertised by the devices which #BLEPort can talk to:
+	 * the HM-10/CC254x serial service and the Nordic UART service.
+	 */
+	static final UUID[] DEFAULT_SERVICES = {
+		UUID.fromString("0000ffe0-0000-1000-8000-00805f9b34fb"),
+		UUID.fromString("6e400001-b5a3-f393-e0a9-e50e24dcca9e"),
+	};
+
+	/**
+	 * The Bluetooth base UUID, used to expand 16 and 32 bit UUIDs.
+	 */
+	private static final long BASE_UUID_LSB = 0x800000805f9b34fbL;
+	private static final long BASE_UUID_MSB = 0x1000L;
+
+	private static final int AD_INCOMPLETE_16 = 0x02;
+	private static final int AD_COMPLETE_16 = 0x03;
+	private static final int AD_INCOMPLETE_32 = 0x04;
+	private static final int AD_COMPLETE_32 = 0x05;
+	private static final int AD_INCOMPLETE_128 = 0x06;
+	private static final int AD_COMPLETE_128 = 0x07;
+
+	interface Listener {
+		/**
+		 * A matching device was seen for the first time (or the first
+		 * time after it expired from the cache).  Called from a
+		 * Bluetooth binder thread.
+		 */
+		void onDeviceFound(BluetoothDevice device, int rssi);
+	}
+
+	static final class Entry {
+		final BluetoothDevice device;
+
+		/**
+		 * The signal strength of the most recent advertisement [dBm].
+		 */
+		int rssi;
+
+		long lastSeen;
+		boolean accepted;
+
+		Entry(BluetoothDevice _device) {
+			device = _device;
+		}
+	}
+
+	private final BluetoothAdapter adapter;
+	private final Handler handler;
+	private final Listener listener;
+
+	/**
+	 * The devices seen recently, indexed by address.  Protected by its
+	 * own monitor.
+	 */
+	private final HashMap<String, Entry> cache = new HashMap<String, Entry>();
+
+	private volatile UUID[] services = DEFAULT_SERVICES;
+
+	/**
+	 * The radio scans for this long... [ms]
+	 */
+	private long scanWindow = 10000;
+
+	/**
+	 * ...once in this interval. [ms]
+	 */
+	private long scanInterval = 60000;
+
+	/**
+	 * Is the duty cycle running?  Only accessed on the #handler thread.
+	 */
+	private boolean running;
+
+	/**
+	 * Is the radio scanning right now?  Only accessed on the #handler
+	 * thread.
+	 */
+	private boolean scanning;
+
+	BLEScanManager(BluetoothAdapter _adapter, Handler _handler,
+			Listener _listener) {
+		adapter = _adapter;
+		handler = _handler;
+		listener = _listener;
+	}
+
+	/**
+	 * Accept only devices which advertise one of these services.  An
+	 * empty array accepts all devices.  Devices which have already
+	 * been reported are not affected.
+	 */
+	void setServiceFilter(UUID[] _services) {
+		services = _services.clone();
+	}
+
+	/**
+	 * Configure the duty cycle.  A window equal to the interval scans
+	 * continuously.  Takes effect at the next cycle.
+	 *
+	 * @param window how long to scan [ms]
+	 * @param interval the period of the cycle [ms]
+	 */
+	synchronized void setDutyCycle(long window, long interval) {
+		if (window <= 0 || interval < window)
+			throw new IllegalArgumentException("Bad duty cycle: " + window +
+					"/" + interval);
+
+		scanWindow = window;
+		scanInterval = interval;
+	}
+
+	private synchronized long getScanWindow() {
+		return scanWindow;
+	}
+
+	private synchronized long getScanInterval() {
+		return scanInterval;
+	}
+
+	void start() {
+		handler.post(startRunnable);
+	}
+
+	void stop() {
+		handler.post(stopRunnable);
+	}
+
+	/**
+	 * Look up a cached device by its address.
+	 *
+	 * @return the RSSI of the last advertisement [dBm], or
+	 * Integer.MIN_VALUE if the device is not in the cache
+	 */
+	int getRssi(String address) {
+		synchronized (cache) {
+			Entry entry = cache.get(address);
+			return entry != null ? entry.rssi : Integer.MIN_VALUE;
+		}
+	}
+
+	/**
+	 * Remove a device from the cache, so it will be reported again the
+	 * next time it is seen.
+	 */
+	void forget(String address) {
+		synchronized (cache) {
+			cache.remove(address);
+		}
+	}
+
+	private void expire(long now) {
+		synchronized (cache) {
+			for (Iterator<Entry> i = cache.values().iterator(); i.hasNext();)
+				if (now - i.next().lastSeen > CACHE_TTL_MS)
+					i.remove();
+		}
+	}
+
+	private final Runnable startRunnable = new Runnable() {
+		@Override
+		public void run() {
+			if (running)
+				return;
+
+			running = true;
+			beginWindow();
+		}
+	};
+
+	private final Runnable stopRunnable = new Runnable() {
+		@Override
+		public void run() {
+			running = false;
+			handler.removeCallbacks(beginWindowRunnable);
+			handler.removeCallbacks(endWindowRunnable);
+			endScan();
+		}
+	};
+
+	private final Runnable beginWindowRunnable = new Runnable() {
+		@Override
+		public void run() {
+			beginWindow();
+		}
+	};
+
+	private final Runnable endWindowRunnable = new Runnable() {
+		@Override
+		public void run() {
+			endScan();
+		}
+	};
+
+	private void beginWindow() {
+		if (!running)
+			return;
+
+		expire(SystemClock.elapsedRealtime());
+
+		final long window = getScanWindow();
+		final long interval = getScanInterval();
+
+		if (!scanning) {
+			if (adapter.startLeScan(scanCallback))
+				scanning = true;
+			else
+				Log.w(TAG, "Failed to start BLE scan");
+		}
+
+		if (window < interval)
+			handler.postDelayed(endWindowRunnable, window);
+		handler.postDelayed(beginWindowRunnable, interval);
+	}
+
+	private void endScan() {
+		if (scanning) {
+			scanning = false;
+			adapter.stopLeScan(scanCallback);
+		}
+	}
+
+	private final BluetoothAdapter.LeScanCallback scanCallback =
+		new BluetoothAdapter.LeScanCallback() {
+		@Override
+		public void onLeScan(BluetoothDevice device, int rssi,
+				byte[] scanRecord) {
+			onAdvertisement(device, rssi, scanRecord);
+		}
+	};
+
+	private void onAdvertisement(BluetoothDevice device, int rssi,
+			byte[] scanRecord) {
+		final String address = device.getAddress();
+		final long now = SystemClock.elapsedRealtime();
+
+		synchronized (cache) {
+			Entry entry = cache.get(address);
+			if (entry == null) {
+				entry = new Entry(device);
+				cache.put(address, entry);
+			}
+
+			entry.rssi = rssi;
+			entry.lastSeen = now;
+
+			if (entry.accepted || !advertisesService(scanRecord, services))
+				return;
+
+			entry.accepted = true;
+		}
+
+		Log.d(TAG, "Found BLE device " + address + " rssi=" + rssi);
+		listener.onDeviceFound(device, rssi);
+	}
+
+	/**
+	 * Does the advertisement list one of the specified services?
+	 */
+	static boolean advertisesService(byte[] record, UUID[] services) {
+		if (services.length == 0)
+			return true;
+
+		if (record == null)
+			return false;
+
+		int i = 0;
+		while (i < record.length) {
+			final int length = record[i] & 0xff;
+			if (length == 0 || i + 1 + length > record.length)
+				break;
+
+			final int type = record[i + 1] & 0xff;
+			final int start = i + 2, end = i + 1 + length;
+
+			int size;
+			switch (type) {
+			case AD_INCOMPLETE_16:
+			case AD_COMPLETE_16:
+				size = 2;
+				break;
+
+			case AD_INCOMPLETE_32:
+			case AD_COMPLETE_32:
+				size = 4;
+				break;
+
+			case AD_INCOMPLETE_128:
+			case AD_COMPLETE_128:
+				size = 16;
+				break;
+
+			default:
+				size = 0;
+			}
+
+			if (size > 0)
+				for (int p = start; p + size <= end; p += size)
+					if (contains(services, parseUuid(record, p, size)))
+						return true;
+
+			i = end;
+		}
+
+		return false;
+	}
+
+	private static boolean contains(UUID[] a, UUID uuid) {
+		for (UUID u : a)
+			if (u.equals(uuid))
+				return true;
+		return false;
+	}
+
+	/**
+	 * Parse a little-endian UUID from an advertisement.
+	 */
+	private static UUID parseUuid(byte[] b, int offset, int size) {
+		if (size < 16) {
+			long value = 0;
+			for (int i = size - 1; i >= 0; --i)
+				value = (value << 8) | (b[offset + i] & 0xff);
+			return new UUID(BASE_UUID_MSB | (value << 32), BASE_UUID_LSB);
+		}
+
+		long lsb = 0, msb = 0;
+		for (int i = 7; i >= 0; --i)
+			lsb = (lsb << 8) | (b[offset + i] & 0xff);
+		for (int i = 15; i >= 8; --i)
+			msb = (msb << 8) | (b[offset + i] & 0xff);
+		return new UUID(msb, lsb);
+	}
+}
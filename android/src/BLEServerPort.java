@@ -23,10 +23,6 @@ Copyright_License {
 
 package org.xcsoar;
 
-import java.util.UUID;
-import java.util.Collection;
-import java.util.Set;
-import java.util.LinkedList;
 import java.io.IOException;
 import android.util.Log;
 import android.bluetooth.BluetoothAdapter;
@@ -36,15 +32,18 @@ import android.os.Handler;
 
 /**
  * A utility class which wraps the Java API into an easier API for the C++ code.
+ *
+ * Devices are discovered by a #BLEScanManager; a #BLEPort is created
+ * only for devices which advertise a supported service.
  */
-final class BLEServerPort extends MultiPort implements InputListener {
+final class BLEServerPort extends MultiPort
+	implements InputListener, BLEScanManager.Listener {
 
 	private static final String TAG = "XCSoar";
 
 	private BluetoothAdapter adapter;
 	private Context context;
-	private boolean mScanning;
-	private long SCAN_PERIOD = 10000;
+	private final BLEScanManager scanner;
 	
 	  private static Handler handler;
 
@@ -61,63 +60,47 @@ final class BLEServerPort extends MultiPort implements InputListener {
 		this.adapter = _adapter;
 		this.context = _context;
 		// start scanning for BLE Devices
-		scanLeDevice(true);
+		scanner = new BLEScanManager(adapter, handler, this);
+		scanner.start();
 	}
 
-	// Device scan callback.
-	private BluetoothAdapter.LeScanCallback mLeScanCallback = new BluetoothAdapter.LeScanCallback() {
-		@Override
-		public void onLeScan(final BluetoothDevice device, int rssi, byte[] scanRecord) {
-		    try {
-		    	// check if we already have this device in the MultiPort
-		    	// sometimes we get multiple time the same device from LE Scan....
-		    	// depends on the Smartphone
-		    	if (!contains(device.getAddress())) {
-			    	BLEPort port = new BLEPort(device.getAddress(), context, device);
-		    		Log.d(TAG, "Add new BLE Port: " + port.toString());
-		            /* make writes non-blocking and potentially lossy, to avoid
-		            blocking when one of the peers doesn't receive quickly
-		            enough */
-		    		//port.setWriteTimeout(100);
-			    	add(port);
-		    	}
-		    } catch (IOException e) {
-		    	
-		    }
-		}
-	};
-
-	private void scanLeDevice(final boolean enable) {
-		if (enable) {
-			// Stops scanning after a pre-defined scan period.
-			handler.postDelayed(new Runnable() {
-				@Override
-				public void run() {
-					mScanning = false;
-					adapter.stopLeScan(mLeScanCallback);
-				}
-			}, SCAN_PERIOD);
-
-			mScanning = true;
-			adapter.startLeScan(mLeScanCallback);
-		} else {
-			mScanning = false;
-			adapter.stopLeScan(mLeScanCallback);
+	@Override
+	public void onDeviceFound(BluetoothDevice device, int rssi) {
+		try {
+			// the device may already be in the MultiPort if it expired
+			// from the scanner's cache while connected
+			if (!contains(device.getAddress())) {
+				BLEPort port = new BLEPort(device.getAddress(), context, device);
+				Log.d(TAG, "Add new BLE Port: " + port.toString());
+				add(port);
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "Failed to create BLE port " + device.getAddress(), e);
 		}
 	}
 
-
-
-
+	@Override
+	protected void onPeerRemoved(AndroidPort port) {
+		final String address = port.toString();
+		final int rssi = scanner.getRssi(address);
+		if (rssi != Integer.MIN_VALUE)
+			Log.i(TAG, "Lost BLE peer " + address + ", last rssi=" + rssi);
+
+		// report the device again when it is seen next time, so it
+		// gets reconnected
+		scanner.forget(address);
+	}
 
 	@Override
 	public void close() {
-
+		scanner.stop();
 		super.close();
 	}
 
 	@Override
 	public int getState() {
+		// remove failed peers, but keep scanning for new ones
+		super.getState();
 		return STATE_READY;
 //		return super.getState();
 	}
@@ -30,7 +30,8 @@ import ioio.lib.api.DigitalInput;
 import ioio.lib.api.exception.ConnectionLostException;
 
 /**
- * A driver for the BMP085 pressure sensor, connected via IOIO.
+ * A driver for the BMP085 pressure sensor, connected via IOIO.  The
+ * TWI bus may be shared with other drivers, see #TwiBus.
  *
  * @see http://www.bosch-sensortec.com/content/language1/html/3477.htm
  */
@@ -86,7 +87,7 @@ final class BMP085 extends Thread {
 
   private byte[] response = new byte[3];
 
-  private TwiMaster twi;
+  private final TwiBus bus;
   private DigitalInput eoc;
   private final int oversampling;
   private final Listener listener;
@@ -106,7 +107,7 @@ final class BMP085 extends Thread {
     throws ConnectionLostException {
     super("BMP085");
 
-    twi = ioio.openTwiMaster(twiNum, TwiMaster.Rate.RATE_1MHz, false);
+    bus = TwiBus.acquire(ioio, twiNum, TwiMaster.Rate.RATE_1MHz);
     eoc = ioio.openDigitalInput(eocPin);
 
     oversampling = _oversampling;
@@ -118,9 +119,6 @@ final class BMP085 extends Thread {
   }
 
   public void close() {
-    if (twi != null)
-      twi.close();
-
     if (eoc != null)
       eoc.close();
 
@@ -130,6 +128,8 @@ final class BMP085 extends Thread {
       join();
     } catch (InterruptedException e) {
     }
+
+    bus.release();
   }
 
   private static int readU16BE(byte[] data, int offset) {
@@ -149,7 +149,7 @@ final class BMP085 extends Thread {
     throws ConnectionLostException, InterruptedException {
     /* is it a BMP085 sensor? */
     byte[] responseChipID = new byte[1];
-    twi.writeRead(BMP085_DEVICE_ID, false,
+    bus.writeRead(BMP085_DEVICE_ID,
                   requestChipID, requestChipID.length,
                   responseChipID, responseChipID.length);
     if (responseChipID[0] != BMP085_CHIP_ID) {
@@ -159,7 +159,7 @@ final class BMP085 extends Thread {
     }
 
     /* read the calibration coefficients */
-    twi.writeRead(BMP085_DEVICE_ID, false,
+    bus.writeRead(BMP085_DEVICE_ID,
                   requestParameters, requestParameters.length,
                   responseParameters, responseParameters.length);
 
@@ -179,13 +179,13 @@ final class BMP085 extends Thread {
 
   private void readSensor(byte[] request, byte[] response, int responseLength)
     throws ConnectionLostException, InterruptedException {
-    twi.writeRead(BMP085_DEVICE_ID, false,
+    bus.writeRead(BMP085_DEVICE_ID,
                   request, request.length, response, 0);
 
     /* wait until the new value becomes ready */
     eoc.waitForValue(true);
 
-    twi.writeRead(BMP085_DEVICE_ID, false,
+    bus.writeRead(BMP085_DEVICE_ID,
                   requestValue, requestValue.length,
                   response, responseLength);
   }
@@ -118,7 +118,7 @@ final class BluetoothHelper {
 
       BluetoothSocket socket =
         device.createRfcommSocketToServiceRecord(THE_UUID);
-      return new BluetoothClientPort(socket);
+      return CapturePort.wrap(new BluetoothClientPort(socket));
     } catch (Exception e) {
       Log.e(TAG, "Failed to connect to Bluetooth", e);
       return null;
@@ -130,7 +130,7 @@ final class BluetoothHelper {
       return null;
 
     try {
-      return new BluetoothServerPort(adapter, THE_UUID);
+      return CapturePort.wrap(new BluetoothServerPort(adapter, THE_UUID));
     } catch (Exception e) {
       Log.e(TAG, "Failed to create Bluetooth server", e);
       return null;
@@ -30,6 +30,34 @@ import android.bluetooth.BluetoothSocket;
  * An #AndroidPort implementation for a Bluetooth RFCOMM connection.
  */
 class BluetoothPort extends AbstractAndroidPort {
+  /**
+   * Task declarations and FLARM configuration uploads are written in
+   * bursts; buffer enough of them to avoid blocking the caller.
+   */
+  private static final int OUTPUT_BUFFER_SIZE = 4096;
+
+  /**
+   * SPP delivers data a few bytes at a time; coalesce reads into
+   * larger chunks to save JNI calls, but never delay a complete line
+   * or more than a few milliseconds.
+   */
+  private static final int INPUT_BUFFER_SIZE = 1024;
+  private static final int COALESCE_THRESHOLD = 512;
+  private static final int COALESCE_LATENCY_MS = 5;
+
+  /**
+   * Keep draining the socket while the driver is busy parsing, or
+   * else the Bluetooth stack's buffers overflow.
+   */
+  private static final int DISPATCH_QUEUE_LENGTH = 32;
+
+  /**
+   * Combine multi-sentence outputs (e.g. PFLAC batches) into one
+   * RFCOMM packet instead of sending each sentence separately.
+   */
+  private static final int WRITE_COALESCE_DELAY_MS = 2;
+  private static final int WRITE_COALESCE_THRESHOLD = 512;
+
   private BluetoothSocket socket;
 
   BluetoothPort(BluetoothSocket _socket)
@@ -38,7 +66,11 @@ class BluetoothPort extends AbstractAndroidPort {
 
     socket = _socket;
 
-    super.set(socket.getInputStream(), socket.getOutputStream());
+    setInputCoalescing(COALESCE_THRESHOLD, COALESCE_LATENCY_MS, true);
+    setDecoupledInput(DISPATCH_QUEUE_LENGTH, InputDispatcher.OVERFLOW_BLOCK);
+    setWriteCoalescing(WRITE_COALESCE_DELAY_MS, WRITE_COALESCE_THRESHOLD);
+    super.set(socket.getInputStream(), INPUT_BUFFER_SIZE,
+              socket.getOutputStream(), OUTPUT_BUFFER_SIZE);
   }
 
   public void close() {
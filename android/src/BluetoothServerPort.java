@@ -81,12 +81,9 @@ final class BluetoothServerPort extends MultiPort
               BluetoothHelper.getDisplayString(socket));
         BluetoothPort port = new BluetoothPort(socket);
 
-        /* make writes non-blocking and potentially lossy, to avoid
-           blocking when one of the peers doesn't receive quickly
-           enough */
-        port.setWriteTimeout(0);
-
-        add(port);
+        /* writes are potentially lossy, to avoid falling behind when
+           one of the peers doesn't receive quickly enough */
+        add(port, PeerWriter.POLICY_DROP_OLDEST);
       } catch (IOException e) {
         Log.e(TAG, "Bluetooth server socket has failed", e);
         closeServerSocket();
@@ -0,0 +1,323 @@
+/*
+Copyright_License {
+
+  XCSoar Glide Computer - http://www.xcsoar.org/
+  Copyright (C) 2000-2014 The XCSoar Project
+  A detailed list of copyright holders can be found in the file "AUTHORS".
+
+  This program is free software; you can redistribute it and/or
+  modify it under the terms of the GNU General Public License
+  as published by the Free Software Foundation; either version 2
+  of the License, or (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software
+  Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+}
+*/
+
+package org.xcsoar;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import android.util.Log;
+
+/**
+ * A process-wide pool of byte arrays for the port layer, so buffers
+ * which are needed only for the duration of one I/O operation (copies
+ * of data to be queued or passed on) are recycled instead of being
+ * allocated each time.
+ *
+ * Arrays come in power-of-two size classes between #MIN_SIZE and
+ * #MAX_SIZE; obtain() may return an array which is larger than
+ * requested, so callers must track the valid length themselves.
+ * Larger requests are allocated normally and not pooled.
+ *
+ * Direct #ByteBuffer objects (obtainDirect(), releaseDirect()) are
+ * pooled the same way, separately from the arrays.  Their native
+ * memory is expensive to allocate and is freed only by the garbage
+ * collector, so long-lived per-port buffers should come from here.
+ *
+ * With leak detection enabled (see setLeakDetection()), every
+ * obtained array is tracked, and arrays which get garbage collected
+ * without having been released are logged together with the stack
+ * trace of their obtain() call.  That costs a stack trace per
+ * obtain(), so it is meant for debug builds only.
+ */
+final class BufferPool {
+  private static final String TAG = "XCSoar";
+
+  private static final int MIN_SHIFT = 6;
+  private static final int MAX_SHIFT = 16;
+
+  static final int MIN_SIZE = 1 << MIN_SHIFT;
+  static final int MAX_SIZE = 1 << MAX_SHIFT;
+
+  /**
+   * The maximum number of idle arrays per size class.
+   */
+  private static final int MAX_IDLE = 32;
+
+  /**
+   * The maximum number of idle bytes per size class; limits the
+   * number of large arrays kept around.
+   */
+  private static final int MAX_IDLE_BYTES = 256 * 1024;
+
+  /**
+   * The idle buffers (arrays or direct buffers) of one size class,
+   * used as a stack.
+   */
+  private static final class SizeClass {
+    final int size;
+    final Object[] idle;
+    int nIdle;
+
+    SizeClass(int _size) {
+      size = _size;
+      idle = new Object[Math.max(1, Math.min(MAX_IDLE,
+                                             MAX_IDLE_BYTES / _size))];
+    }
+
+    synchronized Object poll() {
+      if (nIdle == 0)
+        return null;
+
+      Object buffer = idle[--nIdle];
+      idle[nIdle] = null;
+      return buffer;
+    }
+
+    synchronized void offer(Object buffer) {
+      if (nIdle < idle.length)
+        idle[nIdle++] = buffer;
+    }
+  }
+
+  private static SizeClass[] createClasses() {
+    SizeClass[] result = new SizeClass[MAX_SHIFT - MIN_SHIFT + 1];
+    for (int i = 0; i < result.length; ++i)
+      result[i] = new SizeClass(MIN_SIZE << i);
+    return result;
+  }
+
+  private static final SizeClass[] classes = createClasses();
+  private static final SizeClass[] directClasses = createClasses();
+
+  private static final AtomicLong allocations = new AtomicLong();
+
+  /**
+   * Remembers where an array was obtained; enqueued in #collected
+   * when the array becomes garbage.
+   */
+  private static final class Tracker extends WeakReference<Object> {
+    final Throwable origin;
+
+    Tracker(Object buffer, ReferenceQueue<Object> queue) {
+      super(buffer, queue);
+      origin = new Throwable("Buffer obtained here");
+    }
+  }
+
+  private static volatile boolean leakDetection;
+
+  private static final ReferenceQueue<Object> collected =
+    new ReferenceQueue<Object>();
+
+  /**
+   * Trackers of the arrays which have been obtained but not yet
+   * released.  Protected by its own monitor.
+   */
+  private static final ArrayList<Tracker> outstanding =
+    new ArrayList<Tracker>();
+
+  private BufferPool() {}
+
+  /**
+   * Enable or disable leak detection.  Should be called once at
+   * startup, before any port is opened.
+   */
+  static void setLeakDetection(boolean enabled) {
+    leakDetection = enabled;
+  }
+
+  /**
+   * Returns the size class index for the specified size, or -1 if it
+   * is too large to be pooled.
+   */
+  private static int classIndex(int size) {
+    if (size <= MIN_SIZE)
+      return 0;
+    if (size > MAX_SIZE)
+      return -1;
+
+    /* round up to the next power of two */
+    final int shift = 32 - Integer.numberOfLeadingZeros(size - 1);
+    return shift - MIN_SHIFT;
+  }
+
+  /**
+   * Obtain an array of at least the specified size.  It should be
+   * passed to release() when it is no longer used.  Its contents are
+   * undefined.
+   */
+  static byte[] obtain(int size) {
+    final int i = classIndex(size);
+    byte[] buffer = null;
+    if (i >= 0) {
+      buffer = (byte[])classes[i].poll();
+      if (buffer == null) {
+        buffer = new byte[classes[i].size];
+        allocations.incrementAndGet();
+      }
+    } else {
+      buffer = new byte[size];
+      allocations.incrementAndGet();
+    }
+
+    track(buffer);
+    return buffer;
+  }
+
+  /**
+   * Obtain a direct buffer with a capacity of at least the specified
+   * size, cleared (position 0, limit at its capacity, big endian).
+   * It should be passed to releaseDirect() when it is no longer used.
+   * Its contents are undefined.
+   */
+  static ByteBuffer obtainDirect(int size) {
+    final int i = classIndex(size);
+    ByteBuffer buffer = null;
+    if (i >= 0) {
+      buffer = (ByteBuffer)directClasses[i].poll();
+      if (buffer == null) {
+        buffer = ByteBuffer.allocateDirect(directClasses[i].size);
+        allocations.incrementAndGet();
+      }
+    } else {
+      buffer = ByteBuffer.allocateDirect(size);
+      allocations.incrementAndGet();
+    }
+
+    track(buffer);
+    return buffer;
+  }
+
+  private static void track(Object buffer) {
+    if (leakDetection) {
+      reportLeaks();
+
+      synchronized(outstanding) {
+        outstanding.add(new Tracker(buffer, collected));
+      }
+    }
+  }
+
+  /**
+   * Return an array obtained from obtain() to the pool.  The caller
+   * must not use it afterwards.  Accepts null.
+   */
+  static void release(byte[] buffer) {
+    if (buffer == null)
+      return;
+
+    if (leakDetection && !untrack(buffer)) {
+      Log.w(TAG, "Buffer released twice or not obtained from the pool",
+            new Throwable());
+      /* don't let two users share it */
+      return;
+    }
+
+    final int i = classIndex(buffer.length);
+    if (i >= 0 && classes[i].size == buffer.length)
+      classes[i].offer(buffer);
+  }
+
+  /**
+   * Return a buffer obtained from obtainDirect() to the pool.  The
+   * caller must not use it afterwards.  Accepts null.
+   */
+  static void releaseDirect(ByteBuffer buffer) {
+    if (buffer == null)
+      return;
+
+    if (leakDetection && !untrack(buffer)) {
+      Log.w(TAG, "Buffer released twice or not obtained from the pool",
+            new Throwable());
+      /* don't let two users share it */
+      return;
+    }
+
+    final int i = classIndex(buffer.capacity());
+    if (i >= 0 && directClasses[i].size == buffer.capacity()) {
+      buffer.clear();
+      buffer.order(ByteOrder.BIG_ENDIAN);
+      directClasses[i].offer(buffer);
+    }
+  }
+
+  /**
+   * @return false if the array was not being tracked
+   */
+  private static boolean untrack(Object buffer) {
+    synchronized(outstanding) {
+      for (int i = outstanding.size() - 1; i >= 0; --i) {
+        Tracker t = outstanding.get(i);
+        if (t.get() == buffer) {
+          outstanding.remove(i);
+          /* don't let it be enqueued */
+          t.clear();
+          return true;
+        }
+      }
+    }
+
+    return false;
+  }
+
+  /**
+   * Log arrays which have been garbage collected without having been
+   * released.
+   */
+  private static void reportLeaks() {
+    Object ref;
+    while ((ref = collected.poll()) != null) {
+      Tracker t = (Tracker)ref;
+      boolean leaked;
+      synchronized(outstanding) {
+        leaked = outstanding.remove(t);
+      }
+
+      if (leaked)
+        Log.w(TAG, "I/O buffer was not released", t.origin);
+    }
+  }
+
+  /**
+   * The number of arrays and direct buffers which had to be allocated
+   * because the pool had none of that size.
+   */
+  static long getAllocationCount() {
+    return allocations.get();
+  }
+
+  /**
+   * The number of arrays and direct buffers which have been obtained
+   * but not released.
+   * Only available with leak detection.
+   */
+  static int getOutstandingCount() {
+    synchronized(outstanding) {
+      return outstanding.size();
+    }
+  }
+}
@@ -0,0 +1,214 @@
+/*
+Copyright_License {
+
+  XCSoar Glide Computer - http://www.xcsoar.org/
+  Copyright (C) 2000-2014 The XCSoar Project
+  A detailed list of copyright holders can be found in the file "AUTHORS".
+
+  This program is free software; you can redistribute it and/or
+  modify it under the terms of the GNU General Public License
+  as published by the Free Software Foundation; either version 2
+  of the License, or (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software
+  Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+}
+*/
+
+package org.xcsoar;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import android.util.Log;
+
+/**
+ * An append-only binary recording of port traffic.  The file is
+ * written through a memory mapping which grows in segments, so each
+ * record costs one copy into the mapping and no system call.
+ *
+ * File format (little endian): a 16 byte file header (#MAGIC,
+ * #VERSION, 8 reserved bytes), followed by records.  Each record
+ * consists of a 16 byte header (payload length, direction, time in
+ * nanoseconds, see InputChunk.now()) and the payload, padded to a
+ * multiple of 4 bytes.  Received data is recorded with its arrival
+ * time, i.e. one record per read, even if several reads were
+ * coalesced before they were delivered.
+ *
+ * The length is stored last, after the rest of the record, and the
+ * mapping is zero-filled, so a reader stops at the first record with
+ * a zero length.  Even if the process crashes, the file contains
+ * only complete records (the kernel still writes back the mapped
+ * pages).
+ */
+final class CaptureFile {
+  private static final String TAG = "XCSoar";
+
+  static final int MAGIC = 0x50414358; // "XCAP"
+  static final int VERSION = 1;
+
+  static final int FILE_HEADER_SIZE = 16;
+  static final int RECORD_HEADER_SIZE = 16;
+
+  /**
+   * Data received from the device.
+   */
+  static final int DIRECTION_IN = 0;
+
+  /**
+   * Data written to the device.
+   */
+  static final int DIRECTION_OUT = 1;
+
+  private static final int SEGMENT_SIZE = 1024 * 1024;
+
+  private final RandomAccessFile file;
+  private final FileChannel channel;
+
+  /**
+   * The current segment.  Its position is the end of the last
+   * complete record.
+   */
+  private MappedByteBuffer segment;
+
+  /**
+   * The file offset of #segment.
+   */
+  private long segmentOffset;
+
+  private final String name;
+
+  private boolean closed;
+
+  CaptureFile(File path) throws IOException {
+    name = path.getPath();
+    file = new RandomAccessFile(path, "rw");
+    channel = file.getChannel();
+
+    try {
+      map(0, SEGMENT_SIZE);
+    } catch (IOException e) {
+      file.close();
+      throw e;
+    }
+
+    segment.putInt(4, VERSION);
+    segment.putInt(0, MAGIC);
+    segment.position(FILE_HEADER_SIZE);
+  }
+
+  private void map(long offset, int size) throws IOException {
+    segment = channel.map(FileChannel.MapMode.READ_WRITE, offset, size);
+    segment.order(ByteOrder.LITTLE_ENDIAN);
+    segmentOffset = offset;
+  }
+
+  private static int padding(int length) {
+    return -length & 3;
+  }
+
+  /**
+   * Make sure the current segment has room for a record.
+   */
+  private void reserve(int size) throws IOException {
+    if (segment.remaining() >= size)
+      return;
+
+    /* the rest of the current segment stays zero, which marks the
+       end of the file for the reader; that is why records never
+       cross a segment boundary */
+    long offset = segmentOffset + segment.position();
+    map(offset, Math.max(SEGMENT_SIZE, size));
+  }
+
+  private int begin(int direction, int length, long time)
+    throws IOException {
+    reserve(RECORD_HEADER_SIZE + length + padding(length));
+
+    final int start = segment.position();
+    segment.putInt(start + 4, direction);
+    segment.putLong(start + 8, time);
+    segment.position(start + RECORD_HEADER_SIZE);
+    return start;
+  }
+
+  private void commit(int start, int length) {
+    segment.position(segment.position() + padding(length));
+
+    /* publish the record */
+    segment.putInt(start, length);
+  }
+
+  private void failed(IOException e) {
+    Log.e(TAG, "Failed to write " + name, e);
+    closed = true;
+  }
+
+  synchronized void append(int direction, byte[] data, int offset,
+                           int length) {
+    if (closed || length <= 0)
+      return;
+
+    try {
+      final int start = begin(direction, length, InputChunk.now());
+      segment.put(data, offset, length);
+      commit(start, length);
+    } catch (IOException e) {
+      failed(e);
+    }
+  }
+
+  /**
+   * Append data from a #ByteBuffer, starting at its current position
+   * (which is not modified).
+   */
+  void append(int direction, ByteBuffer data, int length) {
+    append(direction, data, length, InputChunk.now());
+  }
+
+  /**
+   * Like append(int, ByteBuffer, int), but record the specified time
+   * instead of the current one.
+   *
+   * @param time the time the data was transferred (see
+   * InputChunk.now())
+   */
+  synchronized void append(int direction, ByteBuffer data, int length,
+                           long time) {
+    if (closed || length <= 0)
+      return;
+
+    try {
+      final int start = begin(direction, length, time);
+      ByteBuffer src = data.duplicate();
+      src.limit(src.position() + length);
+      segment.put(src);
+      commit(start, length);
+    } catch (IOException e) {
+      failed(e);
+    }
+  }
+
+  synchronized void close() {
+    if (!channel.isOpen())
+      return;
+
+    closed = true;
+    segment.force();
+
+    try {
+      file.close();
+    } catch (IOException e) {
+    }
+  }
+}
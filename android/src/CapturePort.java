@@ -0,0 +1,166 @@
+/*
+Copyright_License {
+
+  XCSoar Glide Computer - http://www.xcsoar.org/
+  Copyright (C) 2000-2014 The XCSoar Project
+  A detailed list of copyright holders can be found in the file "AUTHORS".
+
+  This program is free software; you can redistribute it and/or
+  modify it under the terms of the GNU General Public License
+  as published by the Free Software Foundation; either version 2
+  of the License, or (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software
+  Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+}
+*/
+
+package org.xcsoar;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import android.util.Log;
+
+/**
+ * A proxy which records all traffic of another #AndroidPort in a
+ * #CaptureFile.  Recordings can be played back with #ReplayPort.
+ */
+final class CapturePort extends ProxyAndroidPort
+  implements TimedInputListener {
+  private static final String TAG = "XCSoar";
+
+  /**
+   * If this directory exists, all ports opened by the helper classes
+   * are recorded into it.
+   */
+  private static volatile File directory;
+
+  private final CaptureFile file;
+
+  private volatile InputListener listener;
+
+  CapturePort(AndroidPort port, CaptureFile _file) {
+    file = _file;
+    super.setListener(this);
+    setPort(port);
+  }
+
+  /**
+   * Enable capturing of newly opened ports, as long as the specified
+   * directory exists.
+   */
+  static void setDirectory(File _directory) {
+    directory = _directory;
+  }
+
+  static File getDirectory() {
+    return directory;
+  }
+
+  /**
+   * Wrap the port in a #CapturePort if capturing is enabled.
+   *
+   * @return the new #CapturePort or the port itself
+   */
+  static AndroidPort wrap(AndroidPort port) {
+    File d = directory;
+    if (port == null || d == null || !d.isDirectory())
+      return port;
+
+    String name = port.toString().replaceAll("[^A-Za-z0-9_-]", "_");
+    String date =
+      new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+    File path = new File(d, name + "-" + date + ".xcap");
+
+    try {
+      CaptureFile file = new CaptureFile(path);
+      Log.i(TAG, "Capturing " + port + " to " + path);
+      return new CapturePort(port, file);
+    } catch (IOException e) {
+      Log.e(TAG, "Failed to create " + path, e);
+      return port;
+    }
+  }
+
+  @Override public void setListener(InputListener _listener) {
+    listener = _listener;
+  }
+
+  @Override public void close() {
+    super.close();
+    file.close();
+  }
+
+  @Override public int write(byte[] data, int length) {
+    int nbytes = super.write(data, length);
+    if (nbytes > 0)
+      file.append(CaptureFile.DIRECTION_OUT, data, 0, nbytes);
+    return nbytes;
+  }
+
+  @Override public int write(ByteBuffer data, int length, int priority) {
+    int nbytes = super.write(data, length, priority);
+    if (nbytes > 0)
+      file.append(CaptureFile.DIRECTION_OUT, data, nbytes);
+    return nbytes;
+  }
+
+  @Override public int writeFully(ByteBuffer data, int length, int priority,
+                                  int timeout_ms) {
+    int nbytes = super.writeFully(data, length, priority, timeout_ms);
+    if (nbytes > 0)
+      file.append(CaptureFile.DIRECTION_OUT, data, nbytes);
+    return nbytes;
+  }
+
+  @Override public void dataReceived(byte[] data, int length) {
+    file.append(CaptureFile.DIRECTION_IN, data, 0, length);
+
+    InputListener l = listener;
+    if (l != null)
+      l.dataReceived(data, length);
+  }
+
+  private void capture(ByteBuffer buffer, int offset, int length) {
+    ByteBuffer b = buffer.duplicate();
+    b.position(offset);
+    file.append(CaptureFile.DIRECTION_IN, b, length);
+  }
+
+  @Override public void bufferReceived(ByteBuffer buffer,
+                                       int offset, int length) {
+    capture(buffer, offset, length);
+    InputChunk.deliver(listener, buffer, offset, length);
+  }
+
+  /**
+   * Each segment is recorded separately, with its arrival time, so
+   * a #ReplayPort reproduces the timing of the original reads.
+   */
+  @Override public void timedBufferReceived(ByteBuffer buffer,
+                                            int offset, int length,
+                                            long time, int[] segments,
+                                            int nSegments) {
+    ByteBuffer b = buffer.duplicate();
+    int start = 0;
+    for (int i = 0; i < nSegments; ++i) {
+      final int end = segments[i * 2];
+      b.position(offset + start);
+      file.append(CaptureFile.DIRECTION_IN, b, end - start,
+                  time + segments[i * 2 + 1] * 1000L);
+      start = end;
+    }
+
+    InputChunk.deliver(listener, buffer, offset, length,
+                       time, segments, nSegments);
+  }
+}
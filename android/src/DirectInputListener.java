@@ -0,0 +1,41 @@
+/*
+Copyright_License {
+
+  XCSoar Glide Computer - http://www.xcsoar.org/
+  Copyright (C) 2000-2014 The XCSoar Project
+  A detailed list of copyright holders can be found in the file "AUTHORS".
+
+  This program is free software; you can redistribute it and/or
+  modify it under the terms of the GNU General Public License
+  as published by the Free Software Foundation; either version 2
+  of the License, or (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software
+  Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+}
+*/
+
+package org.xcsoar;
+
+import java.nio.ByteBuffer;
+
+/**
+ * An #InputListener variant which receives data in a direct
+ * #ByteBuffer.  Native code can access its contents with
+ * GetDirectBufferAddress(), without copying or pinning a Java array.
+ */
+interface DirectInputListener extends InputListener {
+  /**
+   * @param buffer a direct buffer; it is owned by the caller and will
+   * be reused after this method returns
+   * @param offset the position of the first received byte
+   * @param length the number of bytes that were received
+   */
+  void bufferReceived(ByteBuffer buffer, int offset, int length);
+}
@@ -0,0 +1,375 @@
+/*
+Copyright_License {
+
+  XCSoar Glide Computer - http://www.xcsoar.org/
+  Copyright (C) 2000-2014 The XCSoar Project
+  A detailed list of copyright holders can be found in the file "AUTHORS".
+
+  This program is free software; you can redistribute it and/or
+  modify it under the terms of the GNU General Public License
+  as published by the Free Software Foundation; either version 2
+  of the License, or (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software
+  Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+}
+*/
+
+package org.xcsoar;
+
+import java.util.LinkedList;
+import android.util.Log;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+
+/**
+ * Serialises the GATT operations of one #BLEPort connection.  Android
+ * allows only one outstanding GATT operation per connection; every
+ * operation is submitted here, and the next one is submitted from the
+ * completion callback (onDescriptorWrite(), onCharacteristicWrite()).
+ *
+ * Outbound data is collected in a byte FIFO, so write() never blocks;
+ * small writes are coalesced and cut into chunks of up to (MTU - 3)
+ * bytes.  If the characteristic supports it, chunks are sent as write
+ * without response, which is limited only by the link and the stack's
+ * buffers.
+ *
+ * If a completion callback does not arrive within #COMPLETION_TIMEOUT_MS,
+ * the operation is considered lost: descriptor writes are submitted
+ * again, and outbound data continues with the next chunk.
+ */
+final class GattQueue {
+	private static final String TAG = "XCSoar";
+
+	/**
+	 * The capacity of the outbound FIFO [bytes].
+	 */
+	static final int BUFFER_SIZE = 16384;
+
+	/**
+	 * How long to wait before retrying when the stack rejects an
+	 * operation? [ms]
+	 */
+	private static final int RETRY_DELAY_MS = 10;
+
+	/**
+	 * How long to wait for the completion callback of an operation
+	 * before giving up on it? [ms]
+	 */
+	private static final int COMPLETION_TIMEOUT_MS = 2000;
+
+	private final String name;
+	private final Handler handler;
+	private final PortStatistics statistics;
+
+	/**
+	 * Outbound data which has not been submitted yet.
+	 */
+	private final RingBuffer buffer = new RingBuffer(BUFFER_SIZE);
+
+	/**
+	 * Descriptor writes; they are submitted before outbound data.
+	 */
+	private final LinkedList<BluetoothGattDescriptor> descriptors =
+		new LinkedList<BluetoothGattDescriptor>();
+
+	/**
+	 * The connection, or null while disconnected.
+	 */
+	private BluetoothGatt gatt;
+
+	/**
+	 * The characteristic which outbound data is written to, or null if
+	 * it is not known yet.
+	 */
+	private BluetoothGattCharacteristic target;
+
+	private int maxPayload = BLEPort.DEFAULT_MTU - 3;
+
+	/**
+	 * A chunk array of #maxPayload bytes, reused for full chunks.  The
+	 * stack copies the value in writeCharacteristic().
+	 */
+	private byte[] fullChunk;
+
+	/**
+	 * Is an operation outstanding?
+	 */
+	private boolean busy;
+
+	/**
+	 * When was the outstanding operation submitted?
+	 * [SystemClock.uptimeMillis()]
+	 */
+	private long busySince;
+
+	/**
+	 * The outstanding descriptor write, or null if the outstanding
+	 * operation is a characteristic write.  It is submitted again if
+	 * its completion callback gets lost.
+	 */
+	private BluetoothGattDescriptor busyDescriptor;
+
+	private boolean retryScheduled;
+
+	/**
+	 * Has write() dropped data since the FIFO last had room for a whole
+	 * write?  Used to log only once per overflow.
+	 */
+	private boolean overflowing;
+
+	/*
+	 * All attributes above are protected by the object monitor.
+	 */
+
+	/**
+	 * @param _statistics counters to be updated by this object
+	 */
+	GattQueue(String _name, Handler _handler, PortStatistics _statistics) {
+		name = _name;
+		handler = _handler;
+		statistics = _statistics;
+	}
+
+	/**
+	 * Bind to a new connection.  Outbound data is held until
+	 * setTarget() is called.
+	 */
+	synchronized void connect(BluetoothGatt _gatt) {
+		gatt = _gatt;
+		target = null;
+		setIdle();
+		descriptors.clear();
+	}
+
+	/**
+	 * The connection was lost: forget all operations which have not
+	 * completed.  Outbound data is kept for the next connection.
+	 */
+	synchronized void disconnect() {
+		gatt = null;
+		target = null;
+		setIdle();
+		descriptors.clear();
+		notifyAll();
+	}
+
+	/**
+	 * Start sending outbound data to the specified characteristic.
+	 *
+	 * @param mtu the negotiated ATT MTU
+	 */
+	void setTarget(BluetoothGattCharacteristic characteristic, int mtu) {
+		synchronized (this) {
+			target = characteristic;
+			if (maxPayload != mtu - 3) {
+				maxPayload = mtu - 3;
+				fullChunk = null;
+			}
+
+			final int properties = characteristic.getProperties();
+			characteristic.setWriteType((properties & BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE) != 0
+					? BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE
+					: BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
+		}
+
+		submit();
+	}
+
+	void writeDescriptor(BluetoothGattDescriptor descriptor) {
+		synchronized (this) {
+			descriptors.add(descriptor);
+		}
+
+		submit();
+	}
+
+	/**
+	 * Queue outbound data.  Never blocks.  Data which does not fit into
+	 * the FIFO is dropped and counted as PortStatistics.DROPPED_BYTES.
+	 *
+	 * @return the number of bytes that were queued; less than length if
+	 * the FIFO is full
+	 */
+	int write(byte[] data, int length) {
+		final int n;
+		boolean logOverflow = false;
+		synchronized (this) {
+			n = buffer.put(data, 0, length);
+			if (n < length) {
+				logOverflow = !overflowing;
+				overflowing = true;
+			} else
+				overflowing = false;
+		}
+
+		if (n < length) {
+			statistics.add(PortStatistics.DROPPED_BYTES, length - n);
+			if (logOverflow)
+				Log.w(TAG, "BLE output buffer of " + name
+						+ " full, dropping data");
+		}
+
+		submit();
+		return n;
+	}
+
+	/**
+	 * Wait until all outbound data has been written.
+	 *
+	 * @return true on success, false on timeout or if the connection
+	 * was lost
+	 */
+	synchronized boolean awaitEmpty(int timeout_ms) {
+		final long deadline = System.currentTimeMillis() + timeout_ms;
+
+		while (!buffer.isEmpty() || busy) {
+			if (gatt == null)
+				return false;
+
+			final long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0)
+				return false;
+
+			try {
+				wait(remaining);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * The outstanding operation has completed; submit the next one.
+	 * Called from onDescriptorWrite() and onCharacteristicWrite().
+	 */
+	void onComplete(int status) {
+		if (status != BluetoothGatt.GATT_SUCCESS)
+			Log.w(TAG, "GATT operation on " + name + " failed: " + status);
+
+		synchronized (this) {
+			setIdle();
+			notifyAll();
+		}
+
+		submit();
+	}
+
+	private void setBusy(BluetoothGattDescriptor descriptor) {
+		busy = true;
+		busySince = SystemClock.uptimeMillis();
+		busyDescriptor = descriptor;
+		handler.postDelayed(timeoutRunnable, COMPLETION_TIMEOUT_MS);
+	}
+
+	private void setIdle() {
+		if (busy)
+			handler.removeCallbacks(timeoutRunnable);
+
+		busy = false;
+		busyDescriptor = null;
+	}
+
+	/**
+	 * The completion callback of the outstanding operation did not
+	 * arrive in time; assume it got lost.
+	 */
+	private final Runnable timeoutRunnable = new Runnable() {
+		@Override
+		public void run() {
+			synchronized (GattQueue.this) {
+				/* the operation may have completed (and a new one been
+				   submitted) while this Runnable was already on its way */
+				if (!busy || SystemClock.uptimeMillis() - busySince <
+						COMPLETION_TIMEOUT_MS)
+					return;
+
+				Log.w(TAG, "GATT operation on " + name + " timed out");
+
+				if (busyDescriptor != null)
+					descriptors.addFirst(busyDescriptor);
+
+				setIdle();
+				notifyAll();
+			}
+
+			submit();
+		}
+	};
+
+	private final Runnable retryRunnable = new Runnable() {
+		@Override
+		public void run() {
+			synchronized (GattQueue.this) {
+				retryScheduled = false;
+			}
+
+			submit();
+		}
+	};
+
+	/**
+	 * Submit the next operation unless one is outstanding.
+	 */
+	private synchronized void submit() {
+		if (busy || gatt == null)
+			return;
+
+		BluetoothGattDescriptor d = descriptors.peek();
+		if (d != null) {
+			if (gatt.writeDescriptor(d)) {
+				descriptors.poll();
+				setBusy(d);
+			} else
+				scheduleRetry();
+			return;
+		}
+
+		if (target == null || buffer.isEmpty())
+			return;
+
+		/* collect as much as fits into one packet; the FIFO may wrap
+		   around, so copy at most two segments; the data is consumed
+		   only after the stack has accepted it */
+		final int size = Math.min(buffer.size(), maxPayload);
+		byte[] chunk;
+		if (size == maxPayload) {
+			if (fullChunk == null)
+				fullChunk = new byte[maxPayload];
+			chunk = fullChunk;
+		} else
+			chunk = new byte[size];
+
+		final int first = Math.min(buffer.readable(), size);
+		System.arraycopy(buffer.array(), buffer.readOffset(), chunk, 0, first);
+		if (first < size)
+			System.arraycopy(buffer.array(), 0, chunk, first, size - first);
+
+		target.setValue(chunk);
+		if (gatt.writeCharacteristic(target)) {
+			buffer.consume(size);
+			setBusy(null);
+		} else
+			// the stack is congested; try again later
+			scheduleRetry();
+	}
+
+	private void scheduleRetry() {
+		if (!retryScheduled) {
+			retryScheduled = true;
+			handler.postDelayed(retryRunnable, RETRY_DELAY_MS);
+		}
+	}
+}
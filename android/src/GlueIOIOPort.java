@@ -38,8 +38,26 @@ import ioio.lib.api.exception.ConnectionLostException;
 final class GlueIOIOPort extends IOIOPort implements IOIOConnectionListener {
   private static final String TAG = "XCSoar";
 
+  /**
+   * How long does setBaudRate() wait for pending output to be
+   * submitted with the old baud rate? [ms]
+   */
+  private static final int BAUD_DRAIN_TIMEOUT_MS = 2000;
+
   private IOIOConnectionHolder holder;
 
+  /**
+   * The IOIO board this port is connected to, or null.  Protected by
+   * #uartLock.
+   */
+  private IOIO ioio;
+
+  /**
+   * Serialises opening and closing the UART between the IOIO thread
+   * (onIOIOConnect(), onIOIODisconnect()) and setBaudRate().
+   */
+  private final Object uartLock = new Object();
+
   /**
    * Is the #IOIOConnectionHolder currently connected to an IOIO
    * board?
@@ -48,6 +66,9 @@ final class GlueIOIOPort extends IOIOPort implements IOIOConnectionListener {
 
   private boolean constructing;
 
+  private int baudSwitches;
+  private long totalSwitchTime, maxSwitchTime;
+
   private final int inPin;
   private final int outPin;
   private int baudrate = 0;
@@ -78,37 +99,54 @@ final class GlueIOIOPort extends IOIOPort implements IOIOConnectionListener {
     _holder.addListener(this);
   }
 
+  /**
+   * Open the UART with the current baud rate.  Caller must hold
+   * #uartLock.
+   *
+   * @return false if the IOIO has rejected the parameters
+   */
+  private boolean openUart(IOIO ioio) throws ConnectionLostException {
+    Uart uart;
+    try {
+      uart = ioio.openUart(inPin, outPin, baudrate, Uart.Parity.NONE,
+                           Uart.StopBits.ONE);
+    } catch (IllegalArgumentException e) {
+      Log.w(TAG, "IOIO.openUart() failed", e);
+      return false;
+    }
+
+    set(uart);
+    return true;
+  }
+
   @Override public void onIOIOConnect(IOIO ioio)
     throws ConnectionLostException, InterruptedException {
 
-    try {
-      synchronized(this) {
-        connected = true;
-        constructing = true;
-      }
-
-      Uart uart;
+    synchronized(uartLock) {
       try {
-        uart = ioio.openUart(inPin, outPin, baudrate, Uart.Parity.NONE,
-                             Uart.StopBits.ONE);
-      } catch (IllegalArgumentException e) {
-        Log.w(TAG, "IOIO.openUart() failed", e);
-        return;
-      }
+        synchronized(this) {
+          connected = true;
+          constructing = true;
+        }
 
-      set(uart);
-    } finally {
-      synchronized(this) {
-        constructing = false;
-        notifyAll();
+        this.ioio = ioio;
+        openUart(ioio);
+      } finally {
+        synchronized(this) {
+          constructing = false;
+          notifyAll();
+        }
       }
     }
   }
 
   @Override public void onIOIODisconnect(IOIO ioio) {
-    connected = false;
+    synchronized(uartLock) {
+      connected = false;
+      this.ioio = null;
 
-    super.close();
+      super.close();
+    }
   }
 
   @Override public void close() {
@@ -137,31 +175,80 @@ final class GlueIOIOPort extends IOIOPort implements IOIOConnectionListener {
     return baudrate;
   }
 
+  /**
+   * Switch the baud rate by reopening only this UART on the IOIO
+   * board which is already connected; the other UARTs and devices
+   * on the same board are not affected.  Returns after the board has
+   * acknowledged the new configuration, so the caller may start I/O
+   * right away.
+   */
   @Override public boolean setBaudRate(int _baudrate) {
     if (_baudrate == baudrate)
       return true;
 
-    IOIOConnectionHolder holder = this.holder;
     if (holder == null)
       /* this port was already closed */
       return false;
 
-    final boolean wasConnected = connected;
+    final boolean wasConnected;
+    synchronized(this) {
+      wasConnected = connected;
+    }
 
-    baudrate = _baudrate;
-    holder.cycleListener(this);
+    /* submit pending output with the old baud rate; this must not be
+       done while holding uartLock, because a stalled UART would block
+       onIOIOConnect() and onIOIODisconnect() as well */
+    if (wasConnected && !drain(BAUD_DRAIN_TIMEOUT_MS)) {
+      Log.w(TAG, this + ": failed to drain before switching to " +
+            _baudrate + " baud");
+      return false;
+    }
+
+    synchronized(uartLock) {
+      baudrate = _baudrate;
+
+      final IOIO ioio = this.ioio;
+      if (ioio == null)
+        /* not connected; onIOIOConnect() will use the new baud
+           rate */
+        return true;
+
+      final long startTime = System.nanoTime();
+
+      synchronized(this) {
+        constructing = true;
+      }
 
-    if (wasConnected) {
       try {
-        /* wait until the port has been reconnected after a baud rate
-           change; onIOIOConnect() will be called in another thread, and
-           any attempt to do I/O before onIOIOConnect() has finished is
-           doomed to fail */
+        super.close();
+
+        if (!openUart(ioio))
+          return false;
+
+        /* wait until the IOIO has processed the request */
+        ioio.sync();
+      } catch (ConnectionLostException e) {
+        /* onIOIODisconnect() will clean up */
+        return false;
+      } catch (InterruptedException e) {
+        return false;
+      } finally {
         synchronized(this) {
-          wait(200);
+          constructing = false;
+          notifyAll();
         }
-      } catch (InterruptedException e) {
       }
+
+      final long duration = System.nanoTime() - startTime;
+      ++baudSwitches;
+      totalSwitchTime += duration;
+      if (duration > maxSwitchTime)
+        maxSwitchTime = duration;
+
+      Log.d(TAG, this + ": baud rate " + _baudrate + " set in " +
+            duration / 1000000 + " ms (avg " +
+            totalSwitchTime / baudSwitches / 1000000 + " ms, max " +
+            maxSwitchTime / 1000000 + " ms)");
     }
 
     return true;
@@ -24,6 +24,7 @@
 package org.xcsoar;
 
 import android.util.Log;
+import android.os.SystemClock;
 import ioio.lib.api.IOIO;
 import ioio.lib.api.TwiMaster;
 import ioio.lib.api.DigitalInput;
@@ -38,6 +39,9 @@ import ioio.lib.api.exception.ConnectionLostException;
  *
  * We use a slow 100 KHz I2C clock because of radio interference reasons.
  *
+ * Transactions go through the #TwiBus, which may be shared with other
+ * drivers; waiting for a conversion leaves the bus to them.
+ *
  */
 final class I2Cbaro extends Thread {
   interface Listener {
@@ -52,7 +56,17 @@ final class I2Cbaro extends Thread {
 
   private int type = 0;
   private int sample_rate;
-  private int sleep_time;
+
+  /**
+   * The sample period [ms].
+   */
+  private int period;
+
+  /**
+   * The SystemClock.elapsedRealtime() when the current sample was
+   * started.
+   */
+  private long cycleStart;
 
   /*
    * Then the simple things related to the BMP085
@@ -127,7 +141,18 @@ final class I2Cbaro extends Thread {
 
   static final byte oversampling5611 = CMD5611_ADC_4096;	// I see no reason to use anything else.
 
-  private TwiMaster h_twi;
+  /**
+   * The conversion time with #oversampling5611 [ms].
+   */
+  static final int CONVERSION5611_TIME = 11;
+
+  /**
+   * The conversion time with #oversampling085, used when there is no
+   * EOC pin [ms].
+   */
+  static final int CONVERSION085_TIME = 26;
+
+  private final TwiBus bus;
   private byte i2c_addr;
   private int flags;
   private final Listener listener;
@@ -171,7 +196,7 @@ final class I2Cbaro extends Thread {
     throws ConnectionLostException {
     super("I2Cbaro");
 
-    h_twi = ioio.openTwiMaster(twiNum & 0xff, TwiMaster.Rate.RATE_100KHz, false);
+    bus = TwiBus.acquire(ioio, twiNum & 0xff, TwiMaster.Rate.RATE_100KHz);
     listener = _listener;
     if ((twiNum & 0xff00) == 0)
       i2c_addr =  (byte)_i2c_addr;
@@ -188,15 +213,14 @@ final class I2Cbaro extends Thread {
   }
 
   public void close() {
-    if (h_twi != null)
-      h_twi.close();
-
     interrupt();
 
     try {
       join();
     } catch (InterruptedException e) {
     }
+
+    bus.release();
   }
 
   private int readU16BE(byte[] data, int offset) {
@@ -215,7 +239,7 @@ final class I2Cbaro extends Thread {
   private void reset5611()
     throws ConnectionLostException, InterruptedException {
 
-    h_twi.writeRead(i2c_addr, false, request5611Reset, request5611Reset.length, dummy, 0);
+    bus.writeRead(i2c_addr, request5611Reset, request5611Reset.length, dummy, 0);
     sleep(5);
   }
 
@@ -223,14 +247,14 @@ final class I2Cbaro extends Thread {
     throws ConnectionLostException, InterruptedException {
     /* is it a BMP085 sensor? */
     byte[] response085ChipID = new byte[1];
-    h_twi.writeRead(i2c_addr, false,
+    bus.writeRead(i2c_addr,
                   request085ChipID, request085ChipID.length,
                   response085ChipID, response085ChipID.length);
     if (response085ChipID[0] != BMP085_CHIP_ID)
       return false;
 
     /* read the calibration coefficients */
-    h_twi.writeRead(i2c_addr, false,
+    bus.writeRead(i2c_addr,
                   request085Parameters, request085Parameters.length,
                   response085Parameters, response085Parameters.length);
 
@@ -264,8 +288,8 @@ final class I2Cbaro extends Thread {
     for (int i = 0; i<8; i++) {
       response5611[0]=0;response5611[1]=0;response5611[2]=0;
       request5611Caldata[0] = (byte)(CMD5611_PROM_RD + 2*i);
-      h_twi.writeRead(i2c_addr, false, request5611Caldata, request5611Caldata.length, dummy, 0);
-      h_twi.writeRead(i2c_addr, false, dummy, 0, response5611, 2);
+      bus.writeRead(i2c_addr, request5611Caldata, request5611Caldata.length, dummy, 0);
+      bus.writeRead(i2c_addr, dummy, 0, response5611, 2);
       prom[i] = readU16BE(response5611, 0);
       if (prom[i] == 0) zeros++;
     }
@@ -286,17 +310,17 @@ final class I2Cbaro extends Thread {
 
   private void read085Sensor(byte[] request, byte[] response, int responseLength)
     throws ConnectionLostException, InterruptedException {
-    h_twi.writeRead(i2c_addr, false,
-                  request, request.length, dummy, 0);
+    bus.writeRead(i2c_addr, request, request.length, dummy, 0);
 
-     if (h_eoc != null)
-       h_eoc.waitForValue(true);
-     else
-       sleep(26);
+    long due = SystemClock.elapsedRealtime();
+    if (h_eoc != null)
+      h_eoc.waitForValue(true);
+    else
+      due += CONVERSION085_TIME;
 
-    h_twi.writeRead(i2c_addr, false,
-                  request085Value, request085Value.length,
-                  response, responseLength);
+    bus.submit(due, i2c_addr,
+               request085Value, request085Value.length,
+               response, responseLength).await();
   }
 
   private int getB5(int ut) {
@@ -347,9 +371,22 @@ final class I2Cbaro extends Thread {
     return pressure;
   }
 
+  /**
+   * Sleep until the next sample is due.
+   */
+  private void waitForNextCycle() throws InterruptedException {
+    final long delay = cycleStart + period - SystemClock.elapsedRealtime();
+    if (delay > 0)
+      sleep(delay);
+
+    cycleStart = SystemClock.elapsedRealtime();
+  }
+
   private int loop_count085 = 0;
   private int b5_085;
   private void loop085() throws ConnectionLostException, InterruptedException {
+    waitForNextCycle();
+
     if (loop_count085 % 10 == 0) {
       /* Start temp conversion but only every 10th loop. */
       read085Sensor(read085Temperature, response085, 2);
@@ -362,13 +399,18 @@ final class I2Cbaro extends Thread {
 
     listener.onI2CbaroValues(85, pressure_pa);
     loop_count085++;
-    sleep(sleep_time);
   }
 
-  private int read5611Sensor()
+  /**
+   * Read the ADC after the conversion has finished.  Both
+   * transactions are queued at once.
+   *
+   * @param due the end of the conversion
+   */
+  private int read5611Sensor(long due)
     throws ConnectionLostException, InterruptedException {
-    h_twi.writeRead(i2c_addr, false, request5611Value, request5611Value.length, dummy, 0);
-    h_twi.writeRead(i2c_addr, false, dummy, 0 , response5611, 3);
+    bus.submit(due, i2c_addr, request5611Value, request5611Value.length, dummy, 0);
+    bus.submit(due, i2c_addr, dummy, 0 , response5611, 3).await();
     return readU24BE(response5611, 0);
   }
 
@@ -381,21 +423,21 @@ final class I2Cbaro extends Thread {
 
     int D1, P=0;
 
+    waitForNextCycle();
+
     /* Start temp conversion but only every 10th loop. */
     if (loop_count5611 % 10 == 0) {
-	h_twi.writeRead(i2c_addr, false, request5611Temp, request5611Temp.length, dummy, 0);
-        sleep(11);
+        bus.writeRead(i2c_addr, request5611Temp, request5611Temp.length, dummy, 0);
         /* Read temp value and compute temperature */
-        dT = read5611Sensor() - C5s;
+        dT = read5611Sensor(SystemClock.elapsedRealtime() + CONVERSION5611_TIME) - C5s;
         TEMP = (int)(2000L + ((dT * C6) >> 23));
     }
 
     /* Start pressure conversion. */
-    h_twi.writeRead(i2c_addr, false, request5611Press, request5611Press.length, dummy, 0);
-    sleep(11);
+    bus.writeRead(i2c_addr, request5611Press, request5611Press.length, dummy, 0);
 
     /* Read pressure value */
-    D1 = read5611Sensor();
+    D1 = read5611Sensor(SystemClock.elapsedRealtime() + CONVERSION5611_TIME);
 
     long OFF = C2s + (C4 * dT) / 128L;
     long SENS = C1s + (C3 * dT) / 256L;
@@ -420,8 +462,6 @@ final class I2Cbaro extends Thread {
     listener.onI2CbaroValues(5611, P);
 
     loop_count5611++;
-
-    sleep(sleep_time);
   }
 
   @Override public void run() {
@@ -437,16 +477,14 @@ final class I2Cbaro extends Thread {
         }
       }
 
+      period = 1000 / sample_rate;
+
       if (type == 5611) {
-        sleep_time = 1000 / sample_rate - 11; // - conversion time
-        if (sleep_time < 1) sleep_time = 1;
         while (true)
           loop5611();
       }
 
       if (type == 85) {
-        sleep_time = 1000 / sample_rate - 26; // - conversion time
-        if (sleep_time < 1) sleep_time = 1;
         while (true)
           loop085();
       }
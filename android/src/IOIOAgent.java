@@ -35,10 +35,22 @@ import ioio.lib.spi.IOIOConnectionFactory;
  * specified IOIOConnectionFactory object.  Multiple instances of this
  * are used by #IOIOHelper, one for each registered
  * IOIOConnectionFactory.
+ *
+ * After a failed connect attempt, it retries with exponential backoff.
+ * In standby mode (see setStandby()), it neither connects nor keeps a
+ * connection; #IOIOMultiAgent puts the transports which lost the race
+ * into standby.
  */
 final class IOIOAgent extends Thread {
   private static final String TAG = "XCSoar";
 
+  /**
+   * The retry delay after a failed connect attempt, doubled after each
+   * further failure up to #MAX_RETRY_DELAY_MS. [ms]
+   */
+  private static final long MIN_RETRY_DELAY_MS = 1000;
+  private static final long MAX_RETRY_DELAY_MS = 30000;
+
   interface Listener extends IOIOConnectionListener {
     boolean onIOIOIdle(IOIO ioio)
       throws ConnectionLostException, InterruptedException;
@@ -48,7 +60,13 @@ final class IOIOAgent extends Thread {
 
   private final Listener listener;
 
-  private boolean openFlag, enabledFlag, shutdownFlag;
+  private boolean openFlag, enabledFlag, shutdownFlag, standbyFlag;
+
+  /**
+   * The delay before the next connect attempt; 0 if the last attempt
+   * was successful.  Only used by the connection thread.
+   */
+  private long retryDelay;
 
   /**
    * The IOIO connection that is currently being established.  It may
@@ -93,6 +111,27 @@ final class IOIOAgent extends Thread {
     interrupt();
   }
 
+  /**
+   * Enter or leave standby mode.  Entering cancels a connect attempt
+   * and closes an established connection; leaving makes the thread
+   * try to connect right away.
+   */
+  public synchronized void setStandby(boolean standby) {
+    if (standby == standbyFlag)
+      return;
+
+    standbyFlag = standby;
+
+    if (standby) {
+      if (connecting != null)
+        connecting.disconnect();
+
+      if (openFlag)
+        interrupt();
+    } else if (connecting == null)
+      interrupt();
+  }
+
   public void shutdown() {
     synchronized(this) {
       shutdownFlag = true;
@@ -181,7 +220,11 @@ final class IOIOAgent extends Thread {
     ioio.disconnect();
   }
 
-  private void idle(IOIO ioio) {
+  /**
+   * @param timeout the maximum duration to wait while there is no
+   * connection [ms]; 0 waits until Thread.interrupt() gets called
+   */
+  private void idle(IOIO ioio, long timeout) {
     if (interrupted())
       return;
 
@@ -206,12 +249,12 @@ final class IOIOAgent extends Thread {
         Log.w(TAG, "IOIO connection " + getName() + " lost");
       } else {
         /* there is no connection: wait until Thread.interrupt()
-           gets called */
+           gets called or until it is time to retry */
         synchronized(this) {
           /* we're not actually waiting for an Object.notify() call,
              this is just a dummy call to make this thread idle and
              interruptible */
-          wait();
+          wait(timeout);
         }
       }
     } catch (InterruptedException e) {
@@ -226,18 +269,32 @@ final class IOIOAgent extends Thread {
 
     while (true) {
       if (ioio != null && (ioio.getState() != IOIO.State.CONNECTED ||
-                           !enabledFlag)) {
+                           !enabledFlag || standbyFlag)) {
         synchronousClose(ioio);
         ioio = null;
-      } else if (ioio == null && enabledFlag && !shutdownFlag)
+      } else if (ioio == null && enabledFlag && !standbyFlag &&
+                 !shutdownFlag) {
         ioio = synchronousOpen();
+        if (ioio != null) {
+          retryDelay = 0;
+
+          /* we may have been put into standby meanwhile */
+          continue;
+        }
+
+        retryDelay = retryDelay == 0
+          ? MIN_RETRY_DELAY_MS
+          : Math.min(retryDelay * 2, MAX_RETRY_DELAY_MS);
+      }
 
       if (shutdownFlag) {
         synchronousClose(ioio);
         return;
       }
 
-      idle(ioio);
+      idle(ioio, ioio == null && enabledFlag && !standbyFlag
+           ? retryDelay
+           : 0);
     }
   }
 }
@@ -0,0 +1,164 @@
+/*
+Copyright_License {
+
+  XCSoar Glide Computer - http://www.xcsoar.org/
+  Copyright (C) 2000-2014 The XCSoar Project
+  A detailed list of copyright holders can be found in the file "AUTHORS".
+
+  This program is free software; you can redistribute it and/or
+  modify it under the terms of the GNU General Public License
+  as published by the Free Software Foundation; either version 2
+  of the License, or (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software
+  Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+}
+*/
+
+package org.xcsoar;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import android.os.SystemClock;
+import android.util.Log;
+import ioio.lib.api.IOIO;
+import ioio.lib.api.exception.ConnectionLostException;
+
+/**
+ * Watches an established IOIO connection: every #INTERVAL_MS, a task
+ * on the PortExecutor timer starts a sync() round trip unless the
+ * previous one is still pending.  If a round trip has been in
+ * progress for more than #TIMEOUT_MS, it disconnects the IOIO.  That
+ * makes IOIOAgent.run() notice the failure right away instead of
+ * waiting for a transport timeout, and #IOIOMultiAgent fails over to
+ * another transport.
+ *
+ * sync() and disconnect() block, so they run on the PortExecutor
+ * activation pool; the timer task itself never blocks.  No thread is
+ * dedicated to a connection.  A round trip which is still waiting
+ * for a pool thread does not count, because a busy pool says nothing
+ * about the link.
+ */
+final class IOIOHeartbeat {
+  private static final String TAG = "XCSoar";
+
+  static final int INTERVAL_MS = 1000;
+
+  /**
+   * How long may the link be quiet before it is considered dead?
+   * [ms]
+   */
+  static final int TIMEOUT_MS = 3000;
+
+  private final IOIO ioio;
+  private final String name;
+
+  private ScheduledFuture<?> future;
+
+  private volatile boolean stopped;
+
+  /**
+   * Has a round trip been submitted which has not completed yet?
+   */
+  private final AtomicBoolean pinging = new AtomicBoolean();
+
+  /**
+   * The SystemClock.elapsedRealtime() when the pending sync() call
+   * was started, or 0 if there is none.
+   */
+  private volatile long pingStart;
+
+  /**
+   * The duration of the last round trip [ms].
+   */
+  private volatile long roundTrip;
+
+  private final Runnable tick = new Runnable() {
+      @Override public void run() {
+        check();
+      }
+    };
+
+  private final Runnable ping = new Runnable() {
+      @Override public void run() {
+        ping();
+      }
+    };
+
+  private final Runnable disconnect = new Runnable() {
+      @Override public void run() {
+        ioio.disconnect();
+      }
+    };
+
+  IOIOHeartbeat(IOIO _ioio, String _name) {
+    ioio = _ioio;
+    name = _name;
+  }
+
+  synchronized void start() {
+    future = PortExecutor.getTimer()
+      .scheduleWithFixedDelay(tick, 0, INTERVAL_MS, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Stop the heartbeat.  Does not wait; a pending sync() may still
+   * block a pool thread until the IOIO gets disconnected.
+   */
+  synchronized void stop() {
+    stopped = true;
+    if (future != null) {
+      future.cancel(false);
+      future = null;
+    }
+  }
+
+  long getRoundTrip() {
+    return roundTrip;
+  }
+
+  /**
+   * The timer task.
+   */
+  private void check() {
+    if (stopped)
+      return;
+
+    final long start = pingStart;
+    final long quiet = start > 0 ? SystemClock.elapsedRealtime() - start : 0;
+    if (quiet > TIMEOUT_MS) {
+      Log.w(TAG, "IOIO connection " + name + " quiet for " + quiet +
+            " ms, disconnecting");
+      stop();
+      PortExecutor.getActivation().execute(disconnect);
+      return;
+    }
+
+    if (pinging.compareAndSet(false, true))
+      PortExecutor.getActivation().execute(ping);
+  }
+
+  private void ping() {
+    try {
+      if (stopped)
+        return;
+
+      final long start = SystemClock.elapsedRealtime();
+      pingStart = start;
+      ioio.sync();
+      roundTrip = SystemClock.elapsedRealtime() - start;
+    } catch (ConnectionLostException e) {
+    } catch (InterruptedException e) {
+    } finally {
+      pingStart = 0;
+      pinging.set(false);
+    }
+  }
+}
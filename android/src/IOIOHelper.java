@@ -23,11 +23,14 @@
 
 package org.xcsoar;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.LinkedList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.NoSuchElementException;
 import android.util.Log;
+import android.os.SystemClock;
 import android.content.ContextWrapper;
 import ioio.lib.api.IOIO;
 import ioio.lib.api.exception.ConnectionLostException;
@@ -39,11 +42,74 @@ import ioio.lib.spi.IOIOConnectionFactory;
 /**
  * A utility class which wraps the Java API into an easier API for the
  * C++ code.
+ *
+ * When a IOIO connects, the listeners are activated concurrently on
+ * the PortExecutor activation pool, without holding this object's
+ * monitor; a slow TWI probe does not delay the other peripherals.
+ * Each listener has its own deadline (#ACTIVATION_TIMEOUT_MS after it
+ * has started); the IOIO thread stops waiting for it when it overruns,
+ * and stops waiting for all of them as soon as one has lost the
+ * connection.
  */
 final class IOIOHelper implements IOIOConnectionHolder,
                                   IOIOAgent.Listener {
   private static final String TAG = "XCSoar";
 
+  /**
+   * How long does the IOIO thread wait for a listener to be
+   * activated?  Listeners which take longer finish in the
+   * background. [ms]
+   */
+  private static final int ACTIVATION_TIMEOUT_MS = 5000;
+
+  /**
+   * The state of one onIOIOConnect() call submitted by
+   * openAllListeners().  Protected by the monitor of its
+   * #ActivationBatch.
+   */
+  private static final class Activation {
+    final IOIOConnectionListener listener;
+
+    /**
+     * The SystemClock.elapsedRealtime() value when the call was
+     * submitted, and when it has started (0 if it hasn't).
+     */
+    final long submitted;
+    long started;
+
+    boolean finished;
+
+    /**
+     * Has the IOIO thread given up waiting for this one?
+     */
+    boolean overran;
+
+    Activation(IOIOConnectionListener _listener, long _submitted) {
+      listener = _listener;
+      submitted = _submitted;
+    }
+
+    /**
+     * When does the IOIO thread stop waiting?  A call which is still
+     * queued (e.g. because the pool is busy) is measured from its
+     * submission.
+     */
+    long getDeadline() {
+      return (started > 0 ? started : submitted) + ACTIVATION_TIMEOUT_MS;
+    }
+  }
+
+  /**
+   * The calls submitted by one openAllListeners() invocation.  The
+   * pool threads notify its monitor after a call has finished or lost
+   * the connection.
+   */
+  private static final class ActivationBatch {
+    final List<Activation> activations = new ArrayList<Activation>();
+
+    ConnectionLostException lost;
+  }
+
   private IOIOMultiAgent agent;
 
   private IOIO ioio_;
@@ -61,6 +127,20 @@ final class IOIOHelper implements IOIOConnectionHolder,
   private Collection<IOIOConnectionListener> openListeners =
     new LinkedList<IOIOConnectionListener>();
 
+  /**
+   * The list of listeners whose onIOIOConnect() method is currently
+   * running.
+   */
+  private Collection<IOIOConnectionListener> activatingListeners =
+    new LinkedList<IOIOConnectionListener>();
+
+  /**
+   * The activating listeners which cycleListener() was called for;
+   * they are reopened when their activation has finished.
+   */
+  private Collection<IOIOConnectionListener> cyclingListeners =
+    new LinkedList<IOIOConnectionListener>();
+
   static {
     final String[] bootstraps = new String[]{
       "ioio.lib.impl.SocketIOIOConnectionBootstrap",
@@ -96,7 +176,8 @@ final class IOIOHelper implements IOIOConnectionHolder,
    * closed eventually.
    */
   private synchronized boolean isInUse() {
-    return !openListeners.isEmpty() || !closedListeners.isEmpty();
+    return !openListeners.isEmpty() || !closedListeners.isEmpty() ||
+      !activatingListeners.isEmpty();
   }
 
   public void shutdown() {
@@ -120,15 +201,151 @@ final class IOIOHelper implements IOIOConnectionHolder,
     }
   }
 
-  private synchronized void openAllListeners(IOIO ioio)
-    throws ConnectionLostException {
-    for (Iterator<IOIOConnectionListener> i = closedListeners.iterator(); i.hasNext();) {
-      IOIOConnectionListener listener = i.next();
+  /**
+   * Move all closed listeners to #activatingListeners.
+   */
+  private synchronized List<IOIOConnectionListener> beginActivation() {
+    List<IOIOConnectionListener> batch =
+      new ArrayList<IOIOConnectionListener>(closedListeners);
+    closedListeners.clear();
+    activatingListeners.addAll(batch);
+    return batch;
+  }
 
-      openListener(listener, ioio);
+  /**
+   * The listener's onIOIOConnect() method has returned; file it
+   * according to what happened in the meantime.
+   *
+   * @param opened false if the connection was lost during activation
+   */
+  private synchronized void finishActivation(IOIOConnectionListener listener,
+                                             IOIO ioio, boolean opened) {
+    if (!activatingListeners.remove(listener)) {
+      /* removeListener() was called meanwhile */
+      if (opened)
+        listener.onIOIODisconnect(ioio);
+      return;
+    }
 
-      i.remove();
+    if (cyclingListeners.remove(listener) && ioio_ == ioio) {
+      /* cycleListener() was called meanwhile; close and reopen */
+      if (opened)
+        listener.onIOIODisconnect(ioio);
+      closedListeners.add(listener);
+      agent.wakeUp();
+      return;
+    }
+
+    if (opened && ioio_ == ioio) {
       openListeners.add(listener);
+      return;
+    }
+
+    /* the connection is gone (or was replaced) */
+    if (opened)
+      listener.onIOIODisconnect(ioio);
+    closedListeners.add(listener);
+  }
+
+  /**
+   * Invokes onIOIOConnect() on all closed listeners concurrently.  The
+   * monitor is not held while they run.
+   *
+   * @throws ConnectionLostException as soon as one listener has
+   * lost the connection; the others finish in the background
+   */
+  private void openAllListeners(final IOIO ioio)
+    throws ConnectionLostException {
+    List<IOIOConnectionListener> listeners = beginActivation();
+    if (listeners.isEmpty())
+      return;
+
+    final ActivationBatch batch = new ActivationBatch();
+    final long now = SystemClock.elapsedRealtime();
+    synchronized(batch) {
+      for (IOIOConnectionListener listener : listeners)
+        batch.activations.add(new Activation(listener, now));
+    }
+
+    for (final Activation activation : batch.activations) {
+      PortExecutor.getActivation().execute(new Runnable() {
+          @Override public void run() {
+            final IOIOConnectionListener listener = activation.listener;
+            final long start = SystemClock.elapsedRealtime();
+            synchronized(batch) {
+              activation.started = start;
+            }
+
+            boolean opened = false;
+            try {
+              openListener(listener, ioio);
+              opened = true;
+            } catch (ConnectionLostException e) {
+              synchronized(batch) {
+                if (batch.lost == null)
+                  batch.lost = e;
+              }
+            } finally {
+              Log.d(TAG, "IOIO activation of " + listener + " took " +
+                    (SystemClock.elapsedRealtime() - start) + " ms");
+              finishActivation(listener, ioio, opened);
+
+              synchronized(batch) {
+                activation.finished = true;
+                batch.notifyAll();
+              }
+            }
+          }
+        });
+    }
+
+    try {
+      awaitActivation(batch);
+    } catch (InterruptedException e) {
+      /* keep the interrupt for the IOIOAgent, which uses it to
+         wake up its thread */
+      Thread.currentThread().interrupt();
+    }
+
+    synchronized(batch) {
+      if (batch.lost != null)
+        throw batch.lost;
+    }
+  }
+
+  /**
+   * Wait until each activation of the batch has finished or overrun
+   * its deadline, or until one of them has lost the connection.
+   */
+  private static void awaitActivation(ActivationBatch batch)
+    throws InterruptedException {
+    synchronized(batch) {
+      while (batch.lost == null) {
+        final long now = SystemClock.elapsedRealtime();
+        long next = Long.MAX_VALUE;
+
+        for (Activation a : batch.activations) {
+          if (a.finished || a.overran)
+            continue;
+
+          final long deadline = a.getDeadline();
+          if (now >= deadline) {
+            a.overran = true;
+            Log.w(TAG, "IOIO activation of " + a.listener +
+                  (a.started > 0
+                   ? " overran " + ACTIVATION_TIMEOUT_MS + " ms"
+                   : " did not start within " + ACTIVATION_TIMEOUT_MS + " ms") +
+                  "; it continues in the background");
+          } else
+            next = Math.min(next, deadline);
+        }
+
+        if (next == Long.MAX_VALUE)
+          /* nothing left to wait for */
+          return;
+
+        batch.wait(next - now);
+      }
     }
   }
 
@@ -142,15 +359,19 @@ final class IOIOHelper implements IOIOConnectionHolder,
     }
   }
 
-  private synchronized boolean handleNewListeners() {
-    if (ioio_ == null || closedListeners.isEmpty())
-      return false;
+  private boolean handleNewListeners() {
+    final IOIO ioio;
+    synchronized(this) {
+      ioio = ioio_;
+      if (ioio == null || closedListeners.isEmpty())
+        return false;
+    }
 
     /* another thread has registered new listeners; notify them
        that a IOIO connection exists */
 
     try {
-      openAllListeners(ioio_);
+      openAllListeners(ioio);
     } catch (ConnectionLostException e) {
       Log.w(TAG, "IOIO connection lost");
     }
@@ -173,6 +394,10 @@ final class IOIOHelper implements IOIOConnectionHolder,
       /* this listener thinks the IOIO connection is established;
          invoke the onIOIODisconnect() method */
       l.onIOIODisconnect(ioio_);
+    else if (activatingListeners.remove(l))
+      /* onIOIOConnect() is still running; finishActivation() will
+         invoke onIOIODisconnect() when it returns */
+      cyclingListeners.remove(l);
     else
       /* no method call necessary */
       closedListeners.remove(l);
@@ -189,6 +414,11 @@ final class IOIOHelper implements IOIOConnectionHolder,
     if (openListeners.remove(l)) {
       l.onIOIODisconnect(ioio_);
       closedListeners.add(l);
+    } else if (activatingListeners.contains(l)) {
+      /* let finishActivation() requeue it */
+      if (!cyclingListeners.contains(l))
+        cyclingListeners.add(l);
+      return;
     } else if (!closedListeners.contains(l))
       return;
 
@@ -196,10 +426,22 @@ final class IOIOHelper implements IOIOConnectionHolder,
     agent.wakeUp();
   }
 
-  @Override public synchronized void onIOIOConnect(IOIO ioio)
+  @Override public void onIOIOConnect(IOIO ioio)
     throws ConnectionLostException, InterruptedException {
-    openAllListeners(ioio);
-    ioio_ = ioio;
+    synchronized(this) {
+      /* set before activation, so finishActivation() can tell whether
+         the connection is still current */
+      ioio_ = ioio;
+    }
+
+    try {
+      openAllListeners(ioio);
+    } catch (ConnectionLostException e) {
+      /* the IOIOAgent will not call onIOIODisconnect() after a failed
+         onIOIOConnect() */
+      onIOIODisconnect(ioio);
+      throw e;
+    }
   }
 
   @Override public synchronized void onIOIODisconnect(IOIO ioio) {
@@ -207,7 +449,7 @@ final class IOIOHelper implements IOIOConnectionHolder,
     closeAllListeners(ioio);
   }
 
-  @Override public synchronized boolean onIOIOIdle(IOIO ioio) {
+  @Override public boolean onIOIOIdle(IOIO ioio) {
     return handleNewListeners();
   }
 
@@ -216,6 +458,6 @@ final class IOIOHelper implements IOIOConnectionHolder,
    * @return: ID of opened UArt or -1 if fail
    */
   public AndroidPort openUart(int ID, int baud) {
-    return new GlueIOIOPort(this, ID, baud);
+    return CapturePort.wrap(new GlueIOIOPort(this, ID, baud));
   }
 }
@@ -25,20 +25,51 @@ package org.xcsoar;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import android.util.Log;
 import ioio.lib.api.IOIO;
 import ioio.lib.api.exception.ConnectionLostException;
 import ioio.lib.spi.IOIOConnectionFactory;
 
 /**
- * This class is a container for multiple IOIOAgent objects.
+ * This class is a container for multiple IOIOAgent objects, one per
+ * transport (ADB socket, accessory, ...).
+ *
+ * All transports race for the connection; the first one to connect
+ * wins, and the others are put into standby, which cancels their
+ * connect attempts.  An #IOIOHeartbeat watches the winning link; when
+ * it is lost or goes quiet, all transports race again.  The time to
+ * connect and the failover latency are logged.
  */
 final class IOIOMultiAgent implements IOIOAgent.Listener {
+  private static final String TAG = "XCSoar";
+
   private final ArrayList<IOIOAgent> agents;
 
   private final IOIOAgent.Listener listener;
 
   private IOIO ioio_;
 
+  private IOIOHeartbeat heartbeat;
+
+  /**
+   * The System.currentTimeMillis() when the current race started, or
+   * 0 if there is none.
+   */
+  private long raceStart;
+
+  /**
+   * Is the current race a failover, i.e. was there a connection
+   * before?
+   */
+  private boolean failover;
+
+  private int nConnects, nFailovers;
+  private long maxConnectMs, maxFailoverMs;
+
+  /*
+   * All attributes above are protected by the object monitor.
+   */
+
   public IOIOMultiAgent(Collection<IOIOConnectionFactory> factories,
                         IOIOAgent.Listener _listener) {
     agents = new ArrayList<IOIOAgent>(factories.size());
@@ -48,12 +79,25 @@ final class IOIOMultiAgent implements IOIOAgent.Listener {
       agents.add(new IOIOAgent(factory, this));
   }
 
+  private synchronized void beginRace(boolean _failover) {
+    if (ioio_ == null && raceStart == 0) {
+      raceStart = System.currentTimeMillis();
+      failover = _failover;
+    }
+  }
+
   public void enable() {
+    beginRace(false);
+
     for (IOIOAgent agent : agents)
       agent.enable();
   }
 
   public void disable() {
+    synchronized(this) {
+      raceStart = 0;
+    }
+
     for (IOIOAgent agent : agents)
       agent.disable();
   }
@@ -68,21 +112,114 @@ final class IOIOMultiAgent implements IOIOAgent.Listener {
       agent.wakeUp();
   }
 
-  @Override public synchronized void onIOIOConnect(IOIO ioio)
+  /**
+   * Put all agents except the specified one into standby, or take
+   * all agents out of standby.  Must not be called while holding the
+   * monitor, because the agents call us while holding theirs.
+   */
+  private void setStandby(IOIOAgent winner) {
+    for (IOIOAgent agent : agents)
+      agent.setStandby(winner != null && agent != winner);
+  }
+
+  /**
+   * Returns the agent which is calling us; the callbacks are invoked
+   * from the agent's own thread.
+   */
+  private IOIOAgent getCallingAgent() {
+    final Thread current = Thread.currentThread();
+    for (IOIOAgent agent : agents)
+      if (agent == current)
+        return agent;
+    return null;
+  }
+
+  @Override public void onIOIOConnect(IOIO ioio)
     throws ConnectionLostException, InterruptedException {
-    if (ioio_ != null)
-      return;
+    final IOIOAgent winner = getCallingAgent();
+
+    synchronized(this) {
+      if (ioio_ != null)
+        return;
+
+      ioio_ = ioio;
+
+      final String name = winner != null ? winner.getName() : "IOIO";
+      if (raceStart != 0) {
+        final long duration = System.currentTimeMillis() - raceStart;
+        raceStart = 0;
+
+        if (failover) {
+          ++nFailovers;
+          maxFailoverMs = Math.max(maxFailoverMs, duration);
+          Log.i(TAG, "IOIO failover to " + name + " took " + duration +
+                " ms (max " + maxFailoverMs + " ms, " + nFailovers +
+                " failovers)");
+        } else {
+          ++nConnects;
+          maxConnectMs = Math.max(maxConnectMs, duration);
+          Log.i(TAG, "IOIO connected via " + name + " after " + duration +
+                " ms (max " + maxConnectMs + " ms)");
+        }
+      }
+
+      heartbeat = new IOIOHeartbeat(ioio, name);
+    }
+
+    /* cancel the losers before activating the listeners, which may
+       take a while */
+    setStandby(winner);
+
+    try {
+      synchronized(this) {
+        if (ioio != ioio_)
+          return;
+
+        heartbeat.start();
+        listener.onIOIOConnect(ioio);
+      }
+    } catch (ConnectionLostException e) {
+      connectFailed(ioio);
+      throw e;
+    } catch (InterruptedException e) {
+      connectFailed(ioio);
+      throw e;
+    }
+  }
 
-    ioio_ = ioio;
-    listener.onIOIOConnect(ioio);
+  /**
+   * The listener's onIOIOConnect() has failed; the IOIOAgent will
+   * disconnect without calling onIOIODisconnect().
+   */
+  private void connectFailed(IOIO ioio) {
+    synchronized(this) {
+      if (ioio != ioio_)
+        return;
+
+      heartbeat.stop();
+      heartbeat = null;
+      ioio_ = null;
+    }
+
+    beginRace(true);
+    setStandby(null);
   }
 
-  @Override public synchronized void onIOIODisconnect(IOIO ioio) {
-    if (ioio != ioio_)
-      return;
+  @Override public void onIOIODisconnect(IOIO ioio) {
+    synchronized(this) {
+      if (ioio != ioio_)
+        return;
+
+      heartbeat.stop();
+      heartbeat = null;
+
+      ioio_ = null;
+      listener.onIOIODisconnect(ioio);
+    }
 
-    ioio_ = null;
-    listener.onIOIODisconnect(ioio);
+    /* race again */
+    beginRace(true);
+    setStandby(null);
   }
 
   @Override public synchronized boolean onIOIOIdle(IOIO ioio)
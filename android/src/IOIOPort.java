@@ -29,6 +29,8 @@ import ioio.lib.api.Uart;
  * Wrapper for an IOIO UART in an AndroidPort interface.
  */
 abstract class IOIOPort extends AbstractAndroidPort {
+  private static final int OUTPUT_BUFFER_SIZE = 1024;
+
   private Uart uart;
 
   IOIOPort(String name) {
@@ -41,7 +43,8 @@ abstract class IOIOPort extends AbstractAndroidPort {
 
   protected void set(Uart _uart) {
     uart = _uart;
-    super.set(_uart.getInputStream(), _uart.getOutputStream());
+    super.set(_uart.getInputStream(), InputThread.BUFFER_SIZE,
+              _uart.getOutputStream(), OUTPUT_BUFFER_SIZE);
   }
 
   @Override public void close() {
@@ -0,0 +1,193 @@
+/*
+Copyright_License {
+
+  XCSoar Glide Computer - http://www.xcsoar.org/
+  Copyright (C) 2000-2014 The XCSoar Project
+  A detailed list of copyright holders can be found in the file "AUTHORS".
+
+  This program is free software; you can redistribute it and/or
+  modify it under the terms of the GNU General Public License
+  as published by the Free Software Foundation; either version 2
+  of the License, or (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software
+  Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+}
+*/
+
+package org.xcsoar;
+
+import java.nio.ByteBuffer;
+import android.os.Build;
+import android.os.SystemClock;
+
+/**
+ * A reusable buffer for received data which can be passed to both
+ * kinds of listeners: #InputListener gets the byte array,
+ * #DirectInputListener gets the direct #ByteBuffer.
+ *
+ * On Dalvik/ART, direct buffers are backed by a non-movable Java
+ * array; if that array is accessible, both views share the same
+ * memory and data is read into it only once.  Otherwise, the array
+ * contents are copied to the direct buffer on delivery, which is
+ * still cheaper than pinning the array in JNI.
+ *
+ * Each chunk records when its data arrived: one base time, plus one
+ * segment per read() call which contributed to it.
+ */
+final class InputChunk {
+  final ByteBuffer buffer;
+
+  /**
+   * Received data gets stored here, starting at index 0.
+   */
+  final byte[] array;
+
+  /**
+   * Do #buffer and #array share the same memory?
+   */
+  private final boolean shared;
+
+  /**
+   * The maximum number of segments.  Further reads are added to the
+   * last segment.
+   */
+  static final int MAX_SEGMENTS = 16;
+
+  /**
+   * The number of valid bytes in #array.
+   */
+  int length;
+
+  /**
+   * The arrival time of the first segment; see now().
+   */
+  long time;
+
+  /**
+   * Pairs of segment end and arrival delay after #time [us].
+   */
+  final int[] segments = new int[MAX_SEGMENTS * 2];
+  int nSegments;
+
+  InputChunk(int capacity) {
+    this(ByteBuffer.allocateDirect(capacity));
+  }
+
+  /**
+   * Use the specified direct buffer, e.g. one obtained from
+   * #BufferPool.  Its whole capacity is used.
+   */
+  InputChunk(ByteBuffer _buffer) {
+    buffer = _buffer;
+    shared = buffer.hasArray() && buffer.arrayOffset() == 0;
+    array = shared ? buffer.array() : new byte[buffer.capacity()];
+  }
+
+  int capacity() {
+    return array.length;
+  }
+
+  /**
+   * Returns the current time for arrival timestamps: nanoseconds
+   * since boot, including deep sleep (CLOCK_BOOTTIME).  Before API
+   * level 17, only millisecond resolution is available.
+   */
+  static long now() {
+    return Build.VERSION.SDK_INT >= 17
+      ? APILevel17.elapsedRealtimeNanos()
+      : SystemClock.elapsedRealtime() * 1000000L;
+  }
+
+  /**
+   * Start a new chunk with the first read.
+   *
+   * @param nbytes the number of bytes stored in #array
+   */
+  void begin(int nbytes, long _time) {
+    length = nbytes;
+    time = _time;
+    segments[0] = nbytes;
+    segments[1] = 0;
+    nSegments = 1;
+  }
+
+  /**
+   * Record a subsequent read which was appended to #array.
+   */
+  void append(int nbytes, long _time) {
+    length += nbytes;
+
+    int i = nSegments;
+    if (i == MAX_SEGMENTS)
+      --i;
+    else
+      ++nSegments;
+
+    segments[i * 2] = length;
+    segments[i * 2 + 1] = (int)((_time - time) / 1000);
+  }
+
+  void deliverTo(InputListener l) {
+    if (l instanceof DirectInputListener) {
+      if (!shared) {
+        buffer.clear();
+        buffer.put(array, 0, length);
+      }
+
+      if (l instanceof TimedInputListener)
+        ((TimedInputListener)l).timedBufferReceived(buffer, 0, length, time,
+                                                    segments, nSegments);
+      else
+        ((DirectInputListener)l).bufferReceived(buffer, 0, length);
+    } else
+      l.dataReceived(array, length);
+  }
+
+  /**
+   * Pass data from a direct buffer to a listener which may not
+   * support it.  The buffer's position is not modified.
+   */
+  static void deliver(InputListener l, ByteBuffer buffer,
+                      int offset, int length) {
+    if (l instanceof DirectInputListener)
+      ((DirectInputListener)l).bufferReceived(buffer, offset, length);
+    else if (l != null) {
+      byte[] data = BufferPool.obtain(length);
+      try {
+        if (buffer.hasArray())
+          System.arraycopy(buffer.array(), buffer.arrayOffset() + offset,
+                           data, 0, length);
+        else {
+          ByteBuffer b = buffer.duplicate();
+          b.position(offset);
+          b.get(data, 0, length);
+        }
+
+        l.dataReceived(data, length);
+      } finally {
+        BufferPool.release(data);
+      }
+    }
+  }
+
+  /**
+   * Like deliver(InputListener, ByteBuffer, int, int), but pass the
+   * arrival times on if the listener supports them.
+   */
+  static void deliver(InputListener l, ByteBuffer buffer,
+                      int offset, int length,
+                      long time, int[] segments, int nSegments) {
+    if (l instanceof TimedInputListener)
+      ((TimedInputListener)l).timedBufferReceived(buffer, offset, length,
+                                                  time, segments, nSegments);
+    else
+      deliver(l, buffer, offset, length);
+  }
+}
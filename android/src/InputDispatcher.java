@@ -0,0 +1,281 @@
+/*
+Copyright_License {
+
+  XCSoar Glide Computer - http://www.xcsoar.org/
+  Copyright (C) 2000-2014 The XCSoar Project
+  A detailed list of copyright holders can be found in the file "AUTHORS".
+
+  This program is free software; you can redistribute it and/or
+  modify it under the terms of the GNU General Public License
+  as published by the Free Software Foundation; either version 2
+  of the License, or (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software
+  Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+}
+*/
+
+package org.xcsoar;
+
+import java.util.concurrent.Executor;
+import android.util.Log;
+
+/**
+ * The second stage of a decoupled receive pipeline: the #InputThread
+ * fills pooled #InputChunk objects and hands them over with
+ * submit(); a task on the shared #PortExecutor passes them to the
+ * #InputListener.  That way, a slow listener (e.g. a native driver
+ * holding a device lock) does not stop the socket from being
+ * drained.  The task runs only while chunks are queued.
+ *
+ * The pool has a fixed number of chunks; when the listener falls
+ * behind, the overflow policy decides what happens.
+ */
+final class InputDispatcher implements Runnable {
+  private static final String TAG = "XCSoar";
+
+  /**
+   * When the queue is full, block the reader until the listener has
+   * caught up.  No data is lost, but the socket is not drained in the
+   * meantime.
+   */
+  static final int OVERFLOW_BLOCK = 0;
+
+  /**
+   * When the queue is full, discard the oldest queued chunk.
+   */
+  static final int OVERFLOW_DROP_OLDEST = 1;
+
+  /**
+   * When the queue is full, discard the chunk that was just read.
+   */
+  static final int OVERFLOW_DROP_NEWEST = 2;
+
+  private final String name;
+  private final int policy;
+  private final PortStatistics statistics;
+  private final Executor executor;
+
+  private volatile InputListener listener;
+
+  /**
+   * Chunks which were submitted but not yet delivered.  This is a
+   * circular buffer large enough for all chunks of the pool.
+   */
+  private final InputChunk[] queue;
+  private int queueHead, queueSize;
+
+  /**
+   * Chunks which are neither owned by the reader, nor queued, nor
+   * being delivered.
+   */
+  private final InputChunk[] free;
+  private int nFree;
+
+  /**
+   * The chunk initially owned by the reader; see obtain().
+   */
+  private InputChunk initial;
+
+  private boolean closed;
+
+  /**
+   * Is the delivery task scheduled or running?
+   */
+  private boolean running;
+
+  /**
+   * Only for the summary logged by close(); the dropped bytes are
+   * also counted in #PortStatistics.
+   */
+  private long droppedChunks, droppedBytes, blockedCount;
+  private int maxQueueSize;
+
+  /**
+   * @param chunkSize the capacity of each chunk
+   * @param queueLength the number of chunks that may be queued
+   * @param _policy one of the OVERFLOW_* constants
+   * @param _statistics counters to be updated by this object
+   */
+  InputDispatcher(String _name, InputListener _listener,
+                  int chunkSize, int queueLength, int _policy,
+                  PortStatistics _statistics) {
+    name = _name;
+    listener = _listener;
+    policy = _policy;
+    statistics = _statistics;
+    executor = PortExecutor.getDelivery();
+
+    /* one chunk is being filled by the reader and one is being
+       delivered, in addition to the queued ones */
+    final int poolSize = queueLength + 2;
+    queue = new InputChunk[poolSize];
+    free = new InputChunk[poolSize];
+    for (int i = 0; i < queueLength + 1; ++i)
+      free[nFree++] = new InputChunk(chunkSize);
+    initial = new InputChunk(chunkSize);
+  }
+
+  void setListener(InputListener _listener) {
+    listener = _listener;
+  }
+
+  InputListener getListener() {
+    return listener;
+  }
+
+  /**
+   * Wait until all submitted chunks have been delivered.  Called by
+   * the reader before it calls the listener directly, to preserve
+   * the order.
+   *
+   * @return false if this dispatcher has been closed (or the wait
+   * was interrupted), and the listener must not be called
+   */
+  synchronized boolean awaitIdle() {
+    while (running && !closed) {
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        return false;
+      }
+    }
+
+    return !closed;
+  }
+
+  /**
+   * Returns the first chunk for the reader.  Must be called only
+   * once.
+   */
+  synchronized InputChunk obtain() {
+    InputChunk chunk = initial;
+    initial = null;
+    return chunk;
+  }
+
+  private void enqueue(InputChunk chunk) {
+    queue[(queueHead + queueSize) % queue.length] = chunk;
+    ++queueSize;
+    if (queueSize > maxQueueSize)
+      maxQueueSize = queueSize;
+
+    if (!running) {
+      running = true;
+      executor.execute(this);
+    }
+  }
+
+  private InputChunk dequeue() {
+    InputChunk chunk = queue[queueHead];
+    queue[queueHead] = null;
+    queueHead = (queueHead + 1) % queue.length;
+    --queueSize;
+    return chunk;
+  }
+
+  /**
+   * Hand a filled chunk over to the delivery task.  Called by the
+   * reader.
+   *
+   * @return an empty chunk to be filled next, or null if this
+   * dispatcher has been closed
+   */
+  synchronized InputChunk submit(InputChunk chunk) {
+    if (nFree == 0 && policy == OVERFLOW_BLOCK && !closed) {
+      ++blockedCount;
+
+      do {
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          return null;
+        }
+      } while (nFree == 0 && !closed);
+    }
+
+    if (closed)
+      return null;
+
+    if (nFree > 0) {
+      enqueue(chunk);
+      notifyAll();
+      return free[--nFree];
+    }
+
+    ++droppedChunks;
+
+    if (policy == OVERFLOW_DROP_OLDEST) {
+      InputChunk oldest = dequeue();
+      droppedBytes += oldest.length;
+      statistics.add(PortStatistics.DROPPED_BYTES, oldest.length);
+      enqueue(chunk);
+      return oldest;
+    } else {
+      droppedBytes += chunk.length;
+      statistics.add(PortStatistics.DROPPED_BYTES, chunk.length);
+      return chunk;
+    }
+  }
+
+  /**
+   * Stop delivering.  Waits for the delivery task to finish, so the
+   * listener will not be called after this method returns.
+   */
+  void close() {
+    synchronized(this) {
+      closed = true;
+      notifyAll();
+
+      while (running) {
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          break;
+        }
+      }
+    }
+
+    if (droppedChunks > 0 || blockedCount > 0)
+      Log.w(TAG, name + ": " + droppedChunks + " chunks (" +
+            droppedBytes + " bytes) dropped, reader blocked " +
+            blockedCount + " times, max queue " + maxQueueSize);
+  }
+
+  /**
+   * The delivery task.  Returns when the queue is empty; enqueue()
+   * schedules it again.
+   */
+  @Override public void run() {
+    while (true) {
+      InputChunk chunk;
+
+      synchronized(this) {
+        if (queueSize == 0 || closed) {
+          running = false;
+          notifyAll();
+          return;
+        }
+
+        chunk = dequeue();
+      }
+
+      InputListener l = listener;
+      if (l != null) {
+        chunk.deliverTo(l);
+        statistics.increment(PortStatistics.UPCALLS);
+      }
+
+      synchronized(this) {
+        free[nFree++] = chunk;
+        notifyAll();
+      }
+    }
+  }
+}
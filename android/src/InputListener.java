@@ -27,5 +27,10 @@ package org.xcsoar;
  * A listener that gets called when data is received on a socket.
  */
 interface InputListener {
+  /**
+   * @param data the received data; only valid during this call, and
+   * the array may be larger than the data
+   * @param length the number of valid bytes in the array
+   */
   void dataReceived(byte[] data, int length);
 }
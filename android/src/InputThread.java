@@ -25,27 +25,176 @@ package org.xcsoar;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
 import android.util.Log;
 
 /**
  * A wrapper for an InputStream which allows reading with a timeout.
+ *
+ * Optionally, small reads are coalesced into one listener call (see
+ * setCoalescing()), because over Bluetooth SPP, data often arrives
+ * only a few bytes at a time.
+ *
+ * In bulk mode (see setBulkMode()), a large buffer is used instead;
+ * reads are appended back-to-back while the stream keeps delivering,
+ * regardless of newlines, and each chunk is passed to the listener
+ * directly.
+ *
+ * This thread always blocks in InputStream.read(); neither Bluetooth
+ * sockets nor IOIO streams support a read timeout.  While coalescing,
+ * the received data is therefore copied to a pending chunk, and when
+ * its deadline expires before the chunk is complete, a task on the
+ * #PortExecutor delivers it.  Both deliver while holding
+ * #pendingLock, so the listener sees the data in order.
  */
 class InputThread extends Thread {
   private static final String TAG = "XCSoar";
 
   static final int BUFFER_SIZE = 256;
 
+  /**
+   * The read buffer size in bulk mode.
+   */
+  static final int BULK_BUFFER_SIZE = 65536;
+
+  /**
+   * In bulk mode, a chunk is delivered when no data has arrived for
+   * this long [ms], i.e. when the sender pauses (e.g. at the end of a
+   * block).
+   */
+  private static final int BULK_IDLE_MS = 2;
+
+  /**
+   * In bulk mode, a chunk is delivered no later than this after its
+   * first byte [ms], so a continuous stream does not keep the
+   * receiver waiting for a full buffer.
+   */
+  private static final int BULK_LATENCY_MS = 50;
+
   final String name;
 
+  private final int bufferSize;
+
   InputListener listener;
 
+  /**
+   * If set, received chunks are handed to this object instead of
+   * being passed to #listener directly.
+   */
+  private final InputDispatcher dispatcher;
+
   InputStream is;
 
+  /**
+   * Coalesce reads until this many bytes have been received; 0
+   * disables coalescing.
+   */
+  private volatile int coalesceThreshold;
+
+  /**
+   * The maximum time to wait for more data after the first read
+   * [ns].
+   */
+  private volatile long coalesceLatency;
+
+  /**
+   * Deliver immediately when a newline has been received?
+   */
+  private volatile boolean flushOnNewline;
+
+  private volatile boolean bulkMode;
+
+  private final PortStatistics statistics;
+
+  /**
+   * Protects the chunks and the pending state below.  All listener
+   * calls are made while holding it.
+   */
+  private final Object pendingLock = new Object();
+
+  /**
+   * The chunk to be filled next in normal mode.  With a dispatcher,
+   * submit() exchanges it; null if the dispatcher has been closed.
+   */
+  private InputChunk chunk;
+
+  /**
+   * The chunk for bulk mode; obtained from the #BufferPool on demand.
+   */
+  private InputChunk bulkChunk;
+
+  /**
+   * The chunk (#chunk or #bulkChunk) which holds coalesced data
+   * waiting for more, or null.
+   */
+  private InputChunk pending;
+
+  /**
+   * The System.nanoTime() of the first and the last read which went
+   * into #pending.
+   */
+  private long pendingStart, lastArrival;
+
+  /**
+   * Has #flushTrigger been scheduled and not yet run?
+   */
+  private boolean flushScheduled;
+
+  /**
+   * Set when this thread exits; no listener calls are made after
+   * that.
+   */
+  private boolean finished;
+
+  /**
+   * The buffers which coalescing reads go to before they are copied
+   * to #pending; obtained from the #BufferPool on demand, only
+   * accessed by this thread, and released when it exits.
+   */
+  private byte[] readBuffer, bulkReadBuffer;
+
+  /**
+   * Runs on the timer when the deadline of #pending may have
+   * expired.  The listener may block, so the delivery is done on the
+   * delivery pool.
+   */
+  private final Runnable flushTrigger = new Runnable() {
+      @Override public void run() {
+        PortExecutor.getDelivery().execute(flushTask);
+      }
+    };
+
+  private final Runnable flushTask = new Runnable() {
+      @Override public void run() {
+        flushExpired();
+      }
+    };
+
   InputThread(String _name, InputListener _listener, InputStream _is) {
+    this(_name, _listener, _is, BUFFER_SIZE);
+  }
+
+  InputThread(String _name, InputListener _listener, InputStream _is,
+              int _bufferSize) {
+    this(_name, _listener, null, _is, _bufferSize, new PortStatistics());
+  }
+
+  /**
+   * @param _dispatcher an optional #InputDispatcher which delivers
+   * data on its own thread; its chunk size must be equal to
+   * _bufferSize
+   * @param _statistics counters to be updated by this thread
+   */
+  InputThread(String _name, InputListener _listener,
+              InputDispatcher _dispatcher, InputStream _is,
+              int _bufferSize, PortStatistics _statistics) {
     super("InputThread " + _name);
 
     name = _name;
+    bufferSize = _bufferSize;
     listener = _listener;
+    dispatcher = _dispatcher;
+    statistics = _statistics;
     is = _is;
 
     start();
@@ -55,6 +204,52 @@ class InputThread extends Thread {
     listener = _listener;
   }
 
+  /**
+   * Enable coalescing of small reads: after a read, keep reading
+   * until the threshold or the latency budget is reached.
+   *
+   * @param threshold deliver when this many bytes have been
+   * received; 0 disables coalescing
+   * @param latency_ms the maximum delay added to the first received
+   * byte
+   * @param _flushOnNewline deliver immediately when a newline has
+   * been received, which keeps NMEA sentence latency low
+   */
+  void setCoalescing(int threshold, int latency_ms,
+                     boolean _flushOnNewline) {
+    coalesceLatency = latency_ms * 1000000L;
+    flushOnNewline = _flushOnNewline;
+    coalesceThreshold = Math.min(threshold, bufferSize);
+  }
+
+  /**
+   * Enable or disable bulk mode.  Takes effect with the next read()
+   * call.
+   */
+  void setBulkMode(boolean enabled) {
+    bulkMode = enabled;
+  }
+
+  /**
+   * The number of read() calls on the InputStream so far.
+   */
+  long getReadCount() {
+    return statistics.get(PortStatistics.READS);
+  }
+
+  /**
+   * The number of listener calls so far.
+   */
+  long getUpcallCount() {
+    return statistics.get(PortStatistics.UPCALLS);
+  }
+
+  private void countRead(int nbytes) {
+    statistics.increment(PortStatistics.READS);
+    statistics.add(PortStatistics.BYTES_IN, nbytes);
+    statistics.max(PortStatistics.MAX_READ_SIZE, nbytes);
+  }
+
   /**
    * Similar to close(), but is allowed to be called from this thread.
    */
@@ -84,14 +279,279 @@ class InputThread extends Thread {
     return is != null;
   }
 
+  private static boolean containsNewline(byte[] buffer, int offset,
+                                         int length) {
+    for (int i = offset, end = offset + length; i < end; ++i)
+      if (buffer[i] == '\n')
+        return true;
+    return false;
+  }
+
+  /**
+   * Pass a chunk to the listener in this thread, bypassing the
+   * #InputDispatcher.  Caller must hold #pendingLock.
+   */
+  private void deliverDirectly(InputChunk c) {
+    InputListener l;
+    if (dispatcher != null) {
+      /* let the dispatcher finish first, or data would be
+         reordered */
+      if (!dispatcher.awaitIdle())
+        return;
+
+      l = dispatcher.getListener();
+    } else
+      l = listener;
+
+    if (l != null) {
+      c.deliverTo(l);
+      statistics.increment(PortStatistics.UPCALLS);
+    }
+  }
+
+  /**
+   * Pass a filled chunk on.  Caller must hold #pendingLock.
+   */
+  private void deliver(InputChunk c) {
+    if (c == bulkChunk)
+      deliverDirectly(c);
+    else if (dispatcher != null)
+      /* null if the dispatcher has been closed, which ends this
+         thread */
+      chunk = dispatcher.submit(c);
+    else {
+      InputListener l = listener;
+      if (l != null) {
+        c.deliverTo(l);
+        statistics.increment(PortStatistics.UPCALLS);
+      }
+    }
+  }
+
+  /**
+   * Caller must hold #pendingLock.
+   */
+  private void deliverPending() {
+    InputChunk c = pending;
+    pending = null;
+    deliver(c);
+  }
+
+  /**
+   * Returns the System.nanoTime() when #pending is due.  Caller must
+   * hold #pendingLock.
+   */
+  private long getPendingDue() {
+    if (pending == bulkChunk)
+      return Math.min(pendingStart + BULK_LATENCY_MS * 1000000L,
+                      lastArrival + BULK_IDLE_MS * 1000000L);
+    else
+      return pendingStart + coalesceLatency;
+  }
+
+  /**
+   * Make sure #flushTrigger runs when #pending is due.  Caller must
+   * hold #pendingLock.
+   */
+  private void scheduleFlush(long delay) {
+    if (!flushScheduled) {
+      flushScheduled = true;
+      PortExecutor.getTimer().schedule(flushTrigger, delay,
+                                       TimeUnit.NANOSECONDS);
+    }
+  }
+
+  /**
+   * Deliver #pending if it is due, or schedule another check.  Runs
+   * on the delivery pool.
+   */
+  private void flushExpired() {
+    synchronized(pendingLock) {
+      flushScheduled = false;
+      if (pending == null || finished)
+        return;
+
+      final long delay = getPendingDue() - System.nanoTime();
+      if (delay > 0)
+        scheduleFlush(delay);
+      else
+        deliverPending();
+    }
+  }
+
+  /**
+   * Returns the buffer for a coalescing read in the specified mode.
+   */
+  private byte[] getReadBuffer(boolean bulk) {
+    if (bulk) {
+      if (bulkReadBuffer == null)
+        bulkReadBuffer = BufferPool.obtain(BULK_BUFFER_SIZE);
+      return bulkReadBuffer;
+    } else {
+      if (readBuffer == null)
+        readBuffer = BufferPool.obtain(bufferSize);
+      return readBuffer;
+    }
+  }
+
+  /**
+   * Returns the chunk to be filled in the specified mode, or null if
+   * the dispatcher has been closed.  Caller must hold #pendingLock.
+   */
+  private InputChunk getChunk(boolean bulk) {
+    if (bulk) {
+      if (bulkChunk == null)
+        bulkChunk =
+          new InputChunk(BufferPool.obtainDirect(BULK_BUFFER_SIZE));
+      return bulkChunk;
+    } else
+      return chunk;
+  }
+
+  /**
+   * Add a coalescing read to the chunk of the specified mode, and
+   * deliver it if it is complete or due.  Caller must hold
+   * #pendingLock.
+   *
+   * @return false if the dispatcher has been closed
+   */
+  private boolean addPending(boolean bulk, byte[] src, int n, long time) {
+    InputChunk c = getChunk(bulk);
+    if (c == null)
+      return false;
+
+    final long now = System.nanoTime();
+    if (pending == c && c.length + n <= c.capacity()) {
+      System.arraycopy(src, 0, c.array, c.length, n);
+      c.append(n, time);
+    } else {
+      /* a different mode, or the deadline has already delivered
+         part of it */
+      if (pending != null) {
+        deliverPending();
+        c = getChunk(bulk);
+        if (c == null)
+          return false;
+      }
+
+      System.arraycopy(src, 0, c.array, 0, n);
+      c.begin(n, time);
+      pending = c;
+      pendingStart = now;
+    }
+
+    lastArrival = now;
+
+    final boolean complete = bulk
+      ? c.length >= c.capacity()
+      : (c.length >= coalesceThreshold ||
+         (flushOnNewline && containsNewline(src, 0, n)));
+
+    final long delay = complete ? 0 : getPendingDue() - now;
+    if (delay <= 0)
+      deliverPending();
+    else
+      scheduleFlush(delay);
+
+    return getChunk(bulk) != null;
+  }
+
+  /**
+   * Read into the current chunk and deliver it right away.
+   *
+   * @return false if this thread shall exit
+   */
+  private boolean readDirect(InputStream is2) throws IOException {
+    InputChunk c;
+    synchronized(pendingLock) {
+      /* data coalesced before the mode was switched goes first */
+      if (pending != null)
+        deliverPending();
+
+      c = chunk;
+    }
+
+    if (c == null)
+      return false;
+
+    int n = is2.read(c.array, 0, c.capacity());
+    if (n <= 0)
+      return n == 0;
+
+    /* take the arrival time right after read() has returned */
+    c.begin(n, InputChunk.now());
+    countRead(n);
+
+    if (is == null)
+      // close() was called
+      return false;
+
+    synchronized(pendingLock) {
+      deliver(c);
+      return chunk != null;
+    }
+  }
+
+  /**
+   * Read into the read buffer and add the data to #pending.
+   *
+   * @return false if this thread shall exit
+   */
+  private boolean readCoalescing(InputStream is2, boolean bulk)
+    throws IOException {
+    final byte[] b = getReadBuffer(bulk);
+
+    int room;
+    synchronized(pendingLock) {
+      InputChunk c = getChunk(bulk);
+      if (c != null && pending == c && c.length >= c.capacity()) {
+        deliverPending();
+        c = getChunk(bulk);
+      }
+
+      if (c == null)
+        return false;
+
+      /* the deadline may only shrink #pending meanwhile, so this much
+         will still fit */
+      room = pending == c ? c.capacity() - c.length : c.capacity();
+    }
+
+    int n = is2.read(b, 0, Math.min(room, b.length));
+    if (n <= 0)
+      return n == 0;
+
+    final long time = InputChunk.now();
+    countRead(n);
+
+    if (is == null)
+      // close() was called
+      return false;
+
+    synchronized(pendingLock) {
+      return addPending(bulk, b, n, time);
+    }
+  }
+
   @Override public void run() {
-    byte[] buffer = new byte[BUFFER_SIZE];
+    final long startTime = System.nanoTime();
+    final long startReads = getReadCount(), startUpcalls = getUpcallCount();
+
+    synchronized(pendingLock) {
+      chunk = dispatcher != null
+        ? dispatcher.obtain()
+        : new InputChunk(BufferPool.obtainDirect(bufferSize));
+    }
 
     InputStream is2 = is;
     while (is2 != null) {
-      int n;
+      final boolean bulk = bulkMode;
+
       try {
-        n = is2.read(buffer, 0, buffer.length);
+        if (!(bulk || coalesceThreshold > 0
+              ? readCoalescing(is2, bulk)
+              : readDirect(is2)))
+          break;
       } catch (IOException e) {
         if (is != null)
           Log.e(TAG, "Failed to read from " + name, e);
@@ -100,16 +560,40 @@ class InputThread extends Thread {
         break;
       }
 
-      if (n < 0)
-        break;
-
       is2 = is;
-      if (is2 == null)
-        // close() was called
-        break;
+    }
+
+    synchronized(pendingLock) {
+      /* at the end of the stream, pass on what is left; but if the
+         port is being closed, don't call the listener anymore */
+      if (pending != null && is != null)
+        deliverPending();
+
+      finished = true;
+      pending = null;
 
-      if (listener != null)
-        listener.dataReceived(buffer, n);
+      /* the timer checks #finished, so nobody uses the buffers
+         anymore */
+      if (bulkChunk != null) {
+        BufferPool.releaseDirect(bulkChunk.buffer);
+        bulkChunk = null;
+      }
+
+      if (dispatcher == null && chunk != null) {
+        BufferPool.releaseDirect(chunk.buffer);
+        chunk = null;
+      }
     }
+
+    BufferPool.release(readBuffer);
+    readBuffer = null;
+    BufferPool.release(bulkReadBuffer);
+    bulkReadBuffer = null;
+
+    final long seconds = (System.nanoTime() - startTime) / 1000000000L;
+    if (seconds > 0)
+      Log.d(TAG, name + ": " +
+            (getReadCount() - startReads) / seconds + " reads/s, " +
+            (getUpcallCount() - startUpcalls) / seconds + " upcalls/s");
   }
 }
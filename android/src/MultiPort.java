@@ -23,30 +23,66 @@ Copyright_License {
 
 package org.xcsoar;
 
+import java.nio.ByteBuffer;
 import java.util.Collection;
-import java.util.LinkedList;
 import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import android.util.Log;
 
 /**
  * An #AndroidPort implementation that combines multiple #AndroidPort
  * objects.
+ *
+ * Writes are copied once into a #BufferPool array and queued on a
+ * #PeerWriter for each child port, which share the copy by reference;
+ * write() never blocks on a slow peer.
  */
-class MultiPort implements AndroidPort, InputListener {
+class MultiPort implements AndroidPort, TimedInputListener {
   private InputListener listener;
 
   private static final String TAG = "XCSoar";
 
-  private Collection<AndroidPort> ports = new LinkedList<AndroidPort>();
+  private Collection<PeerWriter> peers =
+    new CopyOnWriteArrayList<PeerWriter>();
+
+  /**
+   * The #peers indexed by the port name, for contains().
+   */
+  private final Map<String, PeerWriter> peersByName =
+    new ConcurrentHashMap<String, PeerWriter>();
   private boolean error = false;
+  private boolean bulkMode = false;
+
+  /**
+   * The accumulated statistics of peers which have been removed.
+   * Protected by the object monitor.
+   */
+  private final long[] retiredStatistics = new long[PortStatistics.SIZE];
+
+  /**
+   * Add the peer's statistics to #retiredStatistics and close it.
+   */
+  private synchronized void retire(PeerWriter peer) {
+    long[] s = getPeerStatistics(peer);
+    peer.close();
+    PortStatistics.accumulate(retiredStatistics, s);
+  }
+
+  private static long[] getPeerStatistics(PeerWriter peer) {
+    long[] s = peer.port.getStatistics();
+    s[PortStatistics.DROPPED_BYTES] += peer.getDroppedBytes();
+    return s;
+  }
 
   private synchronized int checkValid() {
     boolean ready = false, limbo = false;
 
-    for (Iterator<AndroidPort> i = ports.iterator(); i.hasNext();) {
-      AndroidPort port = i.next();
+    for (PeerWriter peer : peers) {
+      AndroidPort port = peer.port;
 
-      switch (port.getState()) {
+      switch (peer.isFailed() ? STATE_FAILED : port.getState()) {
       case STATE_READY:
         ready = true;
         break;
@@ -54,8 +90,10 @@ class MultiPort implements AndroidPort, InputListener {
       case STATE_FAILED:
         Log.i(TAG, "Bluetooth disconnect from " + port);
 
-        i.remove();
-        port.close();
+        peers.remove(peer);
+        peersByName.remove(peer.port.toString());
+        retire(peer);
+        onPeerRemoved(port);
         error = true;
         break;
 
@@ -75,19 +113,36 @@ class MultiPort implements AndroidPort, InputListener {
       return STATE_FAILED;
   }
 
-  public synchronized void add(AndroidPort port) {
+  /**
+   * Called after a failed peer has been removed and closed.  The
+   * caller holds the object monitor.
+   */
+  protected void onPeerRemoved(AndroidPort port) {
+  }
+
+  public void add(AndroidPort port) {
+    add(port, PeerWriter.POLICY_DROP_OLDEST);
+  }
+
+  /**
+   * @param policy what to do when the peer doesn't receive quickly
+   * enough; one of the PeerWriter.POLICY_* constants
+   */
+  public synchronized void add(AndroidPort port, int policy) {
     error = false;
     checkValid();
 
-    ports.add(port);
+    PeerWriter peer =
+      new PeerWriter(port, policy, PeerWriter.DEFAULT_QUEUE_BYTES);
+    peers.add(peer);
+    peersByName.put(port.toString(), peer);
     port.setListener(this);
+    if (bulkMode)
+      port.setBulkMode(true);
   }
   
   public boolean contains(String name) {
-	  for (AndroidPort port : ports)
-	      if (port.toString().equals(name))
-	    	  return true;
-	  return false;
+    return peersByName.containsKey(name);
   }
 
   @Override public void setListener(InputListener _listener) {
@@ -97,51 +152,153 @@ class MultiPort implements AndroidPort, InputListener {
   @Override public synchronized void close() {
     error = true;
 
-    for (AndroidPort port : ports)
-      port.close();
+    for (PeerWriter peer : peers)
+      retire(peer);
 
-    ports.clear();
+    peers.clear();
+    peersByName.clear();
   }
 
   @Override public int getState() {
     return checkValid();
   }
 
-  @Override public boolean drain() {
-    // XXX not implemented
+  /**
+   * Returns the sum of the statistics of all current and former
+   * peers.
+   */
+  @Override public synchronized long[] getStatistics() {
+    long[] result = new long[PortStatistics.SIZE];
+    PortStatistics.accumulate(result, retiredStatistics);
+    for (PeerWriter peer : peers)
+      PortStatistics.accumulate(result, getPeerStatistics(peer));
+    return result;
+  }
+
+  /**
+   * Drain all peers in parallel, waiting for them with one common
+   * deadline.  Because the peers drain at the same time, each of them
+   * gets the whole timeout, and a slow peer does not shorten the time
+   * available to the others.  Peers which did not finish in time are
+   * logged.
+   */
+  @Override public boolean drain(int timeout_ms) {
+    final long deadline = System.nanoTime() + timeout_ms * 1000000L;
+
+    PeerWriter[] p = peers.toArray(new PeerWriter[0]);
+    long[] requests = new long[p.length];
+    for (int i = 0; i < p.length; ++i)
+      requests[i] = p[i].requestDrain(deadline);
+
+    StringBuilder failed = null;
+    for (int i = 0; i < p.length; ++i) {
+      if (!p[i].awaitDrain(requests[i], deadline)) {
+        if (failed == null)
+          failed = new StringBuilder();
+        else
+          failed.append(", ");
+        failed.append(p[i].port);
+      }
+    }
+
+    if (failed != null) {
+      Log.w(TAG, "Failed to drain " + failed);
+      return false;
+    }
+
     return true;
   }
 
-  @Override public synchronized int getBaudRate() {
-    // XXX not implemented
-    return 19200;
+  /**
+   * Returns the baud rate of the first peer; they are all configured
+   * with setBaudRate().  Without peers, the default rate of 19200 is
+   * returned.
+   */
+  @Override public int getBaudRate() {
+    Iterator<PeerWriter> i = peers.iterator();
+    return i.hasNext() ? i.next().port.getBaudRate() : 19200;
   }
 
   @Override public boolean setBaudRate(int baud) {
-    // XXX not implemented
-    return true;
+    boolean result = true;
+    for (PeerWriter peer : peers)
+      if (!peer.port.setBaudRate(baud))
+        result = false;
+    return result;
+  }
+
+  @Override public synchronized void setBulkMode(boolean enabled) {
+    bulkMode = enabled;
+
+    for (PeerWriter peer : peers)
+      peer.port.setBulkMode(enabled);
   }
 
-  @Override public synchronized int write(byte[] data, int length) {
+  /**
+   * Queue a copy of the data on all peers, and release the caller's
+   * reference.
+   *
+   * @return the length, unless all peers have failed; data which a
+   * peer's policy dropped counts as written, like data which a serial
+   * line loses
+   */
+  private int enqueue(PeerWriter.SharedData copy, int length,
+                      int priority) {
+    final long now = System.nanoTime();
     int result = -1;
 
-    for (Iterator<AndroidPort> i = ports.iterator(); i.hasNext();) {
-      AndroidPort port = i.next();
-      int nbytes = port.write(data, length);
-      if (nbytes < 0 && port.getState() == STATE_FAILED) {
-        error = true;
-        i.remove();
-        port.close();
-      } else if (nbytes > result)
-        result = nbytes;
-    }
+    for (PeerWriter peer : peers)
+      if (peer.enqueue(copy, length, now, priority) || !peer.isFailed())
+        result = length;
 
+    copy.release();
     return result;
   }
 
+  @Override public int write(byte[] data, int length) {
+    if (peers.isEmpty())
+      return -1;
+
+    byte[] copy = BufferPool.obtain(length);
+    System.arraycopy(data, 0, copy, 0, length);
+    return enqueue(new PeerWriter.SharedData(copy), length, PRIORITY_NORMAL);
+  }
+
+  @Override public int write(ByteBuffer data, int length, int priority) {
+    if (peers.isEmpty())
+      return -1;
+
+    byte[] copy = BufferPool.obtain(length);
+    final int position = data.position();
+    data.get(copy, 0, length);
+    data.position(position);
+    return enqueue(new PeerWriter.SharedData(copy), length, priority);
+  }
+
+  /**
+   * write() never blocks; the timeout is irrelevant.
+   */
+  @Override public int writeFully(ByteBuffer data, int length, int priority,
+                                  int timeout_ms) {
+    return write(data, length, priority);
+  }
+
   @Override public void dataReceived(byte[] data, int length) {
     InputListener l = listener;
     if (l != null)
       l.dataReceived(data, length);
   }
+
+  @Override public void bufferReceived(ByteBuffer buffer,
+                                       int offset, int length) {
+    InputChunk.deliver(listener, buffer, offset, length);
+  }
+
+  @Override public void timedBufferReceived(ByteBuffer buffer,
+                                            int offset, int length,
+                                            long time, int[] segments,
+                                            int nSegments) {
+    InputChunk.deliver(listener, buffer, offset, length,
+                       time, segments, nSegments);
+  }
 }
@@ -0,0 +1,262 @@
+/*
+Copyright_License {
+
+  XCSoar Glide Computer - http://www.xcsoar.org/
+  Copyright (C) 2000-2014 The XCSoar Project
+  A detailed list of copyright holders can be found in the file "AUTHORS".
+
+  This program is free software; you can redistribute it and/or
+  modify it under the terms of the GNU General Public License
+  as published by the Free Software Foundation; either version 2
+  of the License, or (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software
+  Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+}
+*/
+
+package org.xcsoar;
+
+/**
+ * Builds NMEA sentences in a byte array: fields are appended as ASCII,
+ * the XOR checksum is updated along the way, and numbers are formatted
+ * without boxing or temporary strings.  This is the way Java code
+ * generates NMEA.
+ *
+ * Usage:
+ *
+ *   s.begin("PXCS").field(42).field(1.5, 2).finish();
+ *   port.send(s.array(), s.length());
+ *   s.release();
+ *
+ * An instance is reusable but not thread-safe.  begin() obtains its
+ * array from the #BufferPool, and release() returns it, so an idle
+ * instance does not hold a pooled array.
+ */
+final class NMEASentence {
+  /**
+   * The maximum length of a sentence including "$", checksum and line
+   * terminator.  More than the 82 characters specified by NMEA 0183,
+   * because proprietary sentences (e.g. $BLEDISCOVER with a UUID)
+   * exceed it.
+   */
+  static final int MAX_LENGTH = 256;
+
+  private static final byte[] HEX = {
+    '0', '1', '2', '3', '4', '5', '6', '7',
+    '8', '9', 'A', 'B', 'C', 'D', 'E', 'F',
+  };
+
+  private static final long[] POW10 = {
+    1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L,
+    100000000L, 1000000000L,
+  };
+
+  /**
+   * Obtained by begin(); null after release().
+   */
+  private byte[] buffer;
+
+  private int length;
+  private int checksum;
+
+  /**
+   * Set when a field did not fit; finish() then discards the sentence.
+   */
+  private boolean overflow;
+
+  byte[] array() {
+    return buffer;
+  }
+
+  /**
+   * The length of the finished sentence; 0 if it did not fit.
+   */
+  int length() {
+    return length;
+  }
+
+  /**
+   * Start a new sentence, discarding the previous one.
+   *
+   * @param type the address field without "$", e.g. "GPRMC"
+   */
+  NMEASentence begin(String type) {
+    if (buffer == null)
+      buffer = BufferPool.obtain(MAX_LENGTH);
+
+    length = 0;
+    checksum = 0;
+    overflow = false;
+
+    buffer[length++] = '$';
+    appendText(type);
+    return this;
+  }
+
+  /**
+   * Append a text field.  Characters which are not printable ASCII or
+   * which are reserved by NMEA ('$', '*', '!', '\\', '^', '~' and ',')
+   * are replaced with '_'.
+   */
+  NMEASentence field(CharSequence value) {
+    appendByte(',');
+    appendText(value);
+    return this;
+  }
+
+  NMEASentence field(char value) {
+    appendByte(',');
+    appendByte(sanitize(value));
+    return this;
+  }
+
+  /**
+   * Append an integer field.
+   */
+  NMEASentence field(long value) {
+    appendByte(',');
+    appendLong(value);
+    return this;
+  }
+
+  /**
+   * Append a fixed-point field, rounded to the specified number of
+   * decimals.  NaN and infinity produce an empty field, which NMEA
+   * uses for "not available".
+   *
+   * @param decimals between 0 and 9
+   * @throws IllegalArgumentException if decimals is out of range
+   */
+  NMEASentence field(double value, int decimals) {
+    if (decimals < 0 || decimals >= POW10.length)
+      throw new IllegalArgumentException("Bad number of decimals: " +
+                                         decimals);
+
+    appendByte(',');
+
+    if (Double.isNaN(value) || Double.isInfinite(value))
+      return this;
+
+    final long scale = POW10[decimals];
+    final long scaled = Math.round(Math.abs(value) * scale);
+
+    if (value < 0 && scaled != 0)
+      appendByte('-');
+
+    appendLong(scaled / scale);
+
+    if (decimals > 0) {
+      appendByte('.');
+      long fraction = scaled % scale;
+      for (long p = scale / 10; p > 0; p /= 10) {
+        appendByte('0' + (int)(fraction / p));
+        fraction %= p;
+      }
+    }
+
+    return this;
+  }
+
+  /**
+   * Append an empty field.
+   */
+  NMEASentence empty() {
+    appendByte(',');
+    return this;
+  }
+
+  /**
+   * Append the checksum and the line terminator.
+   *
+   * @return the length of the sentence; 0 if it did not fit into
+   * #MAX_LENGTH
+   */
+  int finish() {
+    if (overflow || length + 5 > buffer.length) {
+      length = 0;
+      return 0;
+    }
+
+    final int c = checksum;
+    buffer[length++] = '*';
+    buffer[length++] = HEX[(c >> 4) & 0xf];
+    buffer[length++] = HEX[c & 0xf];
+    buffer[length++] = '\r';
+    buffer[length++] = '\n';
+    return length;
+  }
+
+  /**
+   * Return the array to the #BufferPool after the sentence has been
+   * sent.  The next begin() obtains a new one.
+   */
+  void release() {
+    byte[] b = buffer;
+    buffer = null;
+    length = 0;
+    if (b != null)
+      BufferPool.release(b);
+  }
+
+  private static byte sanitize(char ch) {
+    switch (ch) {
+    case '$':
+    case '*':
+    case '!':
+    case '\\':
+    case '^':
+    case '~':
+    case ',':
+      return '_';
+
+    default:
+      return ch >= 0x20 && ch < 0x7f ? (byte)ch : (byte)'_';
+    }
+  }
+
+  private void appendByte(int b) {
+    /* reserve room for "*XX\r\n" */
+    if (length + 5 >= buffer.length) {
+      overflow = true;
+      return;
+    }
+
+    buffer[length++] = (byte)b;
+    checksum ^= b;
+  }
+
+  private void appendText(CharSequence s) {
+    final int n = s.length();
+    for (int i = 0; i < n; ++i)
+      appendByte(sanitize(s.charAt(i)));
+  }
+
+  private void appendLong(long value) {
+    if (value < 0) {
+      appendByte('-');
+      if (value == Long.MIN_VALUE) {
+        /* cannot be negated */
+        appendText("9223372036854775808");
+        return;
+      }
+
+      value = -value;
+    }
+
+    long p = 1;
+    while (p <= value / 10)
+      p *= 10;
+
+    for (; p > 0; p /= 10) {
+      appendByte('0' + (int)(value / p));
+      value %= p;
+    }
+  }
+}
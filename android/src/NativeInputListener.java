@@ -23,11 +23,14 @@ Copyright_License {
 
 package org.xcsoar;
 
+import java.nio.ByteBuffer;
+
 /**
  * An #InputListener implementation that passes method calls to native
- * code.
+ * code.  Prefer the #TimedInputListener method, which avoids copying
+ * the data in JNI and passes the arrival time on.
  */
-class NativeInputListener implements InputListener {
+class NativeInputListener implements TimedInputListener {
   /**
    * A native pointer.
    */
@@ -38,4 +41,13 @@ class NativeInputListener implements InputListener {
   }
 
   @Override public native void dataReceived(byte[] data, int length);
+
+  @Override public native void bufferReceived(ByteBuffer buffer,
+                                              int offset, int length);
+
+  @Override public native void timedBufferReceived(ByteBuffer buffer,
+                                                   int offset, int length,
+                                                   long time,
+                                                   int[] segments,
+                                                   int nSegments);
 }
@@ -33,6 +33,7 @@
 package org.xcsoar;
 
 import android.util.Log;
+import android.os.SystemClock;
 import ioio.lib.api.IOIO;
 import ioio.lib.api.TwiMaster;
 import ioio.lib.api.DigitalInput;
@@ -44,6 +45,8 @@ import ioio.lib.api.exception.ConnectionLostException;
  *
  * We use a 100 KHz I2C clock because of radio interference reasons.
  *
+ * The TWI bus may be shared with other drivers, see #TwiBus.
+ *
  */
 final class Nunchuck extends Thread {
   interface Listener {
@@ -64,8 +67,23 @@ final class Nunchuck extends Thread {
   private static int[] u_data = new int[6];
   private static byte[] dummy = new byte[0];
 
-  private final int sleeptime;
-  private final TwiMaster h_twi;
+  /**
+   * The time from the data request until the data is ready [ms].
+   */
+  private static final int READY_TIME = 10;
+
+  /**
+   * The sample period [ms].
+   */
+  private final int period;
+
+  /**
+   * The SystemClock.elapsedRealtime() when the current sample was
+   * started.
+   */
+  private long cycleStart;
+
+  private final TwiBus bus;
   private final DigitalInput h_pin19;
   private final DigitalInput h_pin20;
   private final DigitalInput h_pin21;
@@ -83,7 +101,7 @@ final class Nunchuck extends Thread {
     throws ConnectionLostException {
     super("NUNCHUCK");
 
-    h_twi = ioio.openTwiMaster(twiNum, TwiMaster.Rate.RATE_100KHz, false);
+    bus = TwiBus.acquire(ioio, twiNum, TwiMaster.Rate.RATE_100KHz);
     h_pin19 = ioio.openDigitalInput(19, DigitalInput.Spec.Mode.PULL_UP);
     h_pin20 = ioio.openDigitalInput(20, DigitalInput.Spec.Mode.PULL_UP);
     h_pin21 = ioio.openDigitalInput(21, DigitalInput.Spec.Mode.PULL_UP);
@@ -92,21 +110,20 @@ final class Nunchuck extends Thread {
     h_pin24 = ioio.openDigitalInput(24, DigitalInput.Spec.Mode.PULL_UP);
 
     listener = _listener;
-    sleeptime = 1000 / sample_rate - 10;
+    period = 1000 / sample_rate;
 
     start();
   }
 
   public void close() {
-    if (h_twi != null)
-      h_twi.close();
-
     interrupt();
 
     try {
       join();
     } catch (InterruptedException e) {
     }
+
+    bus.release();
   }
 
   private int nunchuckDecodeByte (byte x) {
@@ -120,14 +137,14 @@ final class Nunchuck extends Thread {
     int[] u_cal = new int [16];
 
     // reset
-    if (!h_twi.writeRead(WII_NUN_ADDR, false, new byte[]{0x40, 0x00}, 2, dummy, 0)) return false;
+    if (!bus.writeRead(WII_NUN_ADDR, new byte[]{0x40, 0x00}, 2, dummy, 0)) return false;
     sleep(50);
 
     // read calibration data
-    if (!h_twi.writeRead(WII_NUN_ADDR, false, new byte[]{REG_CAL}, 1, dummy, 0)) return false;
+    if (!bus.writeRead(WII_NUN_ADDR, new byte[]{REG_CAL}, 1, dummy, 0)) return false;
     sleep(50);
 
-    if (!h_twi.writeRead(WII_NUN_ADDR, false, dummy, 0, cal, cal.length)) return false;
+    if (!bus.writeRead(WII_NUN_ADDR, dummy, 0, cal, cal.length)) return false;
     sleep(50);
 
     for (int i=0; i<cal.length; i++) {
@@ -158,19 +175,24 @@ final class Nunchuck extends Thread {
   private void readData() throws ConnectionLostException, InterruptedException {
     
     // 1. Send a request for data to the nunchuck
-    h_twi.writeRead(WII_NUN_ADDR, false, get_data, get_data.length, dummy, 0);
-
-    sleep(10);
+    bus.writeRead(WII_NUN_ADDR, get_data, get_data.length, dummy, 0);
 
-    // 2. read data
-    h_twi.writeRead(WII_NUN_ADDR, false, dummy, 0, data, data.length);
+    // 2. read data when it is ready; the bus is free for others meanwhile
+    bus.submit(SystemClock.elapsedRealtime() + READY_TIME, WII_NUN_ADDR,
+               dummy, 0, data, data.length).await();
     for (int i=0; i < data.length; i++) u_data[i] = nunchuckDecodeByte(data[i]);
   }
 
   private void loop() throws ConnectionLostException, InterruptedException {
 
+    /* sleep until the next sample is due */
+    final long delay = cycleStart + period - SystemClock.elapsedRealtime();
+    if (delay > 0)
+      sleep(delay);
+    cycleStart = SystemClock.elapsedRealtime();
+
     int joy_x = 1000; int joy_y = 0; int acc_x = 0; int acc_y = 0; int acc_z = 0; int switches = 0;
-    if (h_twi != null) {
+    if (bus != null) {
       readData();
       joy_x = ((u_data[0] - joy_x_0) * joy_x_sens) >> 16;
       joy_y = ((u_data[1] - joy_y_0) * joy_y_sens) >> 16;
@@ -187,8 +209,6 @@ final class Nunchuck extends Thread {
     if (h_pin24 != null) if (h_pin24.read()) switches += 0x80;
 
     listener.onNunchuckValues(joy_x, joy_y, acc_x, acc_y, acc_z, switches);
-
-    sleep(sleeptime);
   }
 
   @Override public void run() {
@@ -0,0 +1,685 @@
+/*
+Copyright_License {
+
+  XCSoar Glide Computer - http://www.xcsoar.org/
+  Copyright (C) 2000-2014 The XCSoar Project
+  A detailed list of copyright holders can be found in the file "AUTHORS".
+
+  This program is free software; you can redistribute it and/or
+  modify it under the terms of the GNU General Public License
+  as published by the Free Software Foundation; either version 2
+  of the License, or (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software
+  Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+}
+*/
+package org.xcsoar;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+import android.util.Log;
+
+/**
+ * A wrapper for an OutputStream which allows writing with a timeout.
+ *
+ * Data is queued in lock-free #RingBuffer objects: the writing thread
+ * (the producer) never has to wait while the stream blocks in
+ * OutputStream.write(), and the consumer submits data straight from
+ * the ring buffer's array.  The consumer is a task on the shared
+ * #PortExecutor which is scheduled when data gets queued and which
+ * finishes when the buffers are empty.  Wakeups are done with
+ * LockSupport.park() / unpark(), and only if the other side has
+ * announced that it is going to sleep.
+ *
+ * There are two lanes: urgent writes (AndroidPort.PRIORITY_URGENT)
+ * overtake bulk data which is still queued.  Each write() call is
+ * one message, and the consumer switches lanes only between two
+ * messages, so a sentence never gets torn apart.
+ */
+class OutputQueue {
+  private static final String TAG = "XCSoar";
+
+  static final int DEFAULT_BUFFER_SIZE = 256;
+
+  /**
+   * The capacity of the urgent lane.  Urgent writes are expected to
+   * be short.
+   */
+  private static final int URGENT_BUFFER_SIZE = 256;
+
+  /**
+   * The number of message boundaries remembered per lane; must be a
+   * power of two.
+   */
+  private static final int MAX_MARKS = 32;
+
+  /**
+   * One FIFO of the queue with its producer state.
+   */
+  private static final class Lane {
+    final RingBuffer buffer;
+
+    /**
+     * Serialises producers.  The ring buffer supports only one
+     * producer at a time, but callers are not required to know
+     * that.  The consumer never obtains this lock.
+     */
+    final Object writeLock = new Object();
+
+    /**
+     * The producer which is parked because the buffer is full, or
+     * null.
+     */
+    volatile Thread blockedWriter;
+
+    /**
+     * The write position at the end of the most recent message.
+     * Only the producer modifies it.
+     */
+    volatile long boundary;
+
+    /**
+     * The end positions of recent messages, which allow the consumer
+     * to stop after the current message.  This is a single-producer
+     * single-consumer queue; when it is full, new marks are not
+     * recorded, and the consumer falls back to #boundary.
+     */
+    final long[] marks = new long[MAX_MARKS];
+    volatile long markHead, markTail;
+
+    /**
+     * The most recent message end which the consumer has reached.
+     * Only accessed by the consumer.
+     */
+    long lastMark;
+
+    Lane(int bufferSize) {
+      buffer = new RingBuffer(BufferPool.obtain(bufferSize), bufferSize);
+    }
+
+    boolean isEmpty() {
+      return buffer.isEmpty();
+    }
+
+    /**
+     * Called by the producer at the end of each write() call.
+     */
+    void endMessage() {
+      final long end = buffer.writePosition();
+      final long t = markTail;
+      if (t - markHead < MAX_MARKS) {
+        marks[(int)t & (MAX_MARKS - 1)] = end;
+        markTail = t + 1;
+      }
+
+      boundary = end;
+    }
+
+    /**
+     * Has the consumer submitted a message completely, without
+     * having started the next one?  Does not modify the object.
+     */
+    boolean atBoundary() {
+      final long h = buffer.readPosition();
+      return h == boundary || h == lastMark;
+    }
+
+    /**
+     * Called by the consumer after consuming data: discard marks
+     * which have been passed.
+     */
+    void advanceMarks() {
+      final long h = buffer.readPosition();
+      long mh = markHead;
+      while (mh < markTail) {
+        final long m = marks[(int)mh & (MAX_MARKS - 1)];
+        if (m > h)
+          break;
+
+        lastMark = m;
+        markHead = ++mh;
+      }
+    }
+
+    /**
+     * Returns the read position where the current message ends, or
+     * -1 if that is unknown.  Called by the consumer after
+     * advanceMarks().
+     */
+    long nextBoundary() {
+      final long mh = markHead;
+      if (mh < markTail)
+        return marks[(int)mh & (MAX_MARKS - 1)];
+
+      final long b = boundary;
+      return b > buffer.readPosition() ? b : -1;
+    }
+  }
+
+  final String name;
+
+  private volatile OutputStream os;
+
+  private volatile int timeout = 0;
+
+  /**
+   * If positive, small amounts of bulk data are held back for up to
+   * this duration [ns] to be combined with subsequent writes into one
+   * packet (like Nagle's algorithm).
+   */
+  private volatile long coalesceDelay;
+
+  /**
+   * Data is submitted without delay as soon as this many bytes are
+   * buffered.
+   */
+  private volatile int coalesceThreshold;
+
+  private final Lane bulk, urgent;
+
+  private final PortStatistics statistics;
+
+  private final Executor executor;
+
+  /**
+   * Is the consumer task scheduled or running?  There is at most one
+   * at a time.
+   */
+  private final AtomicBoolean scheduled = new AtomicBoolean();
+
+  /**
+   * Have the lanes' arrays been returned to the #BufferPool?  This
+   * happens after close(), as soon as neither a producer nor the
+   * consumer can access them.
+   */
+  private final AtomicBoolean released = new AtomicBoolean();
+
+  /**
+   * The pool thread which is currently running the consumer task, or
+   * null.
+   */
+  private volatile Thread worker;
+
+  private final Runnable task = new Runnable() {
+      @Override public void run() {
+        flush();
+      }
+    };
+
+  /**
+   * Set by the consumer before it parks to wait for more data.
+   */
+  private volatile boolean idle;
+
+  /**
+   * The number of threads waiting in drain().  Only modified while
+   * holding this object's monitor.
+   */
+  private volatile int draining;
+
+  OutputQueue(String _name, OutputStream _os) {
+    this(_name, _os, DEFAULT_BUFFER_SIZE, new PortStatistics());
+  }
+
+  /**
+   * @param bufferSize the capacity of the bulk lane; must be a power
+   * of two
+   * @param _statistics counters to be updated by this object
+   */
+  OutputQueue(String _name, OutputStream _os, int bufferSize,
+              PortStatistics _statistics) {
+    name = _name;
+    os = _os;
+    bulk = new Lane(bufferSize);
+    urgent = new Lane(URGENT_BUFFER_SIZE);
+    statistics = _statistics;
+    executor = PortExecutor.getOutput();
+  }
+
+  void close() {
+    OutputStream os2;
+    synchronized(this) {
+      os2 = os;
+      if (os2 == null)
+        return;
+
+      os = null;
+    }
+
+    try {
+      os2.close();
+    } catch (IOException e) {
+    }
+
+    wakeUpAll();
+
+    /* wait for producers which are still inside the lanes; they check
+       #os after obtaining the lock, and will not touch the arrays
+       again */
+    synchronized(bulk.writeLock) {
+    }
+    synchronized(urgent.writeLock) {
+    }
+
+    releaseIfClosed();
+  }
+
+  /**
+   * Return the lanes' arrays to the #BufferPool if the queue has been
+   * closed and the consumer task is not running.  Whoever comes last
+   * (close() or the consumer) does it.
+   */
+  private void releaseIfClosed() {
+    if (os == null && !scheduled.get() && released.compareAndSet(false, true)) {
+      BufferPool.release(bulk.buffer.array());
+      BufferPool.release(urgent.buffer.array());
+    }
+  }
+
+  private void unparkWorker() {
+    Thread w = worker;
+    if (w != null)
+      LockSupport.unpark(w);
+  }
+
+  private static void unparkWriter(Lane lane) {
+    Thread w = lane.blockedWriter;
+    if (w != null)
+      LockSupport.unpark(w);
+  }
+
+  private void wakeUpAll() {
+    unparkWorker();
+    unparkWriter(bulk);
+    unparkWriter(urgent);
+
+    synchronized(this) {
+      notifyAll();
+    }
+  }
+
+  private boolean isEmpty() {
+    return bulk.isEmpty() && urgent.isEmpty();
+  }
+
+  /**
+   * Wait until the buffer has been submitted to the stream.
+   *
+   * @return false on timeout, or if the queue was closed
+   */
+  synchronized boolean drain(int timeout_ms) {
+    ++draining;
+
+    /* skip the coalescing delay */
+    unparkWorker();
+
+    final long deadline = System.nanoTime() + timeout_ms * 1000000L;
+
+    try {
+      while (os != null && !isEmpty()) {
+        final long remaining = deadline - System.nanoTime();
+        if (remaining <= 0)
+          return false;
+
+        try {
+          wait(remaining / 1000000, (int)(remaining % 1000000));
+        } catch (InterruptedException e) {
+          return false;
+        }
+      }
+    } finally {
+      --draining;
+    }
+
+    return os != null;
+  }
+
+  void setTimeout(int _timeout) {
+    timeout = _timeout;
+  }
+
+  /**
+   * Combine tiny writes into larger packets: when less than the
+   * threshold is buffered, wait up to the specified delay for more
+   * data before submitting it.  drain() and urgent writes submit
+   * immediately.
+   *
+   * @param delay_ms the maximum delay; 0 disables coalescing
+   */
+  void setCoalescing(int delay_ms, int threshold) {
+    coalesceThreshold = Math.min(threshold, bulk.buffer.capacity());
+    coalesceDelay = delay_ms * 1000000L;
+  }
+
+  /**
+   * Wait for more bulk data until the coalescing threshold or delay
+   * is reached.  Called by the consumer while the bulk lane is not
+   * empty.
+   */
+  private void waitCoalesce() {
+    final long delay = coalesceDelay;
+    if (delay <= 0)
+      return;
+
+    final RingBuffer buffer = bulk.buffer;
+    final int threshold = coalesceThreshold;
+    final long deadline = System.nanoTime() + delay;
+    while (buffer.size() < threshold && draining == 0 &&
+           urgent.isEmpty() && os != null) {
+      long remaining = deadline - System.nanoTime();
+      if (remaining <= 0)
+        break;
+
+      /* let the producer wake us up so we can check the threshold
+         again */
+      idle = true;
+      if (buffer.size() < threshold && draining == 0 &&
+          urgent.isEmpty())
+        LockSupport.parkNanos(this, remaining);
+      idle = false;
+    }
+  }
+
+  /**
+   * Called after data has been consumed: wake up a producer waiting
+   * for room, and drain() callers if the buffers are empty now.
+   */
+  private void notifyConsumed(Lane lane) {
+    unparkWriter(lane);
+
+    if (draining > 0 && isEmpty()) {
+      synchronized(this) {
+        notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Make sure the consumer task is scheduled.  Called by the producer
+   * after it has queued data.
+   */
+  private void schedule() {
+    if (!scheduled.get() && scheduled.compareAndSet(false, true))
+      executor.execute(task);
+  }
+
+  /**
+   * Choose the lane to be submitted next.  A message which has been
+   * started is always finished first; its producer will schedule the
+   * consumer again when it adds the rest.  Does not modify any state,
+   * so it may be called after the task has given up #scheduled.
+   *
+   * @return the lane or null if there is nothing to do
+   */
+  private Lane pick() {
+    if (!bulk.atBoundary())
+      return bulk.buffer.isEmpty() ? null : bulk;
+
+    if (!urgent.atBoundary())
+      return urgent.buffer.isEmpty() ? null : urgent;
+
+    if (!urgent.isEmpty())
+      return urgent;
+
+    if (!bulk.isEmpty())
+      return bulk;
+
+    return null;
+  }
+
+  /**
+   * The consumer task: submit buffered data to the stream until the
+   * buffers are empty.
+   */
+  private void flush() {
+    worker = Thread.currentThread();
+
+    try {
+      while (true) {
+        Lane lane;
+        while ((lane = pick()) != null) {
+          if (lane == bulk)
+            waitCoalesce();
+
+          OutputStream os2 = os;
+          if (os2 == null) {
+            // close() was called
+            worker = null;
+            scheduled.set(false);
+            releaseIfClosed();
+            return;
+          }
+
+          final RingBuffer buffer = lane.buffer;
+
+          int size = buffer.readable();
+
+          if (lane == bulk && !urgent.isEmpty()) {
+            /* stop after the current message to let the urgent data
+               through */
+            final long next = lane.nextBoundary();
+            if (next > 0 && next - buffer.readPosition() < size)
+              size = (int)(next - buffer.readPosition());
+          }
+
+          os2.write(buffer.array(), buffer.readOffset(), size);
+          buffer.consume(size);
+          lane.advanceMarks();
+          statistics.add(PortStatistics.BYTES_OUT, size);
+
+          notifyConsumed(lane);
+        }
+
+        worker = null;
+        scheduled.set(false);
+
+        /* a producer may have queued data after the pick() check but
+           before "scheduled" was cleared, and did not schedule a new
+           task then */
+        if (pick() == null || !scheduled.compareAndSet(false, true)) {
+          /* close() may have given up releasing the arrays because
+             this task was still running */
+          releaseIfClosed();
+          return;
+        }
+
+        worker = Thread.currentThread();
+      }
+    } catch (IOException e) {
+      worker = null;
+
+      if (os != null)
+        Log.e(TAG, "Failed to write to " + name, e);
+
+      close();
+
+      scheduled.set(false);
+      releaseIfClosed();
+    }
+  }
+
+  /**
+   * Wait until there is room in the buffer.  Caller must hold the
+   * lane's write lock.
+   *
+   * @param deadline the System.nanoTime() value when to give up
+   * @return false on timeout or if the stream was closed
+   */
+  private boolean waitRoom(Lane lane, long deadline) {
+    final RingBuffer buffer = lane.buffer;
+    lane.blockedWriter = Thread.currentThread();
+    try {
+      /* check again after announcing that we're going to sleep, or
+         else we may miss the consumer's wakeup */
+      while (buffer.size() >= buffer.capacity()) {
+        if (os == null)
+          return false;
+
+        long remaining = deadline - System.nanoTime();
+        if (remaining <= 0 || Thread.interrupted())
+          return false;
+
+        LockSupport.parkNanos(this, remaining);
+      }
+
+      return os != null;
+    } finally {
+      lane.blockedWriter = null;
+    }
+  }
+
+  private long getDeadline() {
+    return System.nanoTime() + timeout * 1000000L;
+  }
+
+  /**
+   * Update the statistics after data has been queued.
+   *
+   * @param nbytes the number of bytes that were queued, or -1 on
+   * timeout
+   */
+  private void countWrite(Lane lane, int length, int nbytes) {
+    statistics.increment(PortStatistics.WRITES);
+    if (nbytes < 0)
+      statistics.increment(PortStatistics.WRITE_TIMEOUTS);
+    else {
+      if (nbytes < length)
+        statistics.increment(PortStatistics.PARTIAL_WRITES);
+      statistics.max(PortStatistics.MAX_QUEUE_DEPTH, lane.buffer.size());
+    }
+  }
+
+  private void wakeUpConsumer() {
+    if (idle)
+      // notify the consumer that it may continue writing
+      unparkWorker();
+    else
+      schedule();
+  }
+
+  private Lane getLane(int priority) {
+    switch (priority) {
+    case AndroidPort.PRIORITY_NORMAL:
+      return bulk;
+
+    case AndroidPort.PRIORITY_URGENT:
+      return urgent;
+
+    default:
+      throw new IllegalArgumentException("Bad priority: " + priority);
+    }
+  }
+
+  public int write(byte[] data, int length) {
+    if (os == null)
+      return -1;
+
+    final Lane lane = bulk;
+    final RingBuffer buffer = lane.buffer;
+    int nbytes;
+    synchronized(lane.writeLock) {
+      if (os == null)
+        // closed meanwhile; the array may have been released
+        return -1;
+
+      nbytes = buffer.put(data, 0, length);
+      if (nbytes == 0 && length > 0) {
+        // buffer is full
+        if (timeout <= 0 || !waitRoom(lane, getDeadline())) {
+          // still full, timeout
+          countWrite(lane, length, -1);
+          return -1;
+        }
+
+        nbytes = buffer.put(data, 0, length);
+      }
+
+      lane.endMessage();
+      countWrite(lane, length, nbytes);
+    }
+
+    wakeUpConsumer();
+    return nbytes;
+  }
+
+  /**
+   * Write data from a #ByteBuffer, starting at its current position
+   * (which is not modified).  Unlike write(byte[], int), this method
+   * keeps waiting for room until all data has been queued or the
+   * timeout expires.
+   *
+   * @param priority one of the AndroidPort.PRIORITY_* constants
+   * @return the number of bytes that were queued or -1 on
+   * error/timeout
+   */
+  public int write(ByteBuffer data, int length, int priority) {
+    return write(data, length, priority, timeout > 0 ? getDeadline() : 0);
+  }
+
+  /**
+   * Like write(ByteBuffer, int, int), but wait for room until the
+   * specified timeout instead of the one passed to setTimeout().
+   *
+   * @param timeout_ms the maximum time to wait for room; 0 means
+   * queue only what fits right now
+   */
+  public int writeFully(ByteBuffer data, int length, int priority,
+                        int timeout_ms) {
+    return write(data, length, priority,
+                 timeout_ms > 0
+                 ? System.nanoTime() + timeout_ms * 1000000L
+                 : 0);
+  }
+
+  /**
+   * @param deadline the System.nanoTime() value when to stop waiting
+   * for room; 0 means don't wait
+   */
+  private int write(ByteBuffer data, int length, int priority,
+                    long deadline) {
+    final Lane lane = getLane(priority);
+
+    if (os == null)
+      return -1;
+
+    final RingBuffer buffer = lane.buffer;
+    final int position = data.position();
+    int nbytes = 0;
+    synchronized(lane.writeLock) {
+      if (os == null)
+        // closed meanwhile; the array may have been released
+        return -1;
+
+      while (nbytes < length) {
+        int n = buffer.put(data, length - nbytes);
+        if (n > 0) {
+          nbytes += n;
+          wakeUpConsumer();
+          continue;
+        }
+
+        // buffer is full
+        if (deadline == 0 || !waitRoom(lane, deadline))
+          break;
+      }
+
+      lane.endMessage();
+      countWrite(lane, length, nbytes > 0 ? nbytes : -1);
+    }
+
+    wakeUpConsumer();
+    data.position(position);
+    return nbytes > 0 ? nbytes : -1;
+  }
+}
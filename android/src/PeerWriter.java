@@ -0,0 +1,476 @@
+/*
+Copyright_License {
+
+  XCSoar Glide Computer - http://www.xcsoar.org/
+  Copyright (C) 2000-2014 The XCSoar Project
+  A detailed list of copyright holders can be found in the file "AUTHORS".
+
+  This program is free software; you can redistribute it and/or
+  modify it under the terms of the GNU General Public License
+  as published by the Free Software Foundation; either version 2
+  of the License, or (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software
+  Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+}
+*/
+
+package org.xcsoar;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicInteger;
+import android.util.Log;
+
+/**
+ * Feeds one child port of a #MultiPort from a bounded queue, so a
+ * slow peer cannot stall the others or the writing thread.  The
+ * queued data is shared by reference between all peers (see
+ * #SharedData) and must not be modified.
+ */
+final class PeerWriter implements Runnable {
+  private static final String TAG = "XCSoar";
+
+  /**
+   * When the queue is full, discard the oldest queued write.
+   */
+  static final int POLICY_DROP_OLDEST = 0;
+
+  /**
+   * When the queue is full, discard the new write.
+   */
+  static final int POLICY_DROP_NEWEST = 1;
+
+  /**
+   * When the queue is full, give up on this peer; the #MultiPort will
+   * disconnect it.
+   */
+  static final int POLICY_DISCONNECT = 2;
+
+  static final int DEFAULT_QUEUE_BYTES = 16384;
+
+  /**
+   * A copy of written data which is queued on several peers.  The
+   * array was obtained from the #BufferPool and is returned to it
+   * when the last reference is released.
+   */
+  static final class SharedData {
+    final byte[] array;
+
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    /**
+     * Creates the object with one reference, owned by the caller.
+     */
+    SharedData(byte[] _array) {
+      array = _array;
+    }
+
+    void retain() {
+      references.incrementAndGet();
+    }
+
+    void release() {
+      if (references.decrementAndGet() == 0)
+        BufferPool.release(array);
+    }
+  }
+
+  private static final class Entry {
+    final SharedData data;
+    final int length;
+
+    /**
+     * The System.nanoTime() when this entry was queued.
+     */
+    final long time;
+
+    /**
+     * One of the AndroidPort.PRIORITY_* constants.
+     */
+    final int priority;
+
+    Entry(SharedData _data, int _length, long _time, int _priority) {
+      data = _data;
+      length = _length;
+      time = _time;
+      priority = _priority;
+    }
+  }
+
+  /**
+   * A pseudo entry returned by take(): the queue is empty, and the
+   * port shall be drained.
+   */
+  private static final Entry DRAIN =
+    new Entry(null, 0, 0, AndroidPort.PRIORITY_NORMAL);
+
+  final AndroidPort port;
+
+  private final int policy;
+  private final int maxQueuedBytes;
+
+  /**
+   * The queued entries; urgent ones are at the front.
+   */
+  private final LinkedList<Entry> queue = new LinkedList<Entry>();
+  private int queuedBytes;
+
+  /**
+   * The number of urgent entries at the front of #queue.
+   */
+  private int nUrgent;
+
+  private boolean closed;
+  private volatile boolean failed;
+
+  /**
+   * Is the writer task scheduled or running?
+   */
+  private boolean running;
+
+  private long droppedBytes, writtenBytes, writeCount;
+  private long totalLag, maxLag;
+  private int peakQueuedBytes;
+
+  /**
+   * The number of drain requests so far, and the number of the last
+   * one which has been completed.
+   */
+  private long drainRequest, drainDone;
+
+  /**
+   * The result of the last AndroidPort.drain() call.
+   */
+  private boolean drainResult;
+
+  /**
+   * The System.nanoTime() of the oldest pending drain request.
+   */
+  private long drainRequestTime;
+
+  /**
+   * The System.nanoTime() until which the pending drain requests
+   * are willing to wait.
+   */
+  private long drainDeadline;
+
+  private long flushCount, totalFlushTime, maxFlushTime;
+
+  /**
+   * @param _policy one of the POLICY_* constants
+   * @param _maxQueuedBytes the maximum number of bytes in the queue
+   */
+  PeerWriter(AndroidPort _port, int _policy, int _maxQueuedBytes) {
+    port = _port;
+    policy = _policy;
+    maxQueuedBytes = _maxQueuedBytes;
+  }
+
+  /**
+   * Has this peer failed, or was it found too slow?  It should be
+   * removed.
+   */
+  boolean isFailed() {
+    return failed;
+  }
+
+  /**
+   * Make sure the writer task is scheduled.  Caller must hold the
+   * monitor.
+   */
+  private void schedule() {
+    if (!running) {
+      running = true;
+      PortExecutor.getOutput().execute(this);
+    }
+  }
+
+  /**
+   * Queue a write.  Never blocks.
+   *
+   * @param data the data to be written; it is shared, and the caller
+   * must not modify it.  A reference is added if it gets queued.
+   * @param time the System.nanoTime() of the write
+   * @param priority one of the AndroidPort.PRIORITY_* constants;
+   * urgent writes overtake queued regular ones
+   * @return false if the data was not queued
+   */
+  synchronized boolean enqueue(SharedData data, int length, long time,
+                               int priority) {
+    if (closed || failed)
+      return false;
+
+    while (queuedBytes + length > maxQueuedBytes && !queue.isEmpty()) {
+      switch (policy) {
+      case POLICY_DROP_OLDEST:
+        /* prefer dropping regular data */
+        Entry oldest;
+        if (queue.size() > nUrgent)
+          oldest = queue.remove(nUrgent);
+        else {
+          oldest = queue.removeFirst();
+          --nUrgent;
+        }
+
+        queuedBytes -= oldest.length;
+        droppedBytes += oldest.length;
+        oldest.data.release();
+        break;
+
+      case POLICY_DROP_NEWEST:
+        droppedBytes += length;
+        return false;
+
+      default:
+        Log.w(TAG, "Disconnecting slow peer " + port);
+        failed = true;
+        return false;
+      }
+    }
+
+    data.retain();
+    Entry entry = new Entry(data, length, time, priority);
+    if (priority == AndroidPort.PRIORITY_URGENT)
+      queue.add(nUrgent++, entry);
+    else
+      queue.addLast(entry);
+
+    queuedBytes += length;
+    if (queuedBytes > peakQueuedBytes)
+      peakQueuedBytes = queuedBytes;
+
+    schedule();
+    return true;
+  }
+
+  /**
+   * Ask the writer task to drain the port after all queued entries
+   * have been written.  Never blocks; use awaitDrain() to wait for
+   * completion.
+   *
+   * @param deadline the System.nanoTime() value when the caller will
+   * give up; the port's drain() is not allowed to block longer
+   * @return the request number to be passed to awaitDrain()
+   */
+  synchronized long requestDrain(long deadline) {
+    if (drainRequest == drainDone) {
+      drainRequestTime = System.nanoTime();
+      drainDeadline = deadline;
+    } else if (deadline - drainDeadline > 0)
+      drainDeadline = deadline;
+
+    ++drainRequest;
+    if (!closed && !failed)
+      schedule();
+    return drainRequest;
+  }
+
+  /**
+   * Wait until the specified drain request has completed.
+   *
+   * @param deadline the System.nanoTime() value when to give up
+   * @return true if the port was drained successfully
+   */
+  synchronized boolean awaitDrain(long request, long deadline) {
+    while (drainDone < request) {
+      if (closed || failed)
+        return false;
+
+      long remaining = deadline - System.nanoTime();
+      if (remaining <= 0)
+        return false;
+
+      try {
+        wait(remaining / 1000000, (int)(remaining % 1000000));
+      } catch (InterruptedException e) {
+        return false;
+      }
+    }
+
+    return drainResult;
+  }
+
+  synchronized long getDroppedBytes() {
+    return droppedBytes;
+  }
+
+  /**
+   * The average time between enqueue() and completion of the write
+   * [ms].
+   */
+  synchronized long getAverageLagMillis() {
+    return writeCount > 0 ? totalLag / writeCount / 1000000 : 0;
+  }
+
+  /**
+   * The maximum time between enqueue() and completion of the write
+   * [ms].
+   */
+  synchronized long getMaxLagMillis() {
+    return maxLag / 1000000;
+  }
+
+  /**
+   * The average time between requestDrain() and the completion of
+   * the drain [ms].
+   */
+  synchronized long getAverageFlushMillis() {
+    return flushCount > 0 ? totalFlushTime / flushCount / 1000000 : 0;
+  }
+
+  /**
+   * The maximum time between requestDrain() and the completion of
+   * the drain [ms].
+   */
+  synchronized long getMaxFlushMillis() {
+    return maxFlushTime / 1000000;
+  }
+
+  /**
+   * Stop the writer task and close the port.
+   */
+  void close() {
+    synchronized(this) {
+      closed = true;
+    }
+
+    /* unblocks a pending write */
+    port.close();
+
+    synchronized(this) {
+      while (running) {
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          break;
+        }
+      }
+
+      discardQueue();
+    }
+
+    Log.i(TAG, "Peer " + port + ": " + writtenBytes + " bytes written, " +
+          droppedBytes + " dropped, peak queue " + peakQueuedBytes +
+          " bytes, lag avg " + getAverageLagMillis() + " ms, max " +
+          getMaxLagMillis() + " ms, flush avg " + getAverageFlushMillis() +
+          " ms, max " + getMaxFlushMillis() + " ms");
+  }
+
+  /**
+   * Release all queued entries.  Caller must hold the monitor.
+   */
+  private void discardQueue() {
+    for (Entry entry : queue)
+      entry.data.release();
+
+    queue.clear();
+    queuedBytes = 0;
+    nUrgent = 0;
+  }
+
+  /**
+   * Remove the next entry from the queue.  Returns #DRAIN if the
+   * queue is empty and a drain was requested.  Returns null and marks
+   * the task as finished if there is nothing to do.
+   */
+  private synchronized Entry take() {
+    if (queue.isEmpty() || closed || failed) {
+      if (drainDone < drainRequest && !closed && !failed)
+        return DRAIN;
+
+      discardQueue();
+      running = false;
+      notifyAll();
+      return null;
+    }
+
+    Entry entry = queue.removeFirst();
+    queuedBytes -= entry.length;
+    if (entry.priority == AndroidPort.PRIORITY_URGENT)
+      --nUrgent;
+    return entry;
+  }
+
+  /**
+   * Update the statistics after an entry has been written.
+   */
+  private synchronized void complete(Entry entry, int nbytes) {
+    writtenBytes += nbytes;
+    droppedBytes += entry.length - nbytes;
+
+    final long lag = System.nanoTime() - entry.time;
+    totalLag += lag;
+    ++writeCount;
+    if (lag > maxLag)
+      maxLag = lag;
+  }
+
+  /**
+   * Drain the port on behalf of all pending drain requests.
+   */
+  private void drainPort() {
+    final long request, deadline;
+    synchronized(this) {
+      request = drainRequest;
+      deadline = drainDeadline;
+    }
+
+    final long remaining = deadline - System.nanoTime();
+    final boolean result = remaining > 0 &&
+      port.drain((int)Math.min(remaining / 1000000 + 1, Integer.MAX_VALUE));
+
+    synchronized(this) {
+      final long flushTime = System.nanoTime() - drainRequestTime;
+      totalFlushTime += flushTime;
+      ++flushCount;
+      if (flushTime > maxFlushTime)
+        maxFlushTime = flushTime;
+
+      drainDone = request;
+      drainResult = result;
+
+      /* a new request may have arrived meanwhile */
+      drainRequestTime = System.nanoTime();
+      notifyAll();
+    }
+  }
+
+  @Override public void run() {
+    Entry entry;
+    while ((entry = take()) != null) {
+      if (entry == DRAIN) {
+        drainPort();
+        continue;
+      }
+
+      ByteBuffer buffer = ByteBuffer.wrap(entry.data.array, 0, entry.length);
+
+      int nbytes = 0;
+      while (nbytes < entry.length) {
+        int n = port.write(buffer, entry.length - nbytes, entry.priority);
+        if (n < 0) {
+          if (port.getState() == AndroidPort.STATE_FAILED) {
+            failed = true;
+            break;
+          }
+
+          /* timeout: give up on this entry */
+          break;
+        }
+
+        nbytes += n;
+        buffer.position(nbytes);
+      }
+
+      complete(entry, nbytes);
+      entry.data.release();
+    }
+  }
+}
@@ -0,0 +1,300 @@
+/*
+Copyright_License {
+
+  XCSoar Glide Computer - http://www.xcsoar.org/
+  Copyright (C) 2000-2014 The XCSoar Project
+  A detailed list of copyright holders can be found in the file "AUTHORS".
+
+  This program is free software; you can redistribute it and/or
+  modify it under the terms of the GNU General Public License
+  as published by the Free Software Foundation; either version 2
+  of the License, or (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software
+  Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+}
+*/
+
+package org.xcsoar;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Thread pools shared by all ports.  They run the stages of the I/O
+ * pipeline which used to have a dedicated thread per port:
+ * submitting buffered output to the stream (#OutputQueue),
+ * delivering received data to the listener (#InputDispatcher) and
+ * feeding #MultiPort peers (#PeerWriter).  Each of these schedules
+ * one task while it has work, and the task returns when there is
+ * none left, so an idle port occupies no thread at all.
+ *
+ * Only the blocking InputStream.read() calls keep one #InputThread
+ * per port; neither Bluetooth sockets nor IOIO streams are
+ * selectable, so they cannot be multiplexed.
+ *
+ * There are three pools.  The output pool runs the tasks which write
+ * to ports or streams (#OutputQueue, #PeerWriter); the delivery pool
+ * runs the tasks which call listeners (#InputDispatcher); the
+ * activation pool opens the peripherals of a new IOIO connection
+ * (#IOIOHelper) and runs the #IOIOHeartbeat round trips.  All would work in one pool, but separate pools
+ * (and thread names) make it obvious in a stack dump which stage is
+ * stuck.
+ *
+ * Thread budget: each pool has at most #DEFAULT_THREAD_BUDGET
+ * threads (see setThreadBudget()), which are created on demand and
+ * exit after being idle for #KEEP_ALIVE_S seconds.  The default
+ * allows one thread per configurable device, so one port whose peer
+ * does not receive (and which blocks in OutputStream.write()) does
+ * not delay the others.
+ *
+ * Saturation: when all threads of a pool are busy, new tasks wait in
+ * the pool's backlog.  Each stage schedules at most one task per
+ * port, so the backlog is bounded by the number of ports; its
+ * capacity #MAX_BACKLOG is only a safety net.  The first task which
+ * has to wait logs a warning (at most every #WARNING_INTERVAL_MS), and
+ * getSaturationCount() counts all of them.  If the backlog is full nevertheless, the task is run on a
+ * new thread of its own (and an error is logged), because dropping
+ * it would stall its port forever.
+ *
+ * A single timer thread triggers delayed work, such as delivering
+ * coalesced input (#InputThread) when its latency budget expires.
+ * Its tasks must never block; they hand the actual work to one of
+ * the pools.
+ */
+final class PortExecutor {
+  private static final String TAG = "XCSoar";
+
+  /**
+   * The default maximum number of threads per pool: the number of
+   * devices which can be configured.
+   */
+  static final int DEFAULT_THREAD_BUDGET = 6;
+
+  /**
+   * The maximum number of tasks waiting for a pool thread.
+   */
+  static final int MAX_BACKLOG = 256;
+
+  /**
+   * How long does an idle pool thread wait for a new task before it
+   * exits? [s]
+   */
+  private static final int KEEP_ALIVE_S = 60;
+
+  /**
+   * The minimum interval between two saturation warnings of a pool.
+   */
+  private static final long WARNING_INTERVAL_MS = 10000;
+
+  private static final AtomicInteger threadNumber = new AtomicInteger();
+
+  private static ThreadFactory createThreadFactory(final String name) {
+    return new ThreadFactory() {
+        @Override public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, name + " " +
+                                threadNumber.incrementAndGet());
+          t.setDaemon(true);
+          return t;
+        }
+      };
+  }
+
+  /**
+   * Runs a task which does not fit into the backlog on a new thread.
+   */
+  private static final RejectedExecutionHandler overflowHandler =
+    new RejectedExecutionHandler() {
+      @Override public void rejectedExecution(Runnable r,
+                                              ThreadPoolExecutor executor) {
+        if (executor.isShutdown())
+          return;
+
+        Pool pool = (Pool)executor;
+        pool.overflows.incrementAndGet();
+        Log.e(TAG, pool.name + " backlog is full");
+
+        Thread t = new Thread(r, pool.name + " overflow");
+        t.setDaemon(true);
+        t.start();
+      }
+    };
+
+  /**
+   * A bounded pool which keeps track of saturation.
+   */
+  private static final class Pool extends ThreadPoolExecutor {
+    final String name;
+
+    final AtomicLong saturations = new AtomicLong();
+    final AtomicLong overflows = new AtomicLong();
+
+    /**
+     * When was the last saturation warning logged?  [SystemClock.
+     * elapsedRealtime()]
+     */
+    private long lastWarning = -WARNING_INTERVAL_MS;
+
+    /**
+     * The value of #saturations when the last warning was logged.
+     */
+    private long lastWarningCount;
+
+    Pool(String _name, int budget) {
+      super(budget, budget, KEEP_ALIVE_S, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(MAX_BACKLOG),
+            createThreadFactory(_name), overflowHandler);
+      allowCoreThreadTimeOut(true);
+      name = _name;
+    }
+
+    @Override public void execute(Runnable r) {
+      final int active = getActiveCount();
+      if (active >= getMaximumPoolSize()) {
+        onSaturated();
+      } else if (getQueue().size() < getPoolSize() - active &&
+                 getQueue().offer(r)) {
+        /* an idle thread will pick it up; ThreadPoolExecutor would
+           create a new one while there are fewer than "core" */
+        if (getPoolSize() == 0)
+          prestartCoreThread();
+        return;
+      }
+
+      super.execute(r);
+    }
+
+    private synchronized void onSaturated() {
+      final long count = saturations.incrementAndGet();
+      final long now = SystemClock.elapsedRealtime();
+      if (now - lastWarning >= WARNING_INTERVAL_MS) {
+        Log.w(TAG, name + " pool saturated: all " +
+              getMaximumPoolSize() + " threads were busy for " +
+              (count - lastWarningCount) + " tasks");
+        lastWarning = now;
+        lastWarningCount = count;
+      }
+    }
+
+    void setBudget(int n) {
+      if (n > getMaximumPoolSize()) {
+        setMaximumPoolSize(n);
+        setCorePoolSize(n);
+      } else {
+        setCorePoolSize(n);
+        setMaximumPoolSize(n);
+      }
+    }
+  }
+
+  private static final Pool output =
+    new Pool("PortOutput", DEFAULT_THREAD_BUDGET);
+
+  private static final Pool delivery =
+    new Pool("PortDelivery", DEFAULT_THREAD_BUDGET);
+
+  private static final Pool activation =
+    new Pool("IOIOActivation", DEFAULT_THREAD_BUDGET);
+
+  private static final ScheduledThreadPoolExecutor timer =
+    new ScheduledThreadPoolExecutor(1, createThreadFactory("PortTimer"));
+
+  private PortExecutor() {}
+
+  /**
+   * The pool for tasks which write to a port or a stream, i.e.
+   * #OutputQueue and #PeerWriter tasks.
+   */
+  static Executor getOutput() {
+    return output;
+  }
+
+  /**
+   * The pool for #InputDispatcher tasks.
+   */
+  static Executor getDelivery() {
+    return delivery;
+  }
+
+  /**
+   * The pool for #IOIOHelper listener activation tasks and the
+   * blocking #IOIOHeartbeat calls.
+   */
+  static Executor getActivation() {
+    return activation;
+  }
+
+  /**
+   * The timer for delayed work.  Its tasks must not block.
+   */
+  static ScheduledExecutorService getTimer() {
+    return timer;
+  }
+
+  /**
+   * Change the maximum number of threads of each pool.
+   */
+  static synchronized void setThreadBudget(int n) {
+    if (n < 1)
+      throw new IllegalArgumentException();
+
+    output.setBudget(n);
+    delivery.setBudget(n);
+    activation.setBudget(n);
+  }
+
+  static int getThreadBudget() {
+    return output.getMaximumPoolSize();
+  }
+
+  /**
+   * The number of pool threads which currently exist.
+   */
+  static int getPoolSize() {
+    return output.getPoolSize() + delivery.getPoolSize() +
+      activation.getPoolSize();
+  }
+
+  /**
+   * The largest number of threads which have ever existed at the
+   * same time, summed over all pools.
+   */
+  static int getLargestPoolSize() {
+    return output.getLargestPoolSize() + delivery.getLargestPoolSize() +
+      activation.getLargestPoolSize();
+  }
+
+  /**
+   * The number of tasks which had to wait because all threads of
+   * their pool were busy.
+   */
+  static long getSaturationCount() {
+    return output.saturations.get() + delivery.saturations.get() +
+      activation.saturations.get();
+  }
+
+  /**
+   * The number of tasks which did not fit into the backlog and got a
+   * thread of their own.
+   */
+  static long getOverflowCount() {
+    return output.overflows.get() + delivery.overflows.get() +
+      activation.overflows.get();
+  }
+}
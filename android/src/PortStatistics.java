@@ -0,0 +1,124 @@
+/*
+Copyright_License {
+
+  XCSoar Glide Computer - http://www.xcsoar.org/
+  Copyright (C) 2000-2014 The XCSoar Project
+  A detailed list of copyright holders can be found in the file "AUTHORS".
+
+  This program is free software; you can redistribute it and/or
+  modify it under the terms of the GNU General Public License
+  as published by the Free Software Foundation; either version 2
+  of the License, or (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software
+  Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+}
+*/
+
+package org.xcsoar;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free I/O counters of one #AndroidPort.  They are updated by
+ * the port's I/O threads and read by native code as one snapshot (see
+ * AndroidPort.getStatistics()).
+ *
+ * Warning: the index constants are hard-coded in the C++ class
+ * PortBridge.
+ */
+final class PortStatistics {
+  static final int BYTES_IN = 0;
+  static final int BYTES_OUT = 1;
+
+  /**
+   * The number of read() calls on the input stream.
+   */
+  static final int READS = 2;
+
+  /**
+   * The number of write() calls on the port.
+   */
+  static final int WRITES = 3;
+
+  /**
+   * The number of calls to the #InputListener.
+   */
+  static final int UPCALLS = 4;
+
+  static final int MAX_READ_SIZE = 5;
+
+  /**
+   * The largest number of bytes that were waiting in the
+   * #OutputQueue buffer.
+   */
+  static final int MAX_QUEUE_DEPTH = 6;
+
+  static final int WRITE_TIMEOUTS = 7;
+
+  /**
+   * The number of write() calls which accepted only part of the
+   * data.
+   */
+  static final int PARTIAL_WRITES = 8;
+
+  static final int RECONNECTS = 9;
+
+  /**
+   * Received or written bytes that were discarded because a queue was
+   * full.
+   */
+  static final int DROPPED_BYTES = 10;
+
+  static final int SIZE = 11;
+
+  private final AtomicLongArray values = new AtomicLongArray(SIZE);
+
+  void increment(int index) {
+    values.incrementAndGet(index);
+  }
+
+  void add(int index, long delta) {
+    values.addAndGet(index, delta);
+  }
+
+  /**
+   * Raise the value to the specified one, if it is smaller.
+   */
+  void max(int index, long value) {
+    long old;
+    while ((old = values.get(index)) < value &&
+           !values.compareAndSet(index, old, value)) {
+    }
+  }
+
+  long get(int index) {
+    return values.get(index);
+  }
+
+  long[] snapshot() {
+    long[] result = new long[SIZE];
+    for (int i = 0; i < SIZE; ++i)
+      result[i] = values.get(i);
+    return result;
+  }
+
+  /**
+   * Add all counters of a snapshot to another one.  Maximum values
+   * are merged with max().
+   */
+  static void accumulate(long[] dest, long[] src) {
+    for (int i = 0; i < SIZE && i < src.length; ++i) {
+      if (i == MAX_READ_SIZE || i == MAX_QUEUE_DEPTH)
+        dest[i] = Math.max(dest[i], src[i]);
+      else
+        dest[i] += src[i];
+    }
+  }
+}
@@ -23,6 +23,8 @@ Copyright_License {
 
 package org.xcsoar;
 
+import java.nio.ByteBuffer;
+
 /**
  * A an abstract base class for #AndroidPort implementations that act
  * as a proxy for another #AndroidPort instance.
@@ -30,6 +32,7 @@ package org.xcsoar;
 abstract class ProxyAndroidPort implements AndroidPort {
   private AndroidPort port;
   private InputListener listener;
+  private boolean bulkMode;
 
   protected void setPort(AndroidPort _port) {
     AndroidPort oldPort = this.port;
@@ -37,8 +40,11 @@ abstract class ProxyAndroidPort implements AndroidPort {
     if (oldPort != null)
       oldPort.close();
 
-    if (port != null)
+    if (port != null) {
       port.setListener(listener);
+      if (bulkMode)
+        port.setBulkMode(true);
+    }
   }
 
   @Override public String toString() {
@@ -70,9 +76,9 @@ abstract class ProxyAndroidPort implements AndroidPort {
       : STATE_FAILED;
   }
 
-  @Override public boolean drain() {
+  @Override public boolean drain(int timeout_ms) {
     AndroidPort port = this.port;
-    return port != null && port.drain();
+    return port != null && port.drain(timeout_ms);
   }
 
   @Override public int getBaudRate() {
@@ -85,10 +91,40 @@ abstract class ProxyAndroidPort implements AndroidPort {
     return port != null && port.setBaudRate(baud);
   }
 
+  @Override public void setBulkMode(boolean enabled) {
+    bulkMode = enabled;
+
+    AndroidPort port = this.port;
+    if (port != null)
+      port.setBulkMode(enabled);
+  }
+
+  @Override public long[] getStatistics() {
+    AndroidPort port = this.port;
+    return port != null
+      ? port.getStatistics()
+      : new long[PortStatistics.SIZE];
+  }
+
   @Override public int write(byte[] data, int length) {
     AndroidPort port = this.port;
     return port != null
       ? port.write(data, length)
       : 0;
   }
+
+  @Override public int write(ByteBuffer data, int length, int priority) {
+    AndroidPort port = this.port;
+    return port != null
+      ? port.write(data, length, priority)
+      : 0;
+  }
+
+  @Override public int writeFully(ByteBuffer data, int length, int priority,
+                                  int timeout_ms) {
+    AndroidPort port = this.port;
+    return port != null
+      ? port.writeFully(data, length, priority, timeout_ms)
+      : 0;
+  }
 }
@@ -0,0 +1,295 @@
+/*
+Copyright_License {
+
+  XCSoar Glide Computer - http://www.xcsoar.org/
+  Copyright (C) 2000-2014 The XCSoar Project
+  A detailed list of copyright holders can be found in the file "AUTHORS".
+
+  This program is free software; you can redistribute it and/or
+  modify it under the terms of the GNU General Public License
+  as published by the Free Software Foundation; either version 2
+  of the License, or (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software
+  Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+}
+*/
+
+package org.xcsoar;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import android.util.Log;
+
+/**
+ * An #AndroidPort which plays back a #CaptureFile: the received
+ * data is passed to the listener, with the recorded timing scaled by
+ * a speed factor.  Written data is discarded.  When the end of the
+ * recording is reached, the port fails, just like a disconnected
+ * device.
+ *
+ * Playback begins when the first listener is set, so no data is
+ * lost while the port is being set up.
+ */
+final class ReplayPort implements AndroidPort, Runnable {
+  private static final String TAG = "XCSoar";
+
+  /**
+   * Play back as fast as the listener accepts the data.
+   */
+  static final double SPEED_UNLIMITED = 0;
+
+  private final String name;
+  private final ByteBuffer data;
+  private final double speed;
+
+  private volatile InputListener listener;
+
+  private final PortStatistics statistics = new PortStatistics();
+
+  private final Thread thread;
+
+  /**
+   * Has the #thread been started?  Protected by the object monitor.
+   */
+  private boolean started;
+
+  /**
+   * Each record is delivered as one segment; see #TimedInputListener.
+   */
+  private final int[] segment = new int[2];
+
+  private volatile boolean closed, finished;
+
+  /**
+   * @param _speed the playback speed relative to the recording (1 =
+   * real time, 10 = ten times faster), or #SPEED_UNLIMITED
+   */
+  ReplayPort(File path, double _speed) throws IOException {
+    name = path.getName();
+    speed = _speed;
+
+    RandomAccessFile file = new RandomAccessFile(path, "r");
+    try {
+      FileChannel channel = file.getChannel();
+      data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    } finally {
+      /* the mapping remains valid */
+      file.close();
+    }
+
+    data.order(ByteOrder.LITTLE_ENDIAN);
+    if (data.remaining() < CaptureFile.FILE_HEADER_SIZE ||
+        data.getInt(0) != CaptureFile.MAGIC ||
+        data.getInt(4) != CaptureFile.VERSION)
+      throw new IOException("Not a capture file: " + path);
+
+    data.position(CaptureFile.FILE_HEADER_SIZE);
+
+    thread = new Thread(this, "ReplayPort " + name);
+  }
+
+  /**
+   * Open a recording for playback.  Called by native code for serial
+   * port paths ending with ".xcap".
+   *
+   * The path may be followed by "@" and the playback speed, e.g.
+   * "flight.xcap@4" plays back four times faster than real time,
+   * and "flight.xcap@0" as fast as possible.  Without a suffix, the
+   * recording is played back in real time.
+   *
+   * @param path the path of the #CaptureFile; a relative path is
+   * resolved in the capture directory (see #CapturePort)
+   * @return the new port or null on error
+   */
+  static AndroidPort open(String path) {
+    double speed = 1;
+    final int at = path.lastIndexOf('@');
+    if (at >= 0 && path.startsWith(".xcap", at - 5)) {
+      try {
+        speed = Double.parseDouble(path.substring(at + 1));
+      } catch (NumberFormatException e) {
+        speed = -1;
+      }
+
+      if (!(speed >= 0)) {
+        Log.e(TAG, "Invalid replay speed: " + path);
+        return null;
+      }
+
+      path = path.substring(0, at);
+    }
+
+    File file = new File(path);
+    File directory = CapturePort.getDirectory();
+    if (!file.isAbsolute() && directory != null)
+      file = new File(directory, path);
+
+    try {
+      return new ReplayPort(file, speed);
+    } catch (IOException e) {
+      Log.e(TAG, "Failed to open " + file, e);
+      return null;
+    }
+  }
+
+  @Override public String toString() {
+    return name;
+  }
+
+  @Override public void setListener(InputListener _listener) {
+    listener = _listener;
+
+    synchronized(this) {
+      if (_listener != null && !started && !closed) {
+        started = true;
+        thread.start();
+      }
+    }
+  }
+
+  @Override public void close() {
+    synchronized(this) {
+      closed = true;
+      if (!started)
+        return;
+    }
+
+    thread.interrupt();
+
+    try {
+      thread.join();
+    } catch (InterruptedException e) {
+    }
+  }
+
+  @Override public int getState() {
+    return finished ? STATE_FAILED : STATE_READY;
+  }
+
+  @Override public boolean drain(int timeout_ms) {
+    return !finished;
+  }
+
+  @Override public int getBaudRate() {
+    return 0;
+  }
+
+  @Override public boolean setBaudRate(int baud) {
+    return true;
+  }
+
+  @Override public void setBulkMode(boolean enabled) {
+  }
+
+  @Override public int write(byte[] data, int length) {
+    if (finished)
+      return -1;
+
+    statistics.increment(PortStatistics.WRITES);
+    statistics.add(PortStatistics.BYTES_OUT, length);
+    return length;
+  }
+
+  @Override public int write(ByteBuffer data, int length, int priority) {
+    return write((byte[])null, length);
+  }
+
+  @Override public int writeFully(ByteBuffer data, int length, int priority,
+                                  int timeout_ms) {
+    return write((byte[])null, length);
+  }
+
+  @Override public long[] getStatistics() {
+    return statistics.snapshot();
+  }
+
+  /**
+   * Sleep until the specified System.nanoTime() value.
+   *
+   * @return false if the thread was interrupted
+   */
+  private static boolean sleepUntil(long time) {
+    long remaining;
+    while ((remaining = time - System.nanoTime()) > 0) {
+      try {
+        Thread.sleep(remaining / 1000000, (int)(remaining % 1000000));
+      } catch (InterruptedException e) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  private void deliver(ByteBuffer payload, int length) {
+    statistics.increment(PortStatistics.READS);
+    statistics.add(PortStatistics.BYTES_IN, length);
+    statistics.max(PortStatistics.MAX_READ_SIZE, length);
+
+    InputListener l = listener;
+    if (l == null)
+      return;
+
+    /* the data "arrives" now, according to the playback schedule */
+    segment[0] = length;
+    InputChunk.deliver(l, payload, payload.position(), length,
+                       InputChunk.now(), segment, 1);
+
+    statistics.increment(PortStatistics.UPCALLS);
+  }
+
+  @Override public void run() {
+    final long startTime = System.nanoTime();
+    long firstRecordTime = 0;
+    boolean first = true;
+    long records = 0;
+
+    while (!closed && data.remaining() >= CaptureFile.RECORD_HEADER_SIZE) {
+      final int start = data.position();
+      final int length = data.getInt(start);
+      if (length <= 0 ||
+          length > data.remaining() - CaptureFile.RECORD_HEADER_SIZE)
+        /* end of recording, or truncated record */
+        break;
+
+      final int direction = data.getInt(start + 4);
+      final long time = data.getLong(start + 8);
+      final int payload = start + CaptureFile.RECORD_HEADER_SIZE;
+      /* the padding of the last record may be missing */
+      data.position(Math.min(payload + length + (-length & 3),
+                             data.limit()));
+
+      if (direction != CaptureFile.DIRECTION_IN)
+        continue;
+
+      if (first) {
+        firstRecordTime = time;
+        first = false;
+      } else if (speed > 0 &&
+                 !sleepUntil(startTime +
+                             (long)((time - firstRecordTime) / speed)))
+        break;
+
+      ByteBuffer b = data.duplicate();
+      b.position(payload);
+      b.limit(payload + length);
+      deliver(b, length);
+      ++records;
+    }
+
+    finished = true;
+    Log.i(TAG, "Replay " + name + " finished after " + records +
+          " records");
+  }
+}
@@ -0,0 +1,196 @@
+/*
+Copyright_License {
+
+  XCSoar Glide Computer - http://www.xcsoar.org/
+  Copyright (C) 2000-2014 The XCSoar Project
+  A detailed list of copyright holders can be found in the file "AUTHORS".
+
+  This program is free software; you can redistribute it and/or
+  modify it under the terms of the GNU General Public License
+  as published by the Free Software Foundation; either version 2
+  of the License, or (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software
+  Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+}
+*/
+
+package org.xcsoar;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A lock-free byte FIFO for exactly one producer thread and exactly
+ * one consumer thread.  The read and write positions grow
+ * monotonically; only their lower bits are used as array index,
+ * therefore the capacity must be a power of two.
+ *
+ * The consumer reads straight from the backing array (see
+ * readOffset() and readable()), so data is copied only once: from
+ * the producer's buffer into this object.
+ */
+final class RingBuffer {
+  private final byte[] buffer;
+  private final int mask;
+
+  /**
+   * The read position.  Only the consumer modifies it.
+   */
+  private volatile long head;
+
+  /**
+   * The write position.  Only the producer modifies it.
+   */
+  private volatile long tail;
+
+  RingBuffer(int capacity) {
+    this(new byte[checkCapacity(capacity)], capacity);
+  }
+
+  /**
+   * Use the specified array (e.g. obtained from the #BufferPool) as
+   * backing store.  Only the first "capacity" bytes are used; the
+   * caller remains responsible for the array.
+   */
+  RingBuffer(byte[] _buffer, int capacity) {
+    checkCapacity(capacity);
+    if (_buffer.length < capacity)
+      throw new IllegalArgumentException("Array too small: " + _buffer.length);
+
+    buffer = _buffer;
+    mask = capacity - 1;
+  }
+
+  private static int checkCapacity(int capacity) {
+    if (capacity <= 0 || (capacity & (capacity - 1)) != 0)
+      throw new IllegalArgumentException("Not a power of two: " + capacity);
+
+    return capacity;
+  }
+
+  int capacity() {
+    return mask + 1;
+  }
+
+  /**
+   * Returns the number of bytes which have been written but not yet
+   * consumed.  May be called from any thread.
+   */
+  int size() {
+    return (int)(tail - head);
+  }
+
+  boolean isEmpty() {
+    return head == tail;
+  }
+
+  /**
+   * The total number of bytes consumed so far.  May be called from
+   * any thread.
+   */
+  long readPosition() {
+    return head;
+  }
+
+  /**
+   * The total number of bytes written so far.  May be called from
+   * any thread.
+   */
+  long writePosition() {
+    return tail;
+  }
+
+  /**
+   * Copy as many bytes as fit into the buffer.  Must only be called
+   * by the producer.
+   *
+   * @return the number of bytes that were copied; 0 if the buffer is
+   * full
+   */
+  int put(byte[] src, int offset, int length) {
+    final long t = tail;
+    final int free = capacity() - (int)(t - head);
+    if (length > free)
+      length = free;
+    if (length <= 0)
+      return 0;
+
+    final int position = (int)t & mask;
+    final int first = Math.min(length, capacity() - position);
+    System.arraycopy(src, offset, buffer, position, first);
+    if (first < length)
+      System.arraycopy(src, offset + first, buffer, 0, length - first);
+
+    /* publish the new data to the consumer */
+    tail = t + length;
+    return length;
+  }
+
+  /**
+   * Copy as many bytes as fit into the buffer from the current
+   * position of the given #ByteBuffer, and advance its position.
+   * Must only be called by the producer.
+   *
+   * @return the number of bytes that were copied; 0 if the buffer is
+   * full
+   */
+  int put(ByteBuffer src, int length) {
+    final long t = tail;
+    final int free = capacity() - (int)(t - head);
+    if (length > free)
+      length = free;
+    if (length <= 0)
+      return 0;
+
+    final int position = (int)t & mask;
+    final int first = Math.min(length, capacity() - position);
+    src.get(buffer, position, first);
+    if (first < length)
+      src.get(buffer, 0, length - first);
+
+    /* publish the new data to the consumer */
+    tail = t + length;
+    return length;
+  }
+
+  /**
+   * Returns the backing array.  The consumer may read the range
+   * described by readOffset() and readable() from it.
+   */
+  byte[] array() {
+    return buffer;
+  }
+
+  /**
+   * The array index of the oldest byte.  Must only be called by the
+   * consumer.
+   */
+  int readOffset() {
+    return (int)head & mask;
+  }
+
+  /**
+   * The number of bytes which can be read from array() starting at
+   * readOffset() without wrapping around.  Must only be called by the
+   * consumer.
+   */
+  int readable() {
+    final long h = head;
+    final int size = (int)(tail - h);
+    return Math.min(size, capacity() - ((int)h & mask));
+  }
+
+  /**
+   * Mark bytes as consumed, which makes room for the producer.  Must
+   * only be called by the consumer.
+   */
+  void consume(int length) {
+    head = head + length;
+  }
+}
@@ -0,0 +1,328 @@
+/*
+Copyright_License {
+
+  XCSoar Glide Computer - http://www.xcsoar.org/
+  Copyright (C) 2000-2014 The XCSoar Project
+  A detailed list of copyright holders can be found in the file "AUTHORS".
+
+  This program is free software; you can redistribute it and/or
+  modify it under the terms of the GNU General Public License
+  as published by the Free Software Foundation; either version 2
+  of the License, or (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software
+  Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+}
+*/
+
+package org.xcsoar;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import android.util.Log;
+import android.os.SystemClock;
+import ioio.lib.api.IOIO;
+import ioio.lib.api.TwiMaster;
+import ioio.lib.api.exception.ConnectionLostException;
+
+/**
+ * Owns the #TwiMaster of one IOIO TWI bus and schedules the
+ * transactions of all drivers on that bus (#I2Cbaro, #BMP085,
+ * #Nunchuck).
+ *
+ * Transactions are queued with a due time and issued in that order by
+ * a scheduler thread with TwiMaster.writeReadAsync(), which does not
+ * wait for the transaction to finish.  While one device converts, the
+ * bus is free for the others, and consecutive transactions are
+ * pipelined in the IOIO.
+ *
+ * The drivers keep a thread each: IOIOLib reports completion only
+ * through blocking calls (TwiMaster.Result.waitReady(),
+ * DigitalInput.waitForValue()), so somebody has to block for each
+ * conversion.  Doing that on the scheduler thread would serialise the
+ * bus again.
+ *
+ * Obtain an instance with acquire(); every acquire() must be paired
+ * with a release().
+ */
+final class TwiBus extends Thread {
+  private static final String TAG = "XCSoar";
+
+  /**
+   * A queued TWI transaction.  The driver waits for it with await().
+   */
+  static final class Transaction implements Comparable<Transaction> {
+    private final int address;
+    private final byte[] writeData, readData;
+    private final int writeSize, readSize;
+    private final long due, sequence;
+
+    private TwiMaster.Result result;
+    private RuntimeException error;
+    private ConnectionLostException lost;
+
+    private Transaction(int _address,
+                        byte[] _writeData, int _writeSize,
+                        byte[] _readData, int _readSize,
+                        long _due, long _sequence) {
+      address = _address;
+      writeData = _writeData;
+      writeSize = _writeSize;
+      readData = _readData;
+      readSize = _readSize;
+      due = _due;
+      sequence = _sequence;
+    }
+
+    @Override public int compareTo(Transaction other) {
+      if (due != other.due)
+        return due < other.due ? -1 : 1;
+      return sequence < other.sequence ? -1 :
+        (sequence > other.sequence ? 1 : 0);
+    }
+
+    private synchronized void issued(TwiMaster.Result _result) {
+      result = _result;
+      notifyAll();
+    }
+
+    private synchronized void failed(ConnectionLostException e) {
+      lost = e;
+      notifyAll();
+    }
+
+    private synchronized void failed(RuntimeException e) {
+      error = e;
+      notifyAll();
+    }
+
+    /**
+     * Wait until the transaction has finished.
+     *
+     * @return true on success, false if the device did not
+     * acknowledge
+     */
+    boolean await()
+      throws ConnectionLostException, InterruptedException {
+      final TwiMaster.Result r;
+      synchronized(this) {
+        while (result == null && lost == null && error == null)
+          wait();
+
+        if (lost != null)
+          throw lost;
+        if (error != null)
+          throw error;
+
+        r = result;
+      }
+
+      return r.waitReady();
+    }
+  }
+
+  /**
+   * All open buses, indexed by IOIO connection and bus number.
+   * Protected by the class monitor.
+   */
+  private static final Map<IOIO, TwiBus[]> buses =
+    new HashMap<IOIO, TwiBus[]>();
+
+  private static final int MAX_BUSES = 3;
+
+  private final IOIO ioio;
+  private final int twiNum;
+  private final TwiMaster twi;
+
+  /**
+   * Protected by the class monitor.
+   */
+  private int references;
+
+  /**
+   * Transactions which have not been issued yet, ordered by due
+   * time.  Protected by the object monitor.
+   */
+  private final PriorityQueue<Transaction> queue =
+    new PriorityQueue<Transaction>();
+
+  private long nextSequence;
+  private boolean closed;
+
+  private TwiBus(IOIO _ioio, int _twiNum, TwiMaster.Rate rate)
+    throws ConnectionLostException {
+    super("TwiBus[" + _twiNum + "]");
+
+    ioio = _ioio;
+    twiNum = _twiNum;
+    twi = ioio.openTwiMaster(twiNum, rate, false);
+
+    setDaemon(true);
+    start();
+  }
+
+  /**
+   * Obtain the scheduler of a bus, opening the bus if it is not in
+   * use yet.  The clock rate is decided by the first driver; later
+   * drivers which ask for a different rate get the existing one.
+   */
+  static TwiBus acquire(IOIO ioio, int twiNum, TwiMaster.Rate rate)
+    throws ConnectionLostException {
+    synchronized(TwiBus.class) {
+      TwiBus[] a = buses.get(ioio);
+      if (a == null) {
+        a = new TwiBus[MAX_BUSES];
+        buses.put(ioio, a);
+      }
+
+      TwiBus bus = a[twiNum];
+      if (bus == null)
+        a[twiNum] = bus = new TwiBus(ioio, twiNum, rate);
+      else
+        Log.i(TAG, "Sharing TWI bus " + twiNum);
+
+      ++bus.references;
+      return bus;
+    }
+  }
+
+  /**
+   * Give up a reference obtained by acquire().  The last release()
+   * closes the bus.
+   */
+  void release() {
+    synchronized(TwiBus.class) {
+      if (--references > 0)
+        return;
+
+      TwiBus[] a = buses.get(ioio);
+      a[twiNum] = null;
+
+      boolean empty = true;
+      for (TwiBus b : a)
+        if (b != null)
+          empty = false;
+      if (empty)
+        buses.remove(ioio);
+    }
+
+    synchronized(this) {
+      closed = true;
+      notifyAll();
+    }
+
+    twi.close();
+
+    try {
+      join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Queue a transaction.
+   *
+   * @param due the SystemClock.elapsedRealtime() before which the
+   * transaction shall not be issued, e.g. the end of a conversion
+   */
+  Transaction submit(long due, int address,
+                     byte[] writeData, int writeSize,
+                     byte[] readData, int readSize) {
+    synchronized(this) {
+      if (closed)
+        throw new IllegalStateException("TWI bus closed");
+
+      Transaction t = new Transaction(address, writeData, writeSize,
+                                      readData, readSize,
+                                      due, nextSequence++);
+      queue.add(t);
+      if (queue.peek() == t)
+        /* the scheduler may be waiting for a later transaction */
+        notifyAll();
+      return t;
+    }
+  }
+
+  /**
+   * Queue a transaction and wait for it to finish.
+   *
+   * @return true on success, false if the device did not acknowledge
+   */
+  boolean writeRead(int address,
+                    byte[] writeData, int writeSize,
+                    byte[] readData, int readSize)
+    throws ConnectionLostException, InterruptedException {
+    return submit(SystemClock.elapsedRealtime(), address,
+                  writeData, writeSize, readData, readSize).await();
+  }
+
+  /**
+   * Wait for the next due transaction and remove it from the queue.
+   *
+   * @return null if the bus has been closed
+   */
+  private synchronized Transaction next() throws InterruptedException {
+    while (true) {
+      if (closed)
+        return null;
+
+      Transaction t = queue.peek();
+      if (t != null) {
+        final long delay = t.due - SystemClock.elapsedRealtime();
+        if (delay <= 0)
+          return queue.poll();
+
+        wait(delay);
+      } else
+        wait();
+    }
+  }
+
+  private synchronized void failAll(ConnectionLostException e) {
+    closed = true;
+
+    Transaction t;
+    while ((t = queue.poll()) != null)
+      t.failed(e);
+  }
+
+  private synchronized void failAll(RuntimeException e) {
+    closed = true;
+
+    Transaction t;
+    while ((t = queue.poll()) != null)
+      t.failed(e);
+  }
+
+  @Override public void run() {
+    try {
+      Transaction t;
+      while ((t = next()) != null) {
+        try {
+          t.issued(twi.writeReadAsync(t.address, false,
+                                      t.writeData, t.writeSize,
+                                      t.readData, t.readSize));
+        } catch (ConnectionLostException e) {
+          t.failed(e);
+          failAll(e);
+          return;
+        } catch (RuntimeException e) {
+          t.failed(e);
+          failAll(e);
+          return;
+        }
+      }
+    } catch (InterruptedException e) {
+    }
+
+    failAll(new IllegalStateException("TWI bus closed"));
+  }
+}
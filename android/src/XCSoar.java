@@ -22,6 +22,8 @@
 
 package org.xcsoar;
 
+import java.io.File;
+
 import android.app.Activity;
 import android.app.PendingIntent;
 import android.os.Bundle;
@@ -42,6 +44,7 @@ import android.content.IntentFilter;
 import android.content.BroadcastReceiver;
 import android.content.ServiceConnection;
 import android.content.ComponentName;
+import android.content.pm.ApplicationInfo;
 import android.util.Log;
 import android.provider.Settings;
 
@@ -161,6 +164,14 @@ public class XCSoar extends Activity {
       return;
     }
 
+    /* create this directory to record all device traffic */
+    CapturePort.setDirectory(new File(Environment.getExternalStorageDirectory(),
+                                      "XCSoarData/capture"));
+
+    /* track I/O buffers in debug builds */
+    BufferPool.setLeakDetection((getApplicationInfo().flags &
+                                 ApplicationInfo.FLAG_DEBUGGABLE) != 0);
+
     nativeView = new NativeView(this, quitHandler);
     setContentView(nativeView);
     // Receive keyboard events
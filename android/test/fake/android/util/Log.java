@@ -0,0 +1,76 @@
+/*
+Copyright_License {
+
+  XCSoar Glide Computer - http://www.xcsoar.org/
+  Copyright (C) 2000-2014 The XCSoar Project
+  A detailed list of copyright holders can be found in the file "AUTHORS".
+
+  This program is free software; you can redistribute it and/or
+  modify it under the terms of the GNU General Public License
+  as published by the Free Software Foundation; either version 2
+  of the License, or (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software
+  Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+}
+*/
+
+package android.util;
+
+/**
+ * A replacement for the Android logging API which writes to stderr,
+ * for running port layer code on the build host.
+ */
+public final class Log {
+  private Log() {}
+
+  private static int print(String level, String tag, String msg,
+                           Throwable tr) {
+    System.err.println(level + "/" + tag + ": " + msg);
+    if (tr != null)
+      tr.printStackTrace();
+    return 0;
+  }
+
+  public static int v(String tag, String msg) {
+    return print("V", tag, msg, null);
+  }
+
+  public static int d(String tag, String msg) {
+    return print("D", tag, msg, null);
+  }
+
+  public static int d(String tag, String msg, Throwable tr) {
+    return print("D", tag, msg, tr);
+  }
+
+  public static int i(String tag, String msg) {
+    return print("I", tag, msg, null);
+  }
+
+  public static int i(String tag, String msg, Throwable tr) {
+    return print("I", tag, msg, tr);
+  }
+
+  public static int w(String tag, String msg) {
+    return print("W", tag, msg, null);
+  }
+
+  public static int w(String tag, String msg, Throwable tr) {
+    return print("W", tag, msg, tr);
+  }
+
+  public static int e(String tag, String msg) {
+    return print("E", tag, msg, null);
+  }
+
+  public static int e(String tag, String msg, Throwable tr) {
+    return print("E", tag, msg, tr);
+  }
+}
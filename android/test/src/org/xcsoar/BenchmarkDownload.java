@@ -0,0 +1,135 @@
+/*
+Copyright_License {
+
+  XCSoar Glide Computer - http://www.xcsoar.org/
+  Copyright (C) 2000-2014 The XCSoar Project
+  A detailed list of copyright holders can be found in the file "AUTHORS".
+
+  This program is free software; you can redistribute it and/or
+  modify it under the terms of the GNU General Public License
+  as published by the Free Software Foundation; either version 2
+  of the License, or (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software
+  Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+}
+*/
+
+package org.xcsoar;
+
+import java.io.InputStream;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Measures the throughput of an #InputThread during a flight
+ * download, with and without bulk mode (see InputThread.
+ * setBulkMode()), at 115200 and 230400 baud.
+ *
+ * The simulated logger sends continuously at the line speed; each
+ * read() returns whatever has "arrived" since the previous one, like
+ * the receive buffer of a serial port or a Bluetooth socket.  Normal
+ * mode uses the coalescing settings of #BluetoothPort.
+ */
+public class BenchmarkDownload {
+  private static final int DOWNLOAD_SIZE = 48 * 1024;
+
+  /**
+   * The input coalescing settings of #BluetoothPort.
+   */
+  private static final int COALESCE_THRESHOLD = 512;
+  private static final int COALESCE_LATENCY_MS = 5;
+
+  /**
+   * Makes bytes available at the speed of a serial line.
+   */
+  static final class LoggerStream extends InputStream {
+    private final int baudRate;
+    private final int size;
+    private long start;
+    private int position;
+
+    LoggerStream(int _baudRate, int _size) {
+      baudRate = _baudRate;
+      size = _size;
+    }
+
+    /**
+     * The number of bytes which have arrived until now.
+     */
+    private int arrived(long now) {
+      /* 10 bits per byte */
+      return (int)Math.min(size, (now - start) * baudRate / 10 / 1000000000L);
+    }
+
+    @Override public int read() {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) > 0 ? b[0] & 0xff : -1;
+    }
+
+    @Override public int read(byte[] b, int off, int len) {
+      if (position >= size)
+        return -1;
+
+      if (start == 0)
+        start = System.nanoTime();
+
+      int available;
+      while ((available = arrived(System.nanoTime()) - position) <= 0)
+        LockSupport.parkNanos(10L * 1000000000L / baudRate);
+
+      final int n = Math.min(available, len);
+      for (int i = 0; i < n; ++i)
+        b[off + i] = (byte)(position + i);
+      position += n;
+      return n;
+    }
+  }
+
+  static final class Counter implements InputListener {
+    long total, calls, lastTime;
+
+    @Override public synchronized void dataReceived(byte[] b, int length) {
+      total += length;
+      ++calls;
+      lastTime = System.nanoTime();
+    }
+  }
+
+  private static void run(int baudRate, boolean bulk)
+    throws InterruptedException {
+    Counter counter = new Counter();
+    InputThread thread =
+      new InputThread("download", counter,
+                      new LoggerStream(baudRate, DOWNLOAD_SIZE));
+    thread.setCoalescing(COALESCE_THRESHOLD, COALESCE_LATENCY_MS, true);
+    thread.setBulkMode(bulk);
+
+    final long start = System.nanoTime();
+    thread.join();
+
+    synchronized(counter) {
+      final double seconds = (counter.lastTime - start) / 1e9;
+      System.out.printf("%6d baud, %-6s: %6.0f bytes/s (line %5d), %5d reads, %5d upcalls, %5.0f bytes/upcall%s%n",
+                        baudRate, bulk ? "bulk" : "normal",
+                        counter.total / seconds, baudRate / 10,
+                        thread.getReadCount(), counter.calls,
+                        (double)counter.total / counter.calls,
+                        counter.total == DOWNLOAD_SIZE ? "" : " INCOMPLETE");
+    }
+  }
+
+  public static void main(String[] args) throws InterruptedException {
+    for (int baudRate : new int[]{115200, 230400}) {
+      run(baudRate, false);
+      run(baudRate, true);
+    }
+
+    System.exit(0);
+  }
+}
@@ -0,0 +1,140 @@
+/*
+Copyright_License {
+
+  XCSoar Glide Computer - http://www.xcsoar.org/
+  Copyright (C) 2000-2014 The XCSoar Project
+  A detailed list of copyright holders can be found in the file "AUTHORS".
+
+  This program is free software; you can redistribute it and/or
+  modify it under the terms of the GNU General Public License
+  as published by the Free Software Foundation; either version 2
+  of the License, or (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software
+  Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+}
+*/
+
+package org.xcsoar;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Compares the cost of building NMEA sentences with #NMEASentence
+ * with the String.format() code it replaced (which formatted the
+ * sentence, then formatted it again with "$", checksum and line
+ * terminator, and finally encoded it).
+ */
+public class BenchmarkNMEASentence {
+  private static final int N_SENTENCES = 200000;
+  private static final int N_ROUNDS = 5;
+
+  private static final String ADDRESS = "00:11:22:AA:BB:CC";
+  private static final String UUID = "6e400003-b5a3-f393-e0a9-e50e24dcca9e";
+
+  /**
+   * The old BLEPort.StringToNmeaLine().
+   */
+  private static String legacyLine(String line) {
+    byte res = 0;
+    byte[] bytes = line.getBytes();
+    for (int i = 0; i < line.length(); ++i)
+      res = (byte)(res ^ bytes[i]);
+
+    return String.format("$%s*%02X\r\n", line, res);
+  }
+
+  private static byte[] legacyDiscover() {
+    return legacyLine(String.format("BLEDISCOVER,%s,%s", ADDRESS, UUID))
+      .getBytes();
+  }
+
+  private static byte[] legacyNumbers(int i) {
+    return legacyLine(String.format(Locale.US, "PTEST,%d,%.1f,%.3f",
+                                    i, i * 0.25, i * 0.125)).getBytes();
+  }
+
+  private static int pooledDiscover(NMEASentence s) {
+    return s.begin("BLEDISCOVER").field(ADDRESS).field(UUID).finish();
+  }
+
+  private static int pooledNumbers(NMEASentence s, int i) {
+    return s.begin("PTEST").field(i).field(i * 0.25, 1)
+      .field(i * 0.125, 3).finish();
+  }
+
+  /**
+   * Make sure that both produce the same bytes.
+   */
+  private static void verify() {
+    NMEASentence s = new NMEASentence();
+    pooledDiscover(s);
+    boolean equal = Arrays.equals(Arrays.copyOf(s.array(), s.length()),
+                                  legacyDiscover());
+    for (int i = 0; i < 1000 && equal; ++i) {
+      pooledNumbers(s, i);
+      equal = Arrays.equals(Arrays.copyOf(s.array(), s.length()),
+                            legacyNumbers(i));
+    }
+    s.release();
+
+    if (!equal)
+      throw new RuntimeException("Output differs");
+  }
+
+  private static long legacy(boolean numbers) {
+    long total = 0;
+    for (int i = 0; i < N_SENTENCES; ++i)
+      total += (numbers ? legacyNumbers(i) : legacyDiscover()).length;
+    return total;
+  }
+
+  private static long pooled(boolean numbers) {
+    NMEASentence s = new NMEASentence();
+    long total = 0;
+    for (int i = 0; i < N_SENTENCES; ++i) {
+      total += numbers ? pooledNumbers(s, i) : pooledDiscover(s);
+      s.release();
+    }
+    return total;
+  }
+
+  private static void run(String label, boolean numbers) {
+    double best_legacy = Double.MAX_VALUE, best_pooled = Double.MAX_VALUE;
+    long check = 0;
+    for (int round = 0; round < N_ROUNDS; ++round) {
+      long start = System.nanoTime();
+      check += legacy(numbers);
+      best_legacy = Math.min(best_legacy,
+                             (System.nanoTime() - start) / (double)N_SENTENCES);
+
+      start = System.nanoTime();
+      check -= pooled(numbers);
+      best_pooled = Math.min(best_pooled,
+                             (System.nanoTime() - start) / (double)N_SENTENCES);
+    }
+
+    if (check != 0)
+      throw new RuntimeException("Length differs");
+
+    System.out.printf("%-11s: String.format %6.0f ns  NMEASentence %5.0f ns  (%.1fx)%n",
+                      label, best_legacy, best_pooled,
+                      best_legacy / best_pooled);
+  }
+
+  public static void main(String[] args) {
+    verify();
+
+    run("BLEDISCOVER", false);
+    run("numbers", true);
+
+    System.exit(0);
+  }
+}
@@ -0,0 +1,163 @@
+/*
+Copyright_License {
+
+  XCSoar Glide Computer - http://www.xcsoar.org/
+  Copyright (C) 2000-2014 The XCSoar Project
+  A detailed list of copyright holders can be found in the file "AUTHORS".
+
+  This program is free software; you can redistribute it and/or
+  modify it under the terms of the GNU General Public License
+  as published by the Free Software Foundation; either version 2
+  of the License, or (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software
+  Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+}
+*/
+
+package org.xcsoar;
+
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Compares the producer side of #OutputQueue with the #OutputThread
+ * it replaced (see #LegacyOutputThread): how long does a write() call
+ * take while the stream consumes the data?
+ *
+ * Two streams are simulated: one which discards data right away (the
+ * pure queueing overhead), and one which takes some time per call,
+ * like a Bluetooth socket.
+ */
+public class BenchmarkOutputQueue {
+  private static final int SENTENCE_LENGTH = 64;
+
+  /**
+   * A stream which spends the specified time in each write() call.
+   */
+  static final class SlowStream extends OutputStream {
+    private final long delay_ns;
+    volatile long total;
+
+    SlowStream(long _delay_ns) {
+      delay_ns = _delay_ns;
+    }
+
+    @Override public void write(int b) {
+      write(new byte[]{(byte)b}, 0, 1);
+    }
+
+    @Override public void write(byte[] b, int off, int len) {
+      if (delay_ns > 0) {
+        final long end = System.nanoTime() + delay_ns;
+        while (System.nanoTime() < end) {
+        }
+      }
+
+      total += len;
+    }
+  }
+
+  interface Writer {
+    int write(byte[] data, int length);
+    boolean drain();
+    void close();
+  }
+
+  static Writer newLegacy(OutputStream os) {
+    final LegacyOutputThread t = new LegacyOutputThread("legacy", os);
+    t.setTimeout(5000);
+    return new Writer() {
+      public int write(byte[] data, int length) {
+        return t.write(data, length);
+      }
+
+      public boolean drain() {
+        return t.drain();
+      }
+
+      public void close() {
+        t.close();
+      }
+    };
+  }
+
+  static Writer newQueue(OutputStream os) {
+    final OutputQueue q = new OutputQueue("queue", os);
+    q.setTimeout(5000);
+    return new Writer() {
+      public int write(byte[] data, int length) {
+        return q.write(data, length);
+      }
+
+      public boolean drain() {
+        return q.drain(60000);
+      }
+
+      public void close() {
+        q.close();
+      }
+    };
+  }
+
+  /**
+   * Write the sentence completely, like PortBridge does with partial
+   * writes.
+   */
+  private static void writeFully(Writer w, byte[] data, byte[] rest) {
+    int offset = 0;
+    while (offset < data.length) {
+      int length = data.length - offset;
+      System.arraycopy(data, offset, rest, 0, length);
+      int n = w.write(rest, length);
+      if (n < 0)
+        throw new RuntimeException("write failed");
+      offset += n;
+    }
+  }
+
+  private static void run(String name, Writer w, int count) {
+    byte[] sentence = new byte[SENTENCE_LENGTH];
+    Arrays.fill(sentence, (byte)'x');
+    byte[] rest = new byte[SENTENCE_LENGTH];
+
+    long[] latency = new long[count];
+    final long start = System.nanoTime();
+    for (int i = 0; i < count; ++i) {
+      final long t = System.nanoTime();
+      writeFully(w, sentence, rest);
+      latency[i] = System.nanoTime() - t;
+    }
+    w.drain();
+    final long elapsed = System.nanoTime() - start;
+    w.close();
+
+    Arrays.sort(latency);
+    System.out.printf("%-24s %8.1f MB/s  write p50 %7d ns  p99 %8d ns  max %9d ns%n",
+                      name,
+                      (double)count * SENTENCE_LENGTH * 1000 / elapsed,
+                      latency[count / 2], latency[count * 99 / 100],
+                      latency[count - 1]);
+  }
+
+  private static void compare(String stream, long delay_ns, int count) {
+    /* warm up both, so the JIT has compiled them */
+    run("warmup", newLegacy(new SlowStream(delay_ns)), count / 10);
+    run("warmup", newQueue(new SlowStream(delay_ns)), count / 10);
+
+    run("OutputThread " + stream, newLegacy(new SlowStream(delay_ns)), count);
+    run("OutputQueue " + stream, newQueue(new SlowStream(delay_ns)), count);
+  }
+
+  public static void main(String[] args) {
+    compare("fast", 0, 1000000);
+    compare("20us/call", 20000, 50000);
+    System.exit(0);
+  }
+}
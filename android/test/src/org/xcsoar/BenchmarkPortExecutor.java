@@ -0,0 +1,161 @@
+/*
+Copyright_License {
+
+  XCSoar Glide Computer - http://www.xcsoar.org/
+  Copyright (C) 2000-2014 The XCSoar Project
+  A detailed list of copyright holders can be found in the file "AUTHORS".
+
+  This program is free software; you can redistribute it and/or
+  modify it under the terms of the GNU General Public License
+  as published by the Free Software Foundation; either version 2
+  of the License, or (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software
+  Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+}
+*/
+
+package org.xcsoar;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Measures the thread count and the output latency of the
+ * #PortExecutor pools with 1, 8 and 32 simulated ports, with the
+ * default thread budget and with a budget large enough to give each
+ * port its own thread (like the unbounded pools did).
+ *
+ * Each port is an #OutputQueue on a stream which takes as long as a
+ * 115200 baud link to transmit the data; a producer writes one
+ * sentence to each port every #PERIOD_MS.  The latency is the time
+ * from write() until the stream has transmitted the sentence.
+ */
+public class BenchmarkPortExecutor {
+  private static final int SENTENCE_LENGTH = 64;
+  private static final int PERIOD_MS = 50;
+  private static final int DURATION_MS = 3000;
+  private static final int BAUD_RATE = 115200;
+
+  /**
+   * A stream which simulates the transmission time of a serial link
+   * and records the latency of each sentence.
+   */
+  static final class LinkStream extends OutputStream {
+    private final byte[] frame = new byte[SENTENCE_LENGTH];
+    private int framePosition;
+
+    final long[] latency;
+    int n;
+
+    LinkStream(int capacity) {
+      latency = new long[capacity];
+    }
+
+    @Override public void write(int b) {
+      write(new byte[]{(byte)b}, 0, 1);
+    }
+
+    @Override public void write(byte[] b, int off, int len) {
+      /* 10 bits per byte */
+      LockSupport.parkNanos(len * 10L * 1000000000L / BAUD_RATE);
+
+      final long now = System.nanoTime();
+      while (len > 0) {
+        int nbytes = Math.min(len, SENTENCE_LENGTH - framePosition);
+        System.arraycopy(b, off, frame, framePosition, nbytes);
+        framePosition += nbytes;
+        off += nbytes;
+        len -= nbytes;
+
+        if (framePosition == SENTENCE_LENGTH) {
+          framePosition = 0;
+          if (n < latency.length)
+            latency[n++] = now - ByteBuffer.wrap(frame).getLong(0);
+        }
+      }
+    }
+  }
+
+  private static void run(int nPorts, int budget) throws InterruptedException {
+    PortExecutor.setThreadBudget(budget);
+    final long saturations = PortExecutor.getSaturationCount();
+
+    final int capacity = DURATION_MS / PERIOD_MS + 1;
+    LinkStream[] streams = new LinkStream[nPorts];
+    OutputQueue[] queues = new OutputQueue[nPorts];
+    for (int i = 0; i < nPorts; ++i) {
+      streams[i] = new LinkStream(capacity);
+      queues[i] = new OutputQueue("port" + i, streams[i]);
+    }
+
+    byte[] sentence = new byte[SENTENCE_LENGTH];
+    Arrays.fill(sentence, (byte)'x');
+
+    int maxThreads = 0;
+    final long start = System.nanoTime();
+    for (int tick = 0; tick < capacity; ++tick) {
+      /* spread the ports over the period, like independent devices */
+      for (int i = 0; i < nPorts; ++i) {
+        final long due = start + tick * PERIOD_MS * 1000000L +
+          (long)i * PERIOD_MS * 1000000L / nPorts;
+        long delay = due - System.nanoTime();
+        if (delay > 0)
+          LockSupport.parkNanos(delay);
+
+        ByteBuffer.wrap(sentence).putLong(0, System.nanoTime());
+        queues[i].write(sentence, SENTENCE_LENGTH);
+
+        maxThreads = Math.max(maxThreads, PortExecutor.getPoolSize());
+      }
+    }
+
+    int total = 0;
+    for (int i = 0; i < nPorts; ++i) {
+      queues[i].drain(10000);
+      total += streams[i].n;
+    }
+
+    long[] latency = new long[total];
+    int position = 0;
+    for (int i = 0; i < nPorts; ++i) {
+      queues[i].close();
+      System.arraycopy(streams[i].latency, 0, latency, position,
+                       streams[i].n);
+      position += streams[i].n;
+    }
+
+    Arrays.sort(latency);
+    System.out.printf("%2d ports, budget %2d: %2d pool threads, %5d saturated, latency p50 %6d us  p99 %6d us  max %6d us%n",
+                      nPorts, budget, maxThreads,
+                      PortExecutor.getSaturationCount() - saturations,
+                      latency[total / 2] / 1000,
+                      latency[total * 99 / 100] / 1000,
+                      latency[total - 1] / 1000);
+
+    /* let the idle threads of this run exit */
+    PortExecutor.setThreadBudget(1);
+    while (PortExecutor.getPoolSize() > 1)
+      Thread.sleep(10);
+  }
+
+  public static void main(String[] args) throws InterruptedException {
+    /* warm up */
+    run(8, PortExecutor.DEFAULT_THREAD_BUDGET);
+
+    for (int nPorts : new int[]{1, 8, 32}) {
+      run(nPorts, PortExecutor.DEFAULT_THREAD_BUDGET);
+      run(nPorts, nPorts);
+    }
+
+    System.exit(0);
+  }
+}
@@ -0,0 +1,138 @@
+/*
+Copyright_License {
+
+  XCSoar Glide Computer - http://www.xcsoar.org/
+  Copyright (C) 2000-2014 The XCSoar Project
+  A detailed list of copyright holders can be found in the file "AUTHORS".
+
+  This program is free software; you can redistribute it and/or
+  modify it under the terms of the GNU General Public License
+  as published by the Free Software Foundation; either version 2
+  of the License, or (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software
+  Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+}
+*/
+
+package org.xcsoar;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Measures how long a short command (Port::WriteUrgent(), e.g. a
+ * MacCready setting) takes to reach a 115200 baud link while bulk
+ * output (e.g. NMEA forwarding) keeps the #OutputQueue full, once
+ * queued with AndroidPort.PRIORITY_URGENT and once with
+ * AndroidPort.PRIORITY_NORMAL.
+ */
+public class BenchmarkUrgentWrite {
+  private static final int BAUD_RATE = 115200;
+  private static final int SENTENCE_LENGTH = 64;
+  private static final int N_COMMANDS = 100;
+  private static final int COMMAND_INTERVAL_MS = 30;
+
+  /**
+   * Simulates the transmission time of the link and records when
+   * each command ("!number\n") has been transmitted completely.
+   */
+  static final class LinkStream extends OutputStream {
+    final long[] sent = new long[N_COMMANDS];
+    final long[] latency = new long[N_COMMANDS];
+
+    private boolean inCommand;
+    private int number;
+
+    @Override public void write(int b) {
+      write(new byte[]{(byte)b}, 0, 1);
+    }
+
+    @Override public void write(byte[] b, int off, int len) {
+      /* 10 bits per byte */
+      LockSupport.parkNanos(len * 10L * 1000000000L / BAUD_RATE);
+
+      final long now = System.nanoTime();
+      for (int i = off; i < off + len; ++i) {
+        final byte ch = b[i];
+        if (ch == '!') {
+          inCommand = true;
+          number = 0;
+        } else if (inCommand && ch == '\n') {
+          inCommand = false;
+          latency[number] = now - sent[number];
+        } else if (inCommand) {
+          number = number * 10 + (ch - '0');
+        }
+      }
+    }
+  }
+
+  private static void run(final int bufferSize, int priority)
+    throws InterruptedException {
+    final LinkStream stream = new LinkStream();
+    final OutputQueue queue =
+      new OutputQueue("bench", stream, bufferSize, new PortStatistics());
+
+    /* saturating bulk traffic */
+    final byte[] sentence = new byte[SENTENCE_LENGTH];
+    Arrays.fill(sentence, (byte)'x');
+    sentence[SENTENCE_LENGTH - 1] = '\n';
+    final ByteBuffer bulk = ByteBuffer.allocateDirect(SENTENCE_LENGTH);
+    bulk.put(sentence).clear();
+    final boolean[] stop = new boolean[1];
+    Thread producer = new Thread() {
+        @Override public void run() {
+          while (!stop[0])
+            queue.writeFully(bulk, SENTENCE_LENGTH,
+                             AndroidPort.PRIORITY_NORMAL, 5000);
+        }
+      };
+    producer.start();
+    Thread.sleep(100);
+
+    ByteBuffer command = ByteBuffer.allocateDirect(32);
+    for (int i = 0; i < N_COMMANDS; ++i) {
+      Thread.sleep(COMMAND_INTERVAL_MS);
+
+      byte[] c = ("!" + i + "\n").getBytes();
+      command.clear();
+      command.put(c).flip();
+      stream.sent[i] = System.nanoTime();
+      if (queue.writeFully(command, c.length, priority, 5000) != c.length)
+        throw new RuntimeException("write failed");
+    }
+
+    stop[0] = true;
+    queue.drain(10000);
+    producer.join();
+    queue.close();
+
+    long[] latency = stream.latency.clone();
+    Arrays.sort(latency);
+    System.out.printf("buffer %5d bytes, %-6s: latency p50 %7d us  p99 %7d us  max %7d us%n",
+                      bufferSize,
+                      priority == AndroidPort.PRIORITY_URGENT
+                      ? "urgent" : "normal",
+                      latency[N_COMMANDS / 2] / 1000,
+                      latency[N_COMMANDS * 99 / 100] / 1000,
+                      latency[N_COMMANDS - 1] / 1000);
+  }
+
+  public static void main(String[] args) throws InterruptedException {
+    for (int bufferSize : new int[]{OutputQueue.DEFAULT_BUFFER_SIZE, 4096}) {
+      run(bufferSize, AndroidPort.PRIORITY_NORMAL);
+      run(bufferSize, AndroidPort.PRIORITY_URGENT);
+    }
+
+    System.exit(0);
+  }
+}
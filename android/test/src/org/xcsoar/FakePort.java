@@ -0,0 +1,122 @@
+/*
+Copyright_License {
+
+  XCSoar Glide Computer - http://www.xcsoar.org/
+  Copyright (C) 2000-2014 The XCSoar Project
+  A detailed list of copyright holders can be found in the file "AUTHORS".
+
+  This program is free software; you can redistribute it and/or
+  modify it under the terms of the GNU General Public License
+  as published by the Free Software Foundation; either version 2
+  of the License, or (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software
+  Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+}
+*/
+
+package org.xcsoar;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * An #AndroidPort which collects all written data and which may take
+ * some time per write() call, or block until it is released.
+ */
+class FakePort implements AndroidPort {
+  private final String name;
+  private final long delay_ms;
+  final CountDownLatch released;
+  private final ByteArrayOutputStream data = new ByteArrayOutputStream();
+  private volatile int state = STATE_READY;
+
+  FakePort(String _name, long _delay_ms, boolean blocked) {
+    name = _name;
+    delay_ms = _delay_ms;
+    released = new CountDownLatch(blocked ? 1 : 0);
+  }
+
+  @Override public String toString() {
+    return name;
+  }
+
+  byte[] toByteArray() {
+    synchronized(data) {
+      return data.toByteArray();
+    }
+  }
+
+  int size() {
+    synchronized(data) {
+      return data.size();
+    }
+  }
+
+  @Override public void setListener(InputListener listener) {}
+
+  @Override public void close() {
+    state = STATE_FAILED;
+    released.countDown();
+  }
+
+  @Override public int getState() {
+    return state;
+  }
+
+  @Override public boolean drain(int timeout_ms) {
+    return state == STATE_READY;
+  }
+
+  @Override public int getBaudRate() {
+    return 19200;
+  }
+
+  @Override public boolean setBaudRate(int baud) {
+    return true;
+  }
+
+  @Override public void setBulkMode(boolean enabled) {}
+
+  @Override public int write(byte[] b, int length) {
+    return write(ByteBuffer.wrap(b), length, PRIORITY_NORMAL);
+  }
+
+  @Override public int write(ByteBuffer b, int length, int priority) {
+    try {
+      released.await();
+      if (delay_ms > 0)
+        Thread.sleep(delay_ms);
+    } catch (InterruptedException e) {
+      return -1;
+    }
+
+    if (state != STATE_READY)
+      return -1;
+
+    byte[] copy = new byte[length];
+    final int position = b.position();
+    b.get(copy);
+    b.position(position);
+    synchronized(data) {
+      data.write(copy, 0, length);
+    }
+    return length;
+  }
+
+  @Override public int writeFully(ByteBuffer b, int length, int priority,
+                                  int timeout_ms) {
+    return write(b, length, priority);
+  }
+
+  @Override public long[] getStatistics() {
+    return new long[PortStatistics.SIZE];
+  }
+}
@@ -28,9 +28,10 @@ import java.io.OutputStream;
 import android.util.Log;
 
 /**
- * A wrapper for an OutputStream which allows writing with a timeout.
+ * The OutputThread class which OutputQueue replaced, kept unchanged
+ * (except for its name) as the baseline for BenchmarkOutputQueue.
  */
-class OutputThread extends Thread {
+class LegacyOutputThread extends Thread {
   private static final String TAG = "XCSoar";
 
   static final int BUFFER_SIZE = 256;
@@ -44,7 +45,7 @@ class OutputThread extends Thread {
   byte[] buffer = new byte[BUFFER_SIZE];
   int head, tail;
 
-  OutputThread(String _name, OutputStream _os) {
+  LegacyOutputThread(String _name, OutputStream _os) {
     super("InputThread " + _name);
 
     name = _name;
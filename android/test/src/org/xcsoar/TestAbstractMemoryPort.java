@@ -0,0 +1,101 @@
+/*
+Copyright_License {
+
+  XCSoar Glide Computer - http://www.xcsoar.org/
+  Copyright (C) 2000-2014 The XCSoar Project
+  A detailed list of copyright holders can be found in the file "AUTHORS".
+
+  This program is free software; you can redistribute it and/or
+  modify it under the terms of the GNU General Public License
+  as published by the Free Software Foundation; either version 2
+  of the License, or (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software
+  Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+}
+*/
+
+package org.xcsoar;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class TestAbstractMemoryPort {
+  static final class Port extends AbstractMemoryPort {
+    Port() {
+      super("memory");
+    }
+
+    @Override public void dataReceived(byte[] data, int length) {
+    }
+  }
+
+  /**
+   * A listener which blocks until released, like a stalled driver.
+   */
+  static final class StalledListener implements InputListener {
+    final CountDownLatch entered = new CountDownLatch(1);
+    final CountDownLatch released = new CountDownLatch(1);
+    long received;
+
+    @Override public void dataReceived(byte[] data, int length) {
+      entered.countDown();
+      try {
+        released.await();
+      } catch (InterruptedException e) {
+      }
+
+      synchronized(this) {
+        received += length;
+      }
+    }
+  }
+
+  public static void main(String[] args) throws InterruptedException {
+    TestUtil.planTests(4);
+
+    Port port = new Port();
+    StalledListener listener = new StalledListener();
+    port.setListener(listener);
+
+    byte[] data = new byte[200];
+    port.send(data, data.length);
+    TestUtil.ok(listener.entered.await(5, TimeUnit.SECONDS),
+                "listener called");
+
+    /* far more than the queue holds */
+    final long start = System.nanoTime();
+    for (int i = 0; i < 1000; ++i)
+      port.send(data, data.length);
+    final long elapsed_ms = (System.nanoTime() - start) / 1000000;
+    TestUtil.ok(elapsed_ms < 1000, "send() does not block");
+
+    final long dropped =
+      port.getStatistics()[PortStatistics.DROPPED_BYTES];
+    TestUtil.ok(dropped > 0, "overflow is counted");
+
+    listener.released.countDown();
+
+    /* wait for the queue to be delivered */
+    final long total = 1001 * data.length;
+    long received = 0;
+    for (int i = 0; i < 500 && received + dropped < total; ++i) {
+      Thread.sleep(10);
+      synchronized(listener) {
+        received = listener.received;
+      }
+    }
+
+    TestUtil.ok(received + dropped == total,
+                "every byte is either delivered or counted as dropped");
+    port.close();
+
+    System.exit(TestUtil.exitStatus());
+  }
+}
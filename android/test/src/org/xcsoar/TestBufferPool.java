@@ -0,0 +1,105 @@
+/*
+Copyright_License {
+
+  XCSoar Glide Computer - http://www.xcsoar.org/
+  Copyright (C) 2000-2014 The XCSoar Project
+  A detailed list of copyright holders can be found in the file "AUTHORS".
+
+  This program is free software; you can redistribute it and/or
+  modify it under the terms of the GNU General Public License
+  as published by the Free Software Foundation; either version 2
+  of the License, or (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software
+  Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+}
+*/
+
+package org.xcsoar;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Opens and closes the pooled port components repeatedly, and checks
+ * that the #BufferPool does not allocate new buffers after the first
+ * cycle, i.e. that all working buffers are returned.
+ */
+public class TestBufferPool {
+  private static final int N_CYCLES = 20;
+
+  private static final InputListener NULL_LISTENER = new InputListener() {
+      @Override public void dataReceived(byte[] data, int length) {}
+    };
+
+  /**
+   * @return true if all buffers have been returned
+   */
+  private static boolean cycle() throws InterruptedException {
+    InputThread input =
+      new InputThread("pool", NULL_LISTENER,
+                      new ByteArrayInputStream(TestInputThread.makeSentences(20)));
+    input.join();
+    input.close();
+
+    OutputQueue output = new OutputQueue("pool", new ByteArrayOutputStream());
+    byte[] data = TestInputThread.makeSentences(10);
+    output.write(data, data.length);
+    output.drain(1000);
+    output.close();
+
+    /* or else the sentence would obtain a new array while the queue's
+       arrays are still in use */
+    if (!awaitReleased())
+      return false;
+
+    NMEASentence sentence = new NMEASentence();
+    for (int i = 0; i < 10; ++i) {
+      sentence.begin("PTEST").field(i).field(1.5, 1).finish();
+      sentence.release();
+    }
+
+    return awaitReleased();
+  }
+
+  /**
+   * The consumer task of an #OutputQueue may return its arrays
+   * shortly after close(); wait for that.
+   */
+  private static boolean awaitReleased() throws InterruptedException {
+    for (int i = 0; i < 1000 && BufferPool.getOutstandingCount() > 0; ++i)
+      Thread.sleep(1);
+    return BufferPool.getOutstandingCount() == 0;
+  }
+
+  public static void main(String[] args) throws InterruptedException {
+    TestUtil.planTests(3);
+
+    BufferPool.setLeakDetection(true);
+
+    /* warm up: fill the pool */
+    TestUtil.ok(cycle(), "all buffers released after the first cycle");
+
+    final long allocations = BufferPool.getAllocationCount();
+
+    boolean released = true;
+    for (int i = 0; i < N_CYCLES; ++i) {
+      released &= cycle();
+    }
+
+    TestUtil.ok(released, "all buffers released after each cycle");
+
+    final long added = BufferPool.getAllocationCount() - allocations;
+    System.out.println("# " + added + " allocations in " + N_CYCLES +
+                       " cycles");
+    TestUtil.ok(added == 0, "no allocations after warm-up");
+
+    System.exit(TestUtil.exitStatus());
+  }
+}
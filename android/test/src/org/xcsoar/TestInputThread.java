@@ -0,0 +1,143 @@
+/*
+Copyright_License {
+
+  XCSoar Glide Computer - http://www.xcsoar.org/
+  Copyright (C) 2000-2014 The XCSoar Project
+  A detailed list of copyright holders can be found in the file "AUTHORS".
+
+  This program is free software; you can redistribute it and/or
+  modify it under the terms of the GNU General Public License
+  as published by the Free Software Foundation; either version 2
+  of the License, or (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software
+  Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+}
+*/
+
+package org.xcsoar;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Feeds NMEA sentences to an #InputThread a few bytes at a time, like
+ * a Bluetooth SPP socket does, and compares the number of listener
+ * calls (upcalls) with and without read coalescing.
+ */
+public class TestInputThread {
+  /**
+   * Returns the data in small pieces with a pause before each one.
+   */
+  static final class PacedStream extends InputStream {
+    private final byte[] data;
+    private final int piece;
+    private final long pause_ns;
+    private int position;
+
+    PacedStream(byte[] _data, int _piece, long _pause_ns) {
+      data = _data;
+      piece = _piece;
+      pause_ns = _pause_ns;
+    }
+
+    @Override public int read() {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) > 0 ? b[0] & 0xff : -1;
+    }
+
+    @Override public int read(byte[] b, int off, int len) {
+      if (position >= data.length)
+        return -1;
+
+      if (pause_ns > 0)
+        LockSupport.parkNanos(pause_ns);
+
+      int n = Math.min(Math.min(piece, len), data.length - position);
+      System.arraycopy(data, position, b, off, n);
+      position += n;
+      return n;
+    }
+  }
+
+  static final class Collector implements InputListener {
+    private final ByteArrayOutputStream data = new ByteArrayOutputStream();
+    int calls;
+
+    @Override public synchronized void dataReceived(byte[] b, int length) {
+      data.write(b, 0, length);
+      ++calls;
+    }
+
+    synchronized byte[] toByteArray() {
+      return data.toByteArray();
+    }
+  }
+
+  static byte[] makeSentences(int n) {
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    for (int i = 0; i < n; ++i) {
+      byte[] line = ("$PFLAU,3,1,2,1,0,144,0,235,446," + i + "*00\r\n")
+        .getBytes();
+      os.write(line, 0, line.length);
+    }
+    return os.toByteArray();
+  }
+
+  private static final int N_SENTENCES = 200;
+
+  /**
+   * @return the number of upcalls, or -1 if the data was not
+   * received correctly
+   */
+  private static long run(String label, boolean coalesce)
+    throws InterruptedException {
+    byte[] data = makeSentences(N_SENTENCES);
+    Collector collector = new Collector();
+    InputThread thread =
+      new InputThread(label, collector,
+                      new PacedStream(data, 4, 200000));
+    if (coalesce)
+      thread.setCoalescing(InputThread.BUFFER_SIZE, 5, true);
+
+    final long start = System.nanoTime();
+    thread.join();
+    final double seconds = (System.nanoTime() - start) / 1e9;
+
+    final long reads = thread.getReadCount();
+    final long upcalls = thread.getUpcallCount();
+    System.out.printf("# %s: %d reads, %d upcalls, %.0f upcalls/s%n",
+                      label, reads, upcalls, upcalls / seconds);
+
+    TestUtil.ok(Arrays.equals(collector.toByteArray(), data),
+                label + ": data is complete and in order");
+    TestUtil.ok(collector.calls == upcalls,
+                label + ": upcall counter matches listener calls");
+    return upcalls;
+  }
+
+  public static void main(String[] args) throws InterruptedException {
+    TestUtil.planTests(6);
+
+    /* without coalescing, each read() is one upcall */
+    long direct = run("direct", false);
+    TestUtil.ok(direct == (makeSentences(N_SENTENCES).length + 3) / 4,
+                "direct: one upcall per 4 byte read");
+
+    /* coalescing delivers each sentence at its newline; a few
+       sentences may be split by the latency budget */
+    long coalesced = run("coalescing", true);
+    TestUtil.ok(coalesced <= N_SENTENCES * 11 / 10,
+                "coalescing: about one upcall per sentence");
+
+    System.exit(TestUtil.exitStatus());
+  }
+}
@@ -0,0 +1,123 @@
+/*
+Copyright_License {
+
+  XCSoar Glide Computer - http://www.xcsoar.org/
+  Copyright (C) 2000-2014 The XCSoar Project
+  A detailed list of copyright holders can be found in the file "AUTHORS".
+
+  This program is free software; you can redistribute it and/or
+  modify it under the terms of the GNU General Public License
+  as published by the Free Software Foundation; either version 2
+  of the License, or (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software
+  Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+}
+*/
+
+package org.xcsoar;
+
+import java.util.Arrays;
+
+/**
+ * Stress test for the #MultiPort fan-out: one writer floods three
+ * peers, one of them fast, one slow and one stalled.
+ */
+public class TestMultiPort {
+  private static final int SENTENCE_LENGTH = 64;
+  private static final int N_SENTENCES = 5000;
+
+  private static byte[] makeSentence(int i) {
+    byte[] s = new byte[SENTENCE_LENGTH];
+    Arrays.fill(s, (byte)'x');
+    byte[] number = (Integer.toString(i) + ',').getBytes();
+    System.arraycopy(number, 0, s, 0, number.length);
+    s[SENTENCE_LENGTH - 1] = '\n';
+    return s;
+  }
+
+  /**
+   * Do the data consist of whole sentences in ascending order?
+   */
+  private static boolean isOrderedSubsequence(byte[] data) {
+    if (data.length % SENTENCE_LENGTH != 0)
+      return false;
+
+    int last = -1;
+    for (int offset = 0; offset < data.length; offset += SENTENCE_LENGTH) {
+      int end = offset;
+      while (data[end] != ',')
+        ++end;
+      int i = Integer.parseInt(new String(data, offset, end - offset));
+      if (i <= last)
+        return false;
+      last = i;
+    }
+
+    return true;
+  }
+
+  public static void main(String[] args) throws InterruptedException {
+    TestUtil.planTests(7);
+
+    FakePort fast = new FakePort("fast", 0, false);
+    FakePort slow = new FakePort("slow", 2, false);
+    FakePort stalled = new FakePort("stalled", 0, true);
+
+    MultiPort mp = new MultiPort();
+    mp.add(fast);
+    mp.add(slow, PeerWriter.POLICY_DROP_OLDEST);
+    mp.add(stalled, PeerWriter.POLICY_DISCONNECT);
+
+    long maxWrite = 0;
+    boolean accepted = true;
+    for (int i = 0; i < N_SENTENCES; ++i) {
+      byte[] s = makeSentence(i);
+      final long t = System.nanoTime();
+      if (mp.write(s, s.length) != s.length)
+        accepted = false;
+      maxWrite = Math.max(maxWrite, System.nanoTime() - t);
+
+      /* let the fast peer keep up, like a real NMEA stream would */
+      if (i % 100 == 99)
+        Thread.sleep(1);
+    }
+
+    System.out.println("# slowest write() " + maxWrite / 1000 + " us");
+    TestUtil.ok(accepted, "all writes accepted");
+    TestUtil.ok(maxWrite < 50000000L,
+                "write() does not wait for slow peers");
+
+    /* the stalled peer has overflowed its queue */
+    mp.getState();
+    TestUtil.ok(!mp.contains("stalled"), "stalled peer is disconnected");
+    TestUtil.ok(mp.contains("fast") && mp.contains("slow"),
+                "other peers remain");
+
+    TestUtil.ok(mp.drain(30000), "drain");
+
+    byte[] expected = new byte[N_SENTENCES * SENTENCE_LENGTH];
+    for (int i = 0; i < N_SENTENCES; ++i)
+      System.arraycopy(makeSentence(i), 0, expected, i * SENTENCE_LENGTH,
+                       SENTENCE_LENGTH);
+    TestUtil.ok(Arrays.equals(fast.toByteArray(), expected),
+                "fast peer got everything in order");
+
+    final long dropped = mp.getStatistics()[PortStatistics.DROPPED_BYTES];
+    System.out.println("# slow peer got " + slow.size() + " bytes, " +
+                       dropped + " dropped");
+    TestUtil.ok(isOrderedSubsequence(slow.toByteArray()),
+                "slow peer got whole sentences in order");
+
+    /* logs the lag of each peer */
+    mp.close();
+
+    System.exit(TestUtil.exitStatus());
+  }
+}
@@ -0,0 +1,179 @@
+/*
+Copyright_License {
+
+  XCSoar Glide Computer - http://www.xcsoar.org/
+  Copyright (C) 2000-2014 The XCSoar Project
+  A detailed list of copyright holders can be found in the file "AUTHORS".
+
+  This program is free software; you can redistribute it and/or
+  modify it under the terms of the GNU General Public License
+  as published by the Free Software Foundation; either version 2
+  of the License, or (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software
+  Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+}
+*/
+
+package org.xcsoar;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class TestOutputQueue {
+  /**
+   * A stream which collects all data, and which can be made to block
+   * in write() until it is released.
+   */
+  static final class GateStream extends OutputStream {
+    private final ByteArrayOutputStream data = new ByteArrayOutputStream();
+    final CountDownLatch entered = new CountDownLatch(1);
+    final CountDownLatch released;
+
+    GateStream(boolean blocked) {
+      released = new CountDownLatch(blocked ? 1 : 0);
+    }
+
+    @Override public void write(int b) throws IOException {
+      write(new byte[]{(byte)b}, 0, 1);
+    }
+
+    @Override public void write(byte[] b, int off, int len)
+      throws IOException {
+      entered.countDown();
+      try {
+        released.await();
+      } catch (InterruptedException e) {
+        throw new IOException(e);
+      }
+
+      synchronized(data) {
+        data.write(b, off, len);
+      }
+    }
+
+    byte[] toByteArray() {
+      synchronized(data) {
+        return data.toByteArray();
+      }
+    }
+  }
+
+  private static byte[] repeat(char c, int n) {
+    byte[] data = new byte[n];
+    Arrays.fill(data, (byte)c);
+    return data;
+  }
+
+  private static byte[] concat(byte[]... parts) {
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    for (byte[] part : parts)
+      os.write(part, 0, part.length);
+    return os.toByteArray();
+  }
+
+  private static void testOrder() {
+    GateStream os = new GateStream(false);
+    OutputQueue queue = new OutputQueue("order", os);
+    queue.setTimeout(1000);
+
+    ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    boolean complete = true;
+    for (int i = 0; i < 1000; ++i) {
+      byte[] line = ("$PTEST," + i + "*00\r\n").getBytes();
+      expected.write(line, 0, line.length);
+      int offset = 0;
+      while (offset < line.length) {
+        byte[] rest = Arrays.copyOfRange(line, offset, line.length);
+        int n = queue.write(rest, rest.length);
+        if (n <= 0) {
+          complete = false;
+          break;
+        }
+        offset += n;
+      }
+    }
+
+    TestUtil.ok(complete, "all writes accepted");
+    TestUtil.ok(queue.drain(5000), "drain");
+    TestUtil.ok(Arrays.equals(os.toByteArray(), expected.toByteArray()),
+                "data arrives in order");
+    queue.close();
+  }
+
+  private static void testUrgent() throws InterruptedException {
+    GateStream os = new GateStream(true);
+    OutputQueue queue = new OutputQueue("urgent", os);
+
+    byte[] a = repeat('A', 10), b = repeat('B', 10), u = repeat('U', 5);
+    queue.write(a, a.length);
+
+    /* wait until the consumer blocks on the first message */
+    TestUtil.ok(os.entered.await(5, TimeUnit.SECONDS), "consumer started");
+
+    for (int i = 0; i < 5; ++i)
+      queue.write(b, b.length);
+    queue.write(ByteBuffer.wrap(u), u.length, AndroidPort.PRIORITY_URGENT);
+
+    os.released.countDown();
+    TestUtil.ok(queue.drain(5000), "drain");
+    TestUtil.ok(Arrays.equals(os.toByteArray(),
+                              concat(a, u, b, b, b, b, b)),
+                "urgent data overtakes queued bulk data");
+    queue.close();
+  }
+
+  private static void testTimeout() throws InterruptedException {
+    GateStream os = new GateStream(true);
+    PortStatistics statistics = new PortStatistics();
+    OutputQueue queue = new OutputQueue("timeout", os,
+                                        OutputQueue.DEFAULT_BUFFER_SIZE,
+                                        statistics);
+    queue.setTimeout(50);
+
+    byte[] data = repeat('X', 100);
+    int result = 0;
+    long start = System.nanoTime();
+    for (int i = 0; i < 10 && result >= 0; ++i)
+      result = queue.write(data, data.length);
+    long elapsed_ms = (System.nanoTime() - start) / 1000000;
+
+    TestUtil.ok(result == -1, "write into full buffer times out");
+    TestUtil.ok(elapsed_ms >= 40, "write waits for the timeout");
+    TestUtil.ok(statistics.snapshot()[PortStatistics.WRITE_TIMEOUTS] == 1,
+                "timeout is counted");
+
+    int n = queue.writeFully(ByteBuffer.wrap(data), data.length,
+                             AndroidPort.PRIORITY_NORMAL, 0);
+    TestUtil.ok(n == -1, "writeFully without timeout does not wait");
+
+    os.released.countDown();
+    TestUtil.ok(queue.drain(5000), "drain after release");
+
+    queue.close();
+    TestUtil.ok(queue.write(data, data.length) == -1,
+                "write after close fails");
+    TestUtil.ok(!queue.drain(100), "drain after close fails");
+  }
+
+  public static void main(String[] args) throws InterruptedException {
+    TestUtil.planTests(13);
+
+    testOrder();
+    testUrgent();
+    testTimeout();
+
+    System.exit(TestUtil.exitStatus());
+  }
+}
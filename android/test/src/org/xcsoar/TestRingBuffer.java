@@ -0,0 +1,92 @@
+/*
+Copyright_License {
+
+  XCSoar Glide Computer - http://www.xcsoar.org/
+  Copyright (C) 2000-2014 The XCSoar Project
+  A detailed list of copyright holders can be found in the file "AUTHORS".
+
+  This program is free software; you can redistribute it and/or
+  modify it under the terms of the GNU General Public License
+  as published by the Free Software Foundation; either version 2
+  of the License, or (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software
+  Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+}
+*/
+
+package org.xcsoar;
+
+import java.nio.ByteBuffer;
+
+public class TestRingBuffer {
+  private static boolean equals(RingBuffer buffer, byte[] expected) {
+    byte[] actual = new byte[buffer.size()];
+    int n = 0;
+    while (!buffer.isEmpty()) {
+      int size = buffer.readable();
+      System.arraycopy(buffer.array(), buffer.readOffset(), actual, n, size);
+      buffer.consume(size);
+      n += size;
+    }
+
+    return java.util.Arrays.equals(actual, expected);
+  }
+
+  private static byte[] sequence(int start, int length) {
+    byte[] data = new byte[length];
+    for (int i = 0; i < length; ++i)
+      data[i] = (byte)(start + i);
+    return data;
+  }
+
+  public static void main(String[] args) {
+    TestUtil.planTests(14);
+
+    boolean thrown = false;
+    try {
+      new RingBuffer(100);
+    } catch (IllegalArgumentException e) {
+      thrown = true;
+    }
+    TestUtil.ok(thrown, "capacity must be a power of two");
+
+    RingBuffer buffer = new RingBuffer(128);
+    TestUtil.ok(buffer.isEmpty() && buffer.capacity() == 128, "empty");
+
+    TestUtil.ok(buffer.put(sequence(0, 100), 0, 100) == 100, "put");
+    TestUtil.ok(buffer.size() == 100 && buffer.readable() == 100, "size");
+
+    buffer.consume(90);
+    TestUtil.ok(buffer.readPosition() == 90 &&
+                buffer.writePosition() == 100, "positions");
+
+    /* this one wraps around */
+    TestUtil.ok(buffer.put(sequence(100, 50), 0, 50) == 50, "put wrapped");
+    TestUtil.ok(buffer.size() == 60, "size wrapped");
+    TestUtil.ok(buffer.readable() == 38,
+                "readable ends at the end of the array");
+
+    /* only 68 bytes are free */
+    TestUtil.ok(buffer.put(sequence(150, 100), 0, 100) == 68,
+                "put truncated");
+    TestUtil.ok(buffer.put(new byte[1], 0, 1) == 0, "put into full buffer");
+    TestUtil.ok(equals(buffer, sequence(90, 128)), "contents");
+
+    ByteBuffer src = ByteBuffer.wrap(sequence(0, 200));
+    src.position(10);
+    TestUtil.ok(buffer.put(src, 150) == 128 && src.position() == 138,
+                "put ByteBuffer advances its position");
+    TestUtil.ok(equals(buffer, sequence(10, 128)), "ByteBuffer contents");
+    TestUtil.ok(buffer.isEmpty() && buffer.readPosition() == 346,
+                "positions keep counting");
+
+    System.exit(TestUtil.exitStatus());
+  }
+}
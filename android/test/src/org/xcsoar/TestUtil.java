@@ -0,0 +1,69 @@
+/*
+Copyright_License {
+
+  XCSoar Glide Computer - http://www.xcsoar.org/
+  Copyright (C) 2000-2014 The XCSoar Project
+  A detailed list of copyright holders can be found in the file "AUTHORS".
+
+  This program is free software; you can redistribute it and/or
+  modify it under the terms of the GNU General Public License
+  as published by the Free Software Foundation; either version 2
+  of the License, or (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software
+  Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+}
+*/
+
+package org.xcsoar;
+
+/**
+ * A minimal TAP producer, modelled after test/src/tap.h, for the
+ * host-side tests of the Java port layer.
+ */
+final class TestUtil {
+  private static int planned, run, failed;
+
+  private TestUtil() {}
+
+  static void planTests(int n) {
+    planned = n;
+    System.out.println("1.." + n);
+  }
+
+  static boolean ok(boolean result, String name) {
+    ++run;
+    if (!result)
+      ++failed;
+
+    System.out.println((result ? "ok " : "not ok ") + run + " - " + name);
+    if (!result) {
+      /* like tap.c, report where the failed test is */
+      StackTraceElement caller = new Throwable().getStackTrace()[1];
+      System.out.println("#     Failed test (" + caller.getFileName() +
+                         ":" + caller.getLineNumber() + ")");
+    }
+
+    return result;
+  }
+
+  /**
+   * @return the exit status for the test program: 0 if all planned
+   * tests have run and passed
+   */
+  static int exitStatus() {
+    if (run != planned) {
+      System.out.println("# Looks like you planned " + planned +
+                         " tests but ran " + run + ".");
+      return 255;
+    }
+
+    return Math.min(failed, 254);
+  }
+}
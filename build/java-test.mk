@@ -0,0 +1,67 @@
+# This Makefile fragment builds and runs host-side tests and
+# benchmarks for the pure-Java part of the Android port layer.  They
+# need only a JDK on the build host: the few Android classes used by
+# the port layer are replaced by fakes from android/test/fake.
+#
+#  make check-java      runs the tests (TAP output)
+#  make benchmark-java  runs the benchmarks
+
+JAVAC ?= javac
+JAVA ?= java
+
+JAVA_TEST_SRC_DIR = $(topdir)/android/test/src
+JAVA_TEST_FAKE_DIR = $(topdir)/android/test/fake
+JAVA_TEST_OUTPUT_DIR = $(HOST_OUTPUT_DIR)/java-test
+
+# the port layer classes which are tested; they must not depend on
+# Android APIs other than the ones in $(JAVA_TEST_FAKE_DIR)
+JAVA_TEST_PORT_CLASSES = \
+	AndroidPort AbstractAndroidPort AbstractMemoryPort APILevel17 \
+	InputListener TimedInputListener DirectInputListener \
+	InputChunk InputDispatcher InputThread \
+	OutputQueue RingBuffer \
+	MultiPort PeerWriter \
+	BufferPool NMEASentence \
+	PortExecutor PortStatistics
+
+JAVA_TEST_NAMES = \
+	TestRingBuffer \
+	TestOutputQueue \
+	TestInputThread \
+	TestAbstractMemoryPort \
+	TestMultiPort \
+	TestBufferPool
+
+JAVA_BENCHMARK_NAMES = \
+	BenchmarkOutputQueue \
+	BenchmarkPortExecutor \
+	BenchmarkUrgentWrite \
+	BenchmarkDownload \
+	BenchmarkNMEASentence
+
+JAVA_TEST_SOURCES = \
+	$(patsubst %,$(topdir)/android/src/%.java,$(JAVA_TEST_PORT_CLASSES)) \
+	$(wildcard $(JAVA_TEST_SRC_DIR)/org/xcsoar/*.java) \
+	$(wildcard $(JAVA_TEST_FAKE_DIR)/android/*/*.java)
+
+$(JAVA_TEST_OUTPUT_DIR)/classes.stamp: $(JAVA_TEST_SOURCES)
+	@$(NQ)echo "  JAVAC   $(JAVA_TEST_OUTPUT_DIR)"
+	$(Q)rm -rf $(JAVA_TEST_OUTPUT_DIR)/classes
+	$(Q)mkdir -p $(JAVA_TEST_OUTPUT_DIR)/classes
+	$(Q)$(JAVAC) -source 1.7 -target 1.7 -nowarn -encoding UTF-8 \
+		-d $(JAVA_TEST_OUTPUT_DIR)/classes $(JAVA_TEST_SOURCES)
+	@touch $@
+
+check-java: $(JAVA_TEST_OUTPUT_DIR)/classes.stamp
+	$(Q)for i in $(JAVA_TEST_NAMES); do \
+		echo "# $$i"; \
+		$(JAVA) -cp $(JAVA_TEST_OUTPUT_DIR)/classes org.xcsoar.$$i || exit 1; \
+	done
+
+benchmark-java: $(JAVA_TEST_OUTPUT_DIR)/classes.stamp
+	$(Q)for i in $(JAVA_BENCHMARK_NAMES); do \
+		echo "# $$i"; \
+		$(JAVA) -cp $(JAVA_TEST_OUTPUT_DIR)/classes org.xcsoar.$$i || exit 1; \
+	done
+
+.PHONY: check-java benchmark-java
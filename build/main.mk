@@ -702,6 +702,7 @@ XCSOAR_SOURCES += \
 	$(SRC)/Device/Port/AndroidBluetoothPort.cpp \
 	$(SRC)/Device/Port/AndroidBLEPort.cpp \
 	$(SRC)/Device/Port/AndroidIOIOUartPort.cpp \
+	$(SRC)/Device/Port/AndroidReplayPort.cpp \
 	$(SRC)/Android/Environment.cpp \
 	$(SRC)/Android/Product.cpp \
 	$(SRC)/Android/Nook.cpp \
@@ -713,6 +714,7 @@ XCSOAR_SOURCES += \
 	$(SRC)/Android/PortBridge.cpp \
 	$(SRC)/Android/BluetoothHelper.cpp \
 	$(SRC)/Android/BLEHelper.cpp \
+	$(SRC)/Android/ReplayHelper.cpp \
 	$(SRC)/Android/Battery.cpp \
 	$(SRC)/Android/DownloadManager.cpp \
 	$(SRC)/Android/Vibrator.cpp \
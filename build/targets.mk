@@ -357,10 +357,12 @@ endif
 ifeq ($(TARGET),ANDROID)
   ANDROID_NDK ?= $(HOME)/opt/android-ndk-r9d
 
-  ANDROID_PLATFORM = android-18
+  ANDROID_PLATFORM = android-21
   ANDROID_SDK_PLATFORM = $(ANDROID_PLATFORM)
 
   # NDK r8b has only android-14
+  # NDK r9d has no android-21; the Java code needs it only for the
+  # BLE calls wrapped in APILevel21, the native code does not
   ANDROID_NDK_PLATFORM = android-18
 
   ANDROID_ARCH = arm
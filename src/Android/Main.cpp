@@ -30,6 +30,7 @@ Copyright_License {
 #include "Android/InternalSensors.hpp"
 #include "Android/PortBridge.hpp"
 #include "Android/BluetoothHelper.hpp"
+#include "Android/ReplayHelper.hpp"
 #include "Android/BLEHelper.hpp"
 #include "Android/NativeInputListener.hpp"
 #include "Android/TextUtil.hpp"
@@ -119,6 +120,7 @@ Java_org_xcsoar_NativeView_initializeNative(JNIEnv *env, jobject obj,
   PortBridge::Initialise(env);
   BluetoothHelper::Initialise(env);
   BLEHelper::Initialise(env);
+  ReplayHelper::Initialise(env);
   IOIOHelper::Initialise(env);
   NativeBMP085Listener::Initialise(env);
   BMP085Device::Initialise(env);
@@ -240,6 +242,8 @@ Java_org_xcsoar_NativeView_deinitializeNative(JNIEnv *env, jobject obj)
   IOIOHelper::Deinitialise(env);
   BluetoothHelper::Deinitialise(env);
   BLEHelper::Deinitialise(env);
+  ReplayHelper::Deinitialise(env);
+  PortBridge::Deinitialise(env);
   NativeInputListener::Deinitialise(env);
   InternalSensors::Deinitialise(env);
   Environment::Deinitialise(env);
@@ -25,6 +25,10 @@ Copyright_License {
 #include "IO/DataHandler.hpp"
 #include "Java/Class.hpp"
 #include "org_xcsoar_NativeInputListener.h"
+#include "Util/AllocatedArray.hpp"
+#include "LogFile.hpp"
+
+#include <algorithm>
 
 #include <stddef.h>
 
@@ -32,8 +36,73 @@ namespace NativeInputListener {
   static Java::TrivialClass cls;
   static jmethodID ctor;
   static jfieldID ptr_field;
+
+  static jmethodID has_array_method, array_method, array_offset_method;
+
+  /**
+   * Number of buffers which could not be accessed and were
+   * discarded.
+   */
+  static unsigned n_dropped;
+};
+
+/**
+ * Obtains a pointer to the contents of a java.nio.ByteBuffer.  Direct
+ * buffers are accessed in place; buffers backed by a Java array are
+ * copied with GetByteArrayRegion().
+ */
+class ByteBufferData {
+  AllocatedArray<char> copy;
+  const char *data;
+
+public:
+  ByteBufferData(JNIEnv *env, jobject buffer, jint offset, jint length)
+    :data((const char *)env->GetDirectBufferAddress(buffer)) {
+    if (data != NULL) {
+      data += offset;
+      return;
+    }
+
+    using namespace NativeInputListener;
+
+    if (!env->CallBooleanMethod(buffer, has_array_method)) {
+      /* read-only heap buffer: no way to reach the bytes */
+      env->ExceptionClear();
+      return;
+    }
+
+    jbyteArray array = (jbyteArray)env->CallObjectMethod(buffer, array_method);
+    jint array_offset = env->CallIntMethod(buffer, array_offset_method);
+    if (env->ExceptionCheck() || array == NULL) {
+      env->ExceptionClear();
+      return;
+    }
+
+    copy.GrowDiscard(length);
+    env->GetByteArrayRegion(array, array_offset + offset, length,
+                            (jbyte *)copy.begin());
+    env->DeleteLocalRef(array);
+    if (env->ExceptionCheck()) {
+      env->ExceptionClear();
+      return;
+    }
+
+    data = copy.begin();
+  }
+
+  const char *get() const {
+    return data;
+  }
 };
 
+static void
+BufferDropped(jint length)
+{
+  ++NativeInputListener::n_dropped;
+  LogFormat("NativeInputListener: dropped %d bytes from inaccessible buffer (%u total)",
+            (int)length, NativeInputListener::n_dropped);
+}
+
 JNIEXPORT void JNICALL
 Java_org_xcsoar_NativeInputListener_dataReceived(JNIEnv *env, jobject obj,
                                                  jbyteArray data, jint length)
@@ -47,7 +116,80 @@ Java_org_xcsoar_NativeInputListener_dataReceived(JNIEnv *env, jobject obj,
 
   jbyte *data2 = env->GetByteArrayElements(data, NULL);
   handler.DataReceived(data2, length);
-  env->ReleaseByteArrayElements(data, data2, 0);
+  /* the array was only read; don't copy it back */
+  env->ReleaseByteArrayElements(data, data2, JNI_ABORT);
+}
+
+JNIEXPORT void JNICALL
+Java_org_xcsoar_NativeInputListener_bufferReceived(JNIEnv *env, jobject obj,
+                                                   jobject buffer,
+                                                   jint offset, jint length)
+{
+  jlong ptr = env->GetLongField(obj, NativeInputListener::ptr_field);
+  if (ptr == 0)
+    /* not yet set */
+    return;
+
+  DataHandler &handler = *(DataHandler *)(void *)ptr;
+
+  ByteBufferData data(env, buffer, offset, length);
+  if (data.get() == NULL) {
+    BufferDropped(length);
+    return;
+  }
+
+  handler.DataReceived(data.get(), length);
+}
+
+JNIEXPORT void JNICALL
+Java_org_xcsoar_NativeInputListener_timedBufferReceived(JNIEnv *env,
+                                                        jobject obj,
+                                                        jobject buffer,
+                                                        jint offset,
+                                                        jint length,
+                                                        jlong time,
+                                                        jintArray _segments,
+                                                        jint n_segments)
+{
+  jlong ptr = env->GetLongField(obj, NativeInputListener::ptr_field);
+  if (ptr == 0)
+    /* not yet set */
+    return;
+
+  DataHandler &handler = *(DataHandler *)(void *)ptr;
+
+  ByteBufferData buffer_data(env, buffer, offset, length);
+  const char *data = buffer_data.get();
+  if (data == NULL) {
+    BufferDropped(length);
+    return;
+  }
+
+  /* must match InputChunk.MAX_SEGMENTS */
+  static constexpr jint MAX_SEGMENTS = 16;
+  if (n_segments > MAX_SEGMENTS)
+    n_segments = MAX_SEGMENTS;
+  else if (n_segments < 1) {
+    handler.TimedDataReceived(data, length, time);
+    return;
+  }
+
+  jint segments[MAX_SEGMENTS * 2];
+  env->GetIntArrayRegion(_segments, 0, n_segments * 2, segments);
+
+  /* pass each segment with its own arrival time */
+  jint start = 0;
+  for (jint i = 0; i < n_segments; ++i) {
+    jint end = std::min(segments[i * 2], length);
+    if (i == n_segments - 1)
+      end = length;
+
+    if (end > start)
+      handler.TimedDataReceived(data + start, end - start,
+                                time + segments[i * 2 + 1] * 1000ULL);
+
+    start = end;
+  }
 }
 
 void
@@ -57,6 +199,11 @@ NativeInputListener::Initialise(JNIEnv *env)
 
   ctor = env->GetMethodID(cls, "<init>", "(J)V");
   ptr_field = env->GetFieldID(cls, "ptr", "J");
+
+  Java::Class byte_buffer(env, "java/nio/ByteBuffer");
+  has_array_method = env->GetMethodID(byte_buffer, "hasArray", "()Z");
+  array_method = env->GetMethodID(byte_buffer, "array", "()[B");
+  array_offset_method = env->GetMethodID(byte_buffer, "arrayOffset", "()I");
 }
 
 void
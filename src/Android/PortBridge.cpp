@@ -24,7 +24,9 @@ Copyright_License {
 #include "Android/PortBridge.hpp"
 #include "Android/NativeInputListener.hpp"
 #include "Java/Class.hpp"
+#include "Device/Port/Statistics.hpp"
 
+#include <assert.h>
 #include <string.h>
 
 jmethodID PortBridge::close_method;
@@ -33,7 +35,16 @@ jmethodID PortBridge::getState_method;
 jmethodID PortBridge::drain_method;
 jmethodID PortBridge::getBaudRate_method;
 jmethodID PortBridge::setBaudRate_method;
+jmethodID PortBridge::setBulkMode_method;
 jmethodID PortBridge::write_method;
+jmethodID PortBridge::writeFully_method;
+jmethodID PortBridge::getStatistics_method;
+
+/**
+ * The Java class BufferPool, which provides the write buffers.
+ */
+static Java::TrivialClass buffer_pool_class;
+static jmethodID obtainDirect_method, releaseDirect_method;
 
 void
 PortBridge::Initialise(JNIEnv *env)
@@ -44,15 +55,51 @@ PortBridge::Initialise(JNIEnv *env)
   setListener_method = env->GetMethodID(cls, "setListener",
                                         "(Lorg/xcsoar/InputListener;)V");
   getState_method = env->GetMethodID(cls, "getState", "()I");
-  drain_method = env->GetMethodID(cls, "drain", "()Z");
+  drain_method = env->GetMethodID(cls, "drain", "(I)Z");
   getBaudRate_method = env->GetMethodID(cls, "getBaudRate", "()I");
   setBaudRate_method = env->GetMethodID(cls, "setBaudRate", "(I)Z");
-  write_method = env->GetMethodID(cls, "write", "([BI)I");
+  setBulkMode_method = env->GetMethodID(cls, "setBulkMode", "(Z)V");
+  write_method = env->GetMethodID(cls, "write", "(Ljava/nio/ByteBuffer;II)I");
+  writeFully_method = env->GetMethodID(cls, "writeFully",
+                                       "(Ljava/nio/ByteBuffer;III)I");
+  getStatistics_method = env->GetMethodID(cls, "getStatistics", "()[J");
+
+  buffer_pool_class.Find(env, "org/xcsoar/BufferPool");
+  obtainDirect_method =
+    env->GetStaticMethodID(buffer_pool_class, "obtainDirect",
+                           "(I)Ljava/nio/ByteBuffer;");
+  releaseDirect_method =
+    env->GetStaticMethodID(buffer_pool_class, "releaseDirect",
+                           "(Ljava/nio/ByteBuffer;)V");
+}
+
+void
+PortBridge::Deinitialise(JNIEnv *env)
+{
+  buffer_pool_class.Clear(env);
 }
 
 PortBridge::PortBridge(JNIEnv *env, jobject obj)
   :Java::Object(env, obj) {
-  write_buffer.Set(env, env->NewByteArray(write_buffer_size));
+  jobject buffer = env->CallStaticObjectMethod(buffer_pool_class,
+                                               obtainDirect_method,
+                                               (jint)write_buffer_size);
+  assert(buffer != nullptr);
+
+  write_buffer.Set(env, buffer);
+  env->DeleteLocalRef(buffer);
+
+  write_data = (uint8_t *)env->GetDirectBufferAddress(write_buffer.Get());
+  assert(write_data != nullptr);
+}
+
+PortBridge::~PortBridge()
+{
+  JNIEnv *env = Java::GetEnv();
+  close(env);
+
+  env->CallStaticVoidMethod(buffer_pool_class, releaseDirect_method,
+                            write_buffer.Get());
 }
 
 void
@@ -69,14 +116,48 @@ PortBridge::setListener(JNIEnv *env, DataHandler *handler)
 }
 
 int
-PortBridge::write(JNIEnv *env, const void *data, size_t length)
+PortBridge::write(JNIEnv *env, const void *data, size_t length,
+                  Priority priority)
 {
   if (length > write_buffer_size)
     length = write_buffer_size;
 
-  jbyte *dest = env->GetByteArrayElements(write_buffer, NULL);
-  memcpy(dest, data, length);
-  env->ReleaseByteArrayElements(write_buffer, dest, 0);
+  memcpy(write_data, data, length);
 
-  return env->CallIntMethod(Get(), write_method, write_buffer.Get(), length);
+  return env->CallIntMethod(Get(), write_method, write_buffer.Get(),
+                            (jint)length, (jint)priority);
+}
+
+int
+PortBridge::writeFully(JNIEnv *env, const void *data, size_t length,
+                       unsigned timeout_ms, Priority priority)
+{
+  if (length > write_buffer_size)
+    length = write_buffer_size;
+
+  memcpy(write_data, data, length);
+
+  return env->CallIntMethod(Get(), writeFully_method, write_buffer.Get(),
+                            (jint)length, (jint)priority, (jint)timeout_ms);
+}
+
+bool
+PortBridge::getStatistics(JNIEnv *env, PortStatistics &statistics) const
+{
+  static_assert(sizeof(statistics) == 11 * sizeof(jlong),
+                "Statistics does not match PortStatistics.SIZE");
+
+  jlongArray array = (jlongArray)
+    env->CallObjectMethod(Get(), getStatistics_method);
+  if (array == nullptr)
+    return false;
+
+  bool success = env->GetArrayLength(array) * sizeof(jlong) >=
+    sizeof(statistics);
+  if (success)
+    env->GetLongArrayRegion(array, 0, sizeof(statistics) / sizeof(jlong),
+                            (jlong *)&statistics);
+
+  env->DeleteLocalRef(array);
+  return success;
 }
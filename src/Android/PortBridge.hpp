@@ -26,7 +26,10 @@ Copyright_License {
 
 #include "Java/Object.hpp"
 
+#include <stdint.h>
+
 class DataHandler;
+struct PortStatistics;
 
 class PortBridge : protected Java::Object {
   static jmethodID close_method;
@@ -34,23 +37,51 @@ class PortBridge : protected Java::Object {
   static jmethodID getState_method;
   static jmethodID drain_method;
   static jmethodID getBaudRate_method, setBaudRate_method;
-  static jmethodID write_method;
+  static jmethodID setBulkMode_method;
+  static jmethodID write_method, writeFully_method;
+  static jmethodID getStatistics_method;
 
   static constexpr size_t write_buffer_size = 4096;
-  Java::GlobalRef<jbyteArray> write_buffer;
+
+  /**
+   * A direct java.nio.ByteBuffer obtained from the Java class
+   * BufferPool; it is returned when this object is destroyed, so a
+   * reconnecting port reuses it.  Java code reads from it without
+   * pinning or copying a Java array.
+   */
+  Java::GlobalRef<jobject> write_buffer;
+
+  /**
+   * The native memory of #write_buffer.
+   */
+  uint8_t *write_data;
 
 public:
+  /**
+   * Must match the AndroidPort.PRIORITY_* constants.
+   */
+  enum class Priority : jint {
+    /**
+     * Regular output.
+     */
+    NORMAL = 0,
+
+    /**
+     * Short commands which overtake queued regular output (but never
+     * split a write which has already been queued).
+     */
+    URGENT = 1,
+  };
+
   /**
    * Global initialisation.  Looks up the methods of the AndroidPort
    * Java class.
    */
   static void Initialise(JNIEnv *env);
+  static void Deinitialise(JNIEnv *env);
 
   PortBridge(JNIEnv *env, jobject obj);
-
-  ~PortBridge() {
-    close(Java::GetEnv());
-  }
+  ~PortBridge();
 
   void close(JNIEnv *env) {
     env->CallVoidMethod(Get(), close_method);
@@ -62,8 +93,8 @@ public:
     return env->CallIntMethod(Get(), getState_method);
   }
 
-  bool drain(JNIEnv *env) {
-    return env->CallBooleanMethod(Get(), drain_method);
+  bool drain(JNIEnv *env, int timeout_ms) {
+    return env->CallBooleanMethod(Get(), drain_method, timeout_ms);
   }
 
   int getBaudRate(JNIEnv *env) const {
@@ -74,7 +105,34 @@ public:
     return env->CallBooleanMethod(Get(), setBaudRate_method, baud_rate);
   }
 
-  int write(JNIEnv *env, const void *data, size_t length);
+  /**
+   * Optimise the Java receive path for large transfers: large reads,
+   * no coalescing delay, and each read is passed to the listener
+   * right away.
+   */
+  void setBulkMode(JNIEnv *env, bool enabled) {
+    env->CallVoidMethod(Get(), setBulkMode_method, (jboolean)enabled);
+  }
+
+  int write(JNIEnv *env, const void *data, size_t length,
+            Priority priority=Priority::NORMAL);
+
+  /**
+   * Like write(), but wait for room in the output buffer up to the
+   * specified timeout instead of the port's internal one.
+   *
+   * @return the number of bytes that were written (at most
+   * #write_buffer_size) or -1 on error
+   */
+  int writeFully(JNIEnv *env, const void *data, size_t length,
+                 unsigned timeout_ms, Priority priority=Priority::NORMAL);
+
+  /**
+   * Obtain the current statistics with one JNI call.
+   *
+   * @return false on error
+   */
+  bool getStatistics(JNIEnv *env, PortStatistics &statistics) const;
 };
 
 #endif
@@ -0,0 +1,64 @@
+/*
+Copyright_License {
+
+  XCSoar Glide Computer - http://www.xcsoar.org/
+  Copyright (C) 2000-2014 The XCSoar Project
+  A detailed list of copyright holders can be found in the file "AUTHORS".
+
+  This program is free software; you can redistribute it and/or
+  modify it under the terms of the GNU General Public License
+  as published by the Free Software Foundation; either version 2
+  of the License, or (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software
+  Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+}
+*/
+
+#include "Android/ReplayHelper.hpp"
+#include "PortBridge.hpp"
+#include "Java/String.hpp"
+#include "Java/Class.hpp"
+
+namespace ReplayHelper {
+  static Java::TrivialClass cls;
+  static jmethodID open_method;
+}
+
+void
+ReplayHelper::Initialise(JNIEnv *env)
+{
+  assert(!cls.IsDefined());
+  assert(env != NULL);
+
+  cls.Find(env, "org/xcsoar/ReplayPort");
+
+  open_method = env->GetStaticMethodID(cls, "open",
+                                       "(Ljava/lang/String;)Lorg/xcsoar/AndroidPort;");
+}
+
+void
+ReplayHelper::Deinitialise(JNIEnv *env)
+{
+  cls.Clear(env);
+}
+
+PortBridge *
+ReplayHelper::open(JNIEnv *env, const char *path)
+{
+  const Java::String path2(env, path);
+  jobject obj = env->CallStaticObjectMethod(cls, open_method, path2.Get());
+  if (obj == NULL)
+    return NULL;
+
+  PortBridge *helper = new PortBridge(env, obj);
+  env->DeleteLocalRef(obj);
+
+  return helper;
+}
@@ -0,0 +1,51 @@
+/*
+Copyright_License {
+
+  XCSoar Glide Computer - http://www.xcsoar.org/
+  Copyright (C) 2000-2014 The XCSoar Project
+  A detailed list of copyright holders can be found in the file "AUTHORS".
+
+  This program is free software; you can redistribute it and/or
+  modify it under the terms of the GNU General Public License
+  as published by the Free Software Foundation; either version 2
+  of the License, or (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software
+  Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+}
+*/
+
+#ifndef XCSOAR_ANDROID_REPLAY_HELPER_HPP
+#define XCSOAR_ANDROID_REPLAY_HELPER_HPP
+
+#include "Compiler.h"
+
+#include <jni.h>
+
+class PortBridge;
+
+namespace ReplayHelper {
+  /**
+   * Global initialisation.  Looks up the methods of the ReplayPort
+   * Java class.
+   */
+  void Initialise(JNIEnv *env);
+  void Deinitialise(JNIEnv *env);
+
+  /**
+   * Open a port which plays back a capture file.
+   *
+   * @param path the path of the file; relative paths are resolved in
+   * the capture directory
+   */
+  gcc_malloc
+  PortBridge *open(JNIEnv *env, const char *path);
+};
+
+#endif
@@ -184,6 +184,12 @@ DeviceDescriptor::DisableDump()
     port->Disable();
 }
 
+bool
+DeviceDescriptor::GetPortStatistics(PortStatistics &statistics) const
+{
+  return port != nullptr && port->GetStatistics(statistics);
+}
+
 void
 DeviceDescriptor::EnableDumpTemporarily(unsigned duration_ms)
 {
@@ -995,7 +1001,10 @@ DeviceDescriptor::DownloadFlight(const RecordedFlightInfo &flight,
   text.Format(_T("%s: %s."), _("Downloading flight log"), driver->display_name);
   env.SetText(text);
 
-  return device->DownloadFlight(flight, path, env);
+  port->SetBulkMode(true);
+  const bool success = device->DownloadFlight(flight, path, env);
+  port->SetBulkMode(false);
+  return success;
 }
 
 void
@@ -47,6 +47,7 @@ struct DerivedInfo;
 struct Declaration;
 struct Waypoint;
 class Port;
+struct PortStatistics;
 class DumpPort;
 class Device;
 class AtmosphericPressure;
@@ -243,6 +244,11 @@ public:
    */
   void DisableDump();
 
+  /**
+   * @see Port::GetStatistics()
+   */
+  bool GetPortStatistics(PortStatistics &statistics) const;
+
   /**
    * @see DumpPort::EnableTemporarily()
    */
@@ -126,7 +126,7 @@ namespace LX1600 {
 
     char buffer[32];
     sprintf(buffer, "PFLX2,%1.1f,,,,,,", (double)mc);
-    return PortWriteNMEA(port, buffer, env);
+    return PortWriteNMEAUrgent(port, buffer, env);
   }
 
   /**
@@ -143,7 +143,7 @@ namespace LX1600 {
 
     char buffer[100];
     sprintf(buffer, "PFLX2,,%.2f,,,,", (double)overload);
-    return PortWriteNMEA(port, buffer, env);
+    return PortWriteNMEAUrgent(port, buffer, env);
   }
 
   /**
@@ -160,7 +160,7 @@ namespace LX1600 {
 
     char buffer[100];
     sprintf(buffer, "PFLX2,,,%u,,,", bugs);
-    return PortWriteNMEA(port, buffer, env);
+    return PortWriteNMEAUrgent(port, buffer, env);
   }
 
   /**
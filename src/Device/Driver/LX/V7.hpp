@@ -79,7 +79,7 @@ namespace V7 {
   {
     char buffer[32];
     sprintf(buffer, "PLXV0,MC,W,%.1f", (double)mc);
-    return PortWriteNMEA(port, buffer, env);
+    return PortWriteNMEAUrgent(port, buffer, env);
   }
 
   /**
@@ -91,7 +91,7 @@ namespace V7 {
   {
     char buffer[100];
     sprintf(buffer, "PLXV0,BAL,W,%.2f", (double)overload);
-    return PortWriteNMEA(port, buffer, env);
+    return PortWriteNMEAUrgent(port, buffer, env);
   }
 
   /**
@@ -103,7 +103,7 @@ namespace V7 {
   {
     char buffer[100];
     sprintf(buffer, "PLXV0,BUGS,W,%u", bugs);
-    return PortWriteNMEA(port, buffer, env);
+    return PortWriteNMEAUrgent(port, buffer, env);
   }
 
   /**
@@ -47,3 +47,19 @@ PortWriteNMEA(Port &port, const char *line, OperationEnvironment &env)
   sprintf(checksum, "*%02X\r\n", NMEAChecksum(line));
   return port.FullWrite(checksum, strlen(checksum), env, timeout_ms);
 }
+
+bool
+PortWriteNMEAUrgent(Port &port, const char *line, OperationEnvironment &env)
+{
+  assert(line != NULL);
+
+  /* the whole sentence in one write, so it cannot be split by other
+     output */
+  char buffer[256];
+  const int length = snprintf(buffer, sizeof(buffer), "$%s*%02X\r\n",
+                              line, NMEAChecksum(line));
+  if (length < 0 || (size_t)length >= sizeof(buffer))
+    return false;
+
+  return port.WriteUrgent(buffer, length, env, 1000);
+}
@@ -42,4 +42,17 @@ class OperationEnvironment;
 bool
 PortWriteNMEA(Port &port, const char *line, OperationEnvironment &env);
 
+/**
+ * Like PortWriteNMEA(), but let the line overtake output which is
+ * still queued (see Port::WriteUrgent()).  Use this for short
+ * commands which take effect immediately, such as a setting which the
+ * pilot has just changed.
+ *
+ * @param port the port to write to
+ * @param line the line without asterisk, checksum and newline
+ * @return true on success
+ */
+bool
+PortWriteNMEAUrgent(Port &port, const char *line, OperationEnvironment &env);
+
 #endif
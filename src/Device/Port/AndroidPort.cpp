@@ -22,7 +22,11 @@ Copyright_License {
 */
 
 #include "AndroidPort.hpp"
+#include "Statistics.hpp"
 #include "Android/PortBridge.hpp"
+#include "LogFile.hpp"
+#include "Operation/Operation.hpp"
+#include "Time/TimeoutClock.hpp"
 
 #include <assert.h>
 
@@ -32,6 +36,7 @@ AndroidPort::AndroidPort(DataHandler &_handler, PortBridge *_bridge)
   assert(bridge != nullptr);
 
   bridge->setListener(Java::GetEnv(), this);
+  statistics_clock.Update();
 }
 
 AndroidPort::~AndroidPort()
@@ -39,17 +44,42 @@ AndroidPort::~AndroidPort()
   assert(bridge != nullptr);
 
   BeginClose();
-
+  LogStatistics();
   delete bridge;
 
   EndClose();
 }
 
+void
+AndroidPort::LogStatistics() const
+{
+  PortStatistics s;
+  if (GetStatistics(s))
+    LogFormat("Port statistics: %llu bytes in (%llu reads, %llu upcalls, "
+              "max read %llu), %llu bytes out (%llu writes, "
+              "%llu partial, %llu timeouts, max queue %llu), "
+              "%llu dropped, %llu reconnects",
+              (unsigned long long)s.bytes_in, (unsigned long long)s.reads,
+              (unsigned long long)s.upcalls,
+              (unsigned long long)s.max_read_size,
+              (unsigned long long)s.bytes_out, (unsigned long long)s.writes,
+              (unsigned long long)s.partial_writes,
+              (unsigned long long)s.write_timeouts,
+              (unsigned long long)s.max_queue_depth,
+              (unsigned long long)s.dropped_bytes,
+              (unsigned long long)s.reconnects);
+}
+
 PortState
 AndroidPort::GetState() const
 {
   assert(bridge != nullptr);
 
+  /* log the statistics of long-lived connections every 10 minutes,
+     not only when the port gets closed */
+  if (statistics_clock.CheckUpdate(10 * 60 * 1000))
+    LogStatistics();
+
   return (PortState)bridge->getState(Java::GetEnv());
 }
 
@@ -58,7 +88,9 @@ AndroidPort::Drain()
 {
   assert(bridge != nullptr);
 
-  return bridge->drain(Java::GetEnv());
+  /* a peer which does not receive must not block the caller
+     forever */
+  return bridge->drain(Java::GetEnv(), 5000);
 }
 
 unsigned
@@ -88,3 +120,69 @@ AndroidPort::Write(const void *data, size_t length)
     ? (size_t)nbytes
     : 0;
 }
+
+bool
+AndroidPort::WriteWithDeadline(const void *buffer, size_t length,
+                               OperationEnvironment &env,
+                               unsigned timeout_ms, bool urgent)
+{
+  assert(bridge != nullptr);
+
+  /* instead of retrying Write() with the port's internal timeout,
+     let Java wait for room with the caller's deadline */
+  const TimeoutClock timeout(timeout_ms);
+  JNIEnv *const jenv = Java::GetEnv();
+
+  const char *p = (const char *)buffer, *end = p + length;
+  while (p < end) {
+    const int remaining_ms = timeout.GetRemainingSigned();
+    if (remaining_ms <= 0 || env.IsCancelled())
+      return false;
+
+    int nbytes = bridge->writeFully(jenv, p, end - p, remaining_ms,
+                                    urgent
+                                    ? PortBridge::Priority::URGENT
+                                    : PortBridge::Priority::NORMAL);
+    if (nbytes <= 0)
+      return false;
+
+    p += nbytes;
+  }
+
+  return true;
+}
+
+bool
+AndroidPort::FullWrite(const void *buffer, size_t length,
+                       OperationEnvironment &env, unsigned timeout_ms)
+{
+  return WriteWithDeadline(buffer, length, env, timeout_ms, false);
+}
+
+bool
+AndroidPort::WriteUrgent(const void *data, size_t length,
+                         OperationEnvironment &env, unsigned timeout_ms)
+{
+  /* the Java OutputQueue moves it ahead of the queued bulk output */
+  return WriteWithDeadline(data, length, env, timeout_ms, true);
+}
+
+void
+AndroidPort::SetBulkMode(bool enable)
+{
+  assert(bridge != nullptr);
+
+  /* while the driver reads by itself, let the Java port deliver big
+     chunks without delay, and make it wait for Read() instead of
+     overflowing the buffer */
+  SetFlowControl(enable);
+  bridge->setBulkMode(Java::GetEnv(), enable);
+}
+
+bool
+AndroidPort::GetStatistics(PortStatistics &statistics) const
+{
+  assert(bridge != nullptr);
+
+  return bridge->getStatistics(Java::GetEnv(), statistics);
+}
@@ -25,6 +25,7 @@ Copyright_License {
 #define XCSOAR_DEVICE_ANDROID_PORT_HPP
 
 #include "BufferedPort.hpp"
+#include "Time/PeriodClock.hpp"
 
 class PortBridge;
 
@@ -36,6 +37,12 @@ class AndroidPort : public BufferedPort
 {
   PortBridge *bridge;
 
+  /**
+   * When were the statistics logged the last time?  GetState() logs
+   * them periodically, because it gets polled regularly.
+   */
+  mutable PeriodClock statistics_clock;
+
 public:
   AndroidPort(DataHandler &_handler, PortBridge *bridge);
   virtual ~AndroidPort();
@@ -46,6 +53,24 @@ public:
   virtual unsigned GetBaudrate() const override;
   virtual bool SetBaudrate(unsigned baud_rate) override;
   virtual size_t Write(const void *data, size_t length) override;
+  virtual bool FullWrite(const void *buffer, size_t length,
+                         OperationEnvironment &env,
+                         unsigned timeout_ms) override;
+  virtual bool WriteUrgent(const void *data, size_t length,
+                           OperationEnvironment &env,
+                           unsigned timeout_ms) override;
+  virtual void SetBulkMode(bool enable) override;
+  virtual bool GetStatistics(PortStatistics &statistics) const override;
+
+private:
+  /**
+   * The implementation of FullWrite() and WriteUrgent().
+   */
+  bool WriteWithDeadline(const void *buffer, size_t length,
+                         OperationEnvironment &env, unsigned timeout_ms,
+                         bool urgent);
+
+  void LogStatistics() const;
 };
 
 #endif
@@ -0,0 +1,54 @@
+/*
+Copyright_License {
+
+  XCSoar Glide Computer - http://www.xcsoar.org/
+  Copyright (C) 2000-2014 The XCSoar Project
+  A detailed list of copyright holders can be found in the file "AUTHORS".
+
+  This program is free software; you can redistribute it and/or
+  modify it under the terms of the GNU General Public License
+  as published by the Free Software Foundation; either version 2
+  of the License, or (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software
+  Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+}
+*/
+
+#include "AndroidReplayPort.hpp"
+#include "AndroidPort.hpp"
+#include "Android/ReplayHelper.hpp"
+#include "Java/Global.hpp"
+
+#include <assert.h>
+#include <string.h>
+
+bool
+IsAndroidReplayPath(const char *path)
+{
+  assert(path != NULL);
+
+  /* the extension may be followed by a playback speed, e.g.
+     "flight.xcap@4" */
+  const char *extension = strstr(path, ".xcap");
+  return extension != NULL &&
+    (extension[5] == '\0' || extension[5] == '@');
+}
+
+Port *
+OpenAndroidReplayPort(const char *path, DataHandler &handler)
+{
+  assert(path != NULL);
+
+  PortBridge *bridge = ReplayHelper::open(Java::GetEnv(), path);
+  if (bridge == NULL)
+    return NULL;
+
+  return new AndroidPort(handler, bridge);
+}
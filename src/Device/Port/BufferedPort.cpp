@@ -31,6 +31,9 @@ Copyright_License {
 BufferedPort::BufferedPort(DataHandler &_handler)
   :Port(_handler),
    running(false), closing(false)
+#ifdef HAVE_POSIX
+  , flow_control(false)
+#endif
 {
 }
 
@@ -49,7 +52,9 @@ BufferedPort::BeginClose()
   ScopeLock protect(mutex);
   closing = true;
 #ifdef HAVE_POSIX
-  cond.Signal();
+  /* wake up all waiters, including a DataReceived() call blocked by
+     flow control */
+  cond.Broadcast();
 #else
   data_trigger.Signal();
 #endif
@@ -60,11 +65,30 @@ BufferedPort::EndClose()
 {
 }
 
+#ifdef HAVE_POSIX
+
+void
+BufferedPort::SetFlowControl(bool enable)
+{
+  ScopeLock protect(mutex);
+  flow_control = enable;
+
+  /* wake up a blocked DataReceived() */
+  cond.Broadcast();
+}
+
+#endif
+
 void
 BufferedPort::Flush()
 {
   ScopeLock protect(mutex);
   buffer.Clear();
+
+#ifdef HAVE_POSIX
+  if (flow_control)
+    cond.Broadcast();
+#endif
 }
 
 bool
@@ -115,6 +139,13 @@ BufferedPort::Read(void *dest, size_t length)
   size_t nbytes = std::min(length, r.size);
   std::copy(r.data, r.data + nbytes, (uint8_t *)dest);
   buffer.Consume(nbytes);
+
+#ifdef HAVE_POSIX
+  if (flow_control)
+    /* wake up a DataReceived() call which waits for room */
+    cond.Broadcast();
+#endif
+
   return nbytes;
 }
 
@@ -145,6 +176,17 @@ BufferedPort::WaitRead(unsigned timeout_ms)
   return WaitResult::READY;
 }
 
+void
+BufferedPort::TimedDataReceived(const void *data, size_t length,
+                                uint64_t arrival_ns)
+{
+  if (running)
+    handler.TimedDataReceived(data, length, arrival_ns);
+  else
+    /* the time gets lost in the buffer */
+    DataReceived(data, length);
+}
+
 void
 BufferedPort::DataReceived(const void *data, size_t length)
 {
@@ -155,21 +197,34 @@ BufferedPort::DataReceived(const void *data, size_t length)
 
     ScopeLock protect(mutex);
 
-    auto r = buffer.Write();
-    if (r.size == 0)
-      /* the buffer is already full, discard excess data */
-      return;
+    while (length > 0) {
+      auto r = buffer.Write();
+      if (r.size == 0) {
+#ifdef HAVE_POSIX
+        if (flow_control && !running && !closing) {
+          /* wait for Read() to make room */
+          cond.Wait(mutex);
+          continue;
+        }
+#endif
+
+        /* the buffer is already full, discard excess data */
+        return;
+      }
 
-    /* discard excess data */
-    size_t nbytes = std::min(length, r.size);
+      /* discard excess data */
+      size_t nbytes = std::min(length, r.size);
 
-    std::copy(p, p + nbytes, r.data);
-    buffer.Append(nbytes);
+      std::copy(p, p + nbytes, r.data);
+      buffer.Append(nbytes);
+      p += nbytes;
+      length -= nbytes;
 
 #ifdef HAVE_POSIX
-    cond.Broadcast();
+      cond.Broadcast();
 #else
-    data_trigger.Signal();
+      data_trigger.Signal();
 #endif
+    }
   }
 }
@@ -65,6 +65,14 @@ class BufferedPort : public Port, protected DataHandler {
 
   bool closing;
 
+#ifdef HAVE_POSIX
+  /**
+   * Shall DataReceived() wait for Read() to make room while the
+   * receive thread is stopped, instead of discarding data?
+   */
+  bool flow_control;
+#endif
+
 public:
   BufferedPort(DataHandler &_handler);
 
@@ -76,6 +84,17 @@ protected:
   void BeginClose();
   void EndClose();
 
+#ifdef HAVE_POSIX
+  /**
+   * Enable or disable flow control.  When enabled, the thread which
+   * calls DataReceived() may block while the receive thread is
+   * stopped and the buffer is full, until the driver has read
+   * enough data, the receive thread has been restarted or the port
+   * is being closed.
+   */
+  void SetFlowControl(bool enable);
+#endif
+
 public:
   /* virtual methods from class Port */
   virtual void Flush() override;
@@ -87,6 +106,8 @@ public:
 protected:
   /* virtual methods from class DataHandler */
   virtual void DataReceived(const void *data, size_t length) override;
+  virtual void TimedDataReceived(const void *data, size_t length,
+                                 uint64_t arrival_ns) override;
 };
 
 #endif
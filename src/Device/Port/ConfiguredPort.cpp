@@ -40,6 +40,7 @@ Copyright_License {
 #include "AndroidBluetoothPort.hpp"
 #include "AndroidBLEPort.hpp"
 #include "AndroidIOIOUartPort.hpp"
+#include "AndroidReplayPort.hpp"
 #endif
 
 #if defined(HAVE_POSIX)
@@ -108,6 +109,13 @@ OpenPortInternal(const DeviceConfig &config, DataHandler &handler)
     if (config.path.empty())
       return NULL;
 
+#ifdef ANDROID
+    /* play back a recording of a device instead of opening a
+       serial port */
+    if (IsAndroidReplayPath(config.path.c_str()))
+      return OpenAndroidReplayPort(config.path.c_str(), handler);
+#endif
+
     path = config.path.c_str();
     break;
 
@@ -91,6 +91,25 @@ DumpPort::Write(const void *data, size_t length)
   return nbytes;
 }
 
+bool
+DumpPort::WriteUrgent(const void *data, size_t length,
+                      OperationEnvironment &env, unsigned timeout_ms)
+{
+  const bool enabled = CheckEnabled();
+  if (enabled)
+    LogFormat("WriteUrgent(%u)", (unsigned)length);
+
+  const bool success = port->WriteUrgent(data, length, env, timeout_ms);
+
+  if (enabled) {
+    LogFormat("WriteUrgent(%u)=%d", (unsigned)length, success);
+    if (success)
+      HexDump("W ", data, length);
+  }
+
+  return success;
+}
+
 bool
 DumpPort::Drain()
 {
@@ -142,6 +161,21 @@ DumpPort::StartRxThread()
   return port->StartRxThread();
 }
 
+void
+DumpPort::SetBulkMode(bool enable)
+{
+  if (CheckEnabled())
+    LogFormat("SetBulkMode %d", enable);
+
+  port->SetBulkMode(enable);
+}
+
+bool
+DumpPort::GetStatistics(PortStatistics &statistics) const
+{
+  return port->GetStatistics(statistics);
+}
+
 int
 DumpPort::Read(void *buffer, size_t size)
 {
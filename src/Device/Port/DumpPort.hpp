@@ -81,12 +81,17 @@ public:
   virtual PortState GetState() const override;
   virtual bool WaitConnected(OperationEnvironment &env);
   virtual size_t Write(const void *data, size_t length) override;
+  virtual bool WriteUrgent(const void *data, size_t length,
+                           OperationEnvironment &env,
+                           unsigned timeout_ms) override;
   virtual bool Drain() override;
   virtual void Flush() override;
   virtual unsigned GetBaudrate() const override;
   virtual bool SetBaudrate(unsigned baud_rate) override;
   virtual bool StopRxThread() override;
   virtual bool StartRxThread() override;
+  virtual void SetBulkMode(bool enable) override;
+  virtual bool GetStatistics(PortStatistics &statistics) const override;
   virtual int Read(void *buffer, size_t size) override;
   virtual WaitResult WaitRead(unsigned timeout_ms) override;
 };
@@ -194,6 +194,18 @@ K6BtPort::StartRxThread(void)
   return port->StartRxThread();
 }
 
+void
+K6BtPort::SetBulkMode(bool enable)
+{
+  port->SetBulkMode(enable);
+}
+
+bool
+K6BtPort::GetStatistics(PortStatistics &statistics) const
+{
+  return port->GetStatistics(statistics);
+}
+
 int
 K6BtPort::Read(void *Buffer, size_t Size)
 {
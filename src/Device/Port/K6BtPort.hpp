@@ -63,6 +63,8 @@ public:
   virtual unsigned GetBaudrate() const override;
   virtual bool StopRxThread() override;
   virtual bool StartRxThread() override;
+  virtual void SetBulkMode(bool enable) override;
+  virtual bool GetStatistics(PortStatistics &statistics) const override;
   virtual int Read(void *Buffer, size_t Size) override;
   virtual WaitResult WaitRead(unsigned timeout_ms) override;
 };
@@ -43,6 +43,17 @@ Port::WaitConnected(OperationEnvironment &env)
   return GetState() == PortState::READY;
 }
 
+void
+Port::SetBulkMode(bool enable)
+{
+}
+
+bool
+Port::GetStatistics(PortStatistics &statistics) const
+{
+  return false;
+}
+
 size_t
 Port::Write(const char *s)
 {
@@ -70,6 +81,13 @@ Port::FullWrite(const void *buffer, size_t length,
   return true;
 }
 
+bool
+Port::WriteUrgent(const void *data, size_t length,
+                  OperationEnvironment &env, unsigned timeout_ms)
+{
+  return FullWrite(data, length, env, timeout_ms);
+}
+
 bool
 Port::FullWriteString(const char *s,
                       OperationEnvironment &env, unsigned timeout_ms)
@@ -31,6 +31,7 @@ Copyright_License {
 
 class OperationEnvironment;
 class DataHandler;
+struct PortStatistics;
 
 /**
  * Generic Port thread handler class
@@ -114,14 +115,29 @@ public:
    * Write data to the serial port, take care for partial writes.
    *
    * Note that this port's write timeout is still in effect for each
-   * individual write operation.
+   * individual write operation, unless the implementation overrides
+   * this method.
    *
    * @param timeout_ms give up after this number of milliseconds
    * @return true on success
    */
   gcc_nonnull_all
-  bool FullWrite(const void *buffer, size_t length,
-                 OperationEnvironment &env, unsigned timeout_ms);
+  virtual bool FullWrite(const void *buffer, size_t length,
+                         OperationEnvironment &env, unsigned timeout_ms);
+
+  /**
+   * Write a short command which shall overtake output that is still
+   * queued, e.g. a setting which the pilot has just changed.  The
+   * command is never interleaved with other output.
+   *
+   * The default implementation calls FullWrite().
+   *
+   * @param timeout_ms give up after this number of milliseconds
+   * @return true on success
+   */
+  gcc_nonnull_all
+  virtual bool WriteUrgent(const void *data, size_t length,
+                           OperationEnvironment &env, unsigned timeout_ms);
 
   /**
    * Just like FullWrite(), but write a null-terminated string
@@ -169,6 +185,23 @@ public:
    */
   virtual bool StartRxThread() = 0;
 
+  /**
+   * Optimise the port for a large transfer, such as a flight
+   * download, while the receive thread is stopped.  The caller must
+   * disable it again when the transfer is finished.  The default
+   * implementation does nothing.
+   */
+  virtual void SetBulkMode(bool enable);
+
+  /**
+   * Obtain a snapshot of this port's I/O counters.  The default
+   * implementation returns false.
+   *
+   * @return false if this #Port implementation does not collect
+   * statistics
+   */
+  virtual bool GetStatistics(PortStatistics &statistics) const;
+
   /**
    * Read a single byte from the serial port
    * @return the unsigned byte that was read or -1 on failure
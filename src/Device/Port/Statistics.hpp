@@ -0,0 +1,53 @@
+/*
+Copyright_License {
+
+  XCSoar Glide Computer - http://www.xcsoar.org/
+  Copyright (C) 2000-2014 The XCSoar Project
+  A detailed list of copyright holders can be found in the file "AUTHORS".
+
+  This program is free software; you can redistribute it and/or
+  modify it under the terms of the GNU General Public License
+  as published by the Free Software Foundation; either version 2
+  of the License, or (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software
+  Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+}
+*/
+
+#ifndef XCSOAR_DEVICE_PORT_STATISTICS_HPP
+#define XCSOAR_DEVICE_PORT_STATISTICS_HPP
+
+#include <stdint.h>
+
+/**
+ * A snapshot of the I/O counters of a #Port.
+ *
+ * Warning: the layout is hard-coded in the Android/Java class
+ * PortStatistics.
+ */
+struct PortStatistics {
+  uint64_t bytes_in, bytes_out;
+  uint64_t reads, writes, upcalls;
+  uint64_t max_read_size, max_queue_depth;
+  uint64_t write_timeouts, partial_writes;
+  uint64_t reconnects, dropped_bytes;
+
+  /**
+   * The average number of bytes per read() call, or 0 if nothing
+   * was read yet.
+   */
+  unsigned GetAverageReadSize() const {
+    return reads > 0
+      ? unsigned(bytes_in / reads)
+      : 0;
+  }
+};
+
+#endif
@@ -39,6 +39,7 @@ Copyright_License {
 #include "Device/List.hpp"
 #include "Device/Descriptor.hpp"
 #include "Device/Register.hpp"
+#include "Device/Port/Statistics.hpp"
 #include "Device/Driver/LX/Internal.hpp"
 #include "Blackboard/DeviceBlackboard.hpp"
 #include "Blackboard/BlackboardListener.hpp"
@@ -55,12 +56,17 @@ Copyright_License {
 #include "Profile/Profile.hpp"
 #include "Profile/DeviceConfig.hpp"
 #include "Interface.hpp"
+#include "Formatter/ByteSizeFormatter.hpp"
 
 #ifdef ANDROID
 #include "Java/Global.hpp"
 #include "Android/BluetoothHelper.hpp"
 #endif
 
+#include <algorithm>
+
+#include <stdint.h>
+
 class DeviceListWidget final
   : public ListWidget, private ActionListener,
     private NullBlackboardListener {
@@ -157,6 +163,12 @@ class DeviceListWidget final
 
   Item items[NUMDEV];
 
+  /**
+   * The number of bytes transferred by each port when the list was
+   * last drawn.  A change redraws the list to update the statistics.
+   */
+  uint64_t traffic[NUMDEV];
+
   WndButton *disable_button;
   WndButton *reconnect_button, *flight_button;
   WndButton *edit_button;
@@ -229,13 +241,15 @@ DeviceListWidget::Prepare(ContainerWindow &parent, const PixelRect &rc)
   for (Item &i : items)
     i.Clear();
 
+  std::fill_n(traffic, NUMDEV, 0);
+
   UpdateButtons();
 }
 
 bool
 DeviceListWidget::RefreshList()
 {
-  bool modified = false;
+  bool modified = false, traffic_modified = false;
   for (unsigned i = 0; i < NUMDEV; ++i) {
     Item &item = items[i];
 
@@ -247,9 +261,18 @@ DeviceListWidget::RefreshList()
       item = n;
       modified = true;
     }
+
+    PortStatistics statistics;
+    const uint64_t t = device_list[i]->GetPortStatistics(statistics)
+      ? statistics.bytes_in + statistics.bytes_out
+      : 0;
+    if (t != traffic[i]) {
+      traffic[i] = t;
+      traffic_modified = true;
+    }
   }
 
-  if (modified)
+  if (modified || traffic_modified)
     GetList().Invalidate();
   return modified;
 }
@@ -302,6 +325,34 @@ DeviceListWidget::UpdateButtons()
   edit_button->SetEnabled(current < NUMDEV);
 }
 
+/**
+ * Append the I/O statistics of the port to the status line, if it
+ * collects them.
+ */
+static void
+AppendPortStatistics(StaticString<256> &buffer, const DeviceDescriptor &device)
+{
+  PortStatistics statistics;
+  if (!device.GetPortStatistics(statistics))
+    return;
+
+  TCHAR in[32], out[32];
+  FormatByteSize(in, ARRAY_SIZE(in), (unsigned long)statistics.bytes_in,
+                 true);
+  FormatByteSize(out, ARRAY_SIZE(out), (unsigned long)statistics.bytes_out,
+                 true);
+
+  buffer.AppendFormat(_T("; %s in, %s out"), in, out);
+
+  const unsigned average_read = statistics.GetAverageReadSize();
+  if (average_read > 0)
+    buffer.AppendFormat(_("; %u B/read"), average_read);
+
+  if (statistics.dropped_bytes > 0)
+    buffer.AppendFormat(_("; %lu B dropped"),
+                        (unsigned long)statistics.dropped_bytes);
+}
+
 void
 DeviceListWidget::OnPaintItem(Canvas &canvas, const PixelRect rc, unsigned idx)
 {
@@ -368,6 +419,8 @@ DeviceListWidget::OnPaintItem(Canvas &canvas, const PixelRect rc, unsigned idx)
       buffer.append(_("Debug"));
     }
 
+    AppendPortStatistics(buffer, *device_list[idx]);
+
     status = buffer;
   } else if (config.IsDisabled()) {
     status = _("Disabled");
@@ -381,6 +434,8 @@ DeviceListWidget::OnPaintItem(Canvas &canvas, const PixelRect rc, unsigned idx)
       buffer.append(_("Debug"));
     }
 
+    AppendPortStatistics(buffer, *device_list[idx]);
+
     status = buffer;
 #ifdef ANDROID
   } else if ((config.port_type == DeviceConfig::PortType::RFCOMM ||
@@ -27,6 +27,7 @@ Copyright_License {
 #include "Compiler.h"
 
 #include <stddef.h>
+#include <stdint.h>
 
 /**
  * Interface with callbacks for the #Port class.
@@ -35,6 +36,19 @@ class DataHandler {
 public:
   gcc_nonnull_all
   virtual void DataReceived(const void *data, size_t length) = 0;
+
+  /**
+   * Like DataReceived(), but the caller knows when the data has
+   * arrived.  The default implementation discards the time.
+   *
+   * @param arrival_ns the time when the data was received from the
+   * device, in nanoseconds since boot (CLOCK_BOOTTIME)
+   */
+  gcc_nonnull_all
+  virtual void TimedDataReceived(const void *data, size_t length,
+                                 uint64_t arrival_ns) {
+    DataReceived(data, length);
+  }
 };
 
 #endif